@@ -1,6 +1,7 @@
 package client;
 
 import client.cache.MessageCacheEntry;
+import client.cache.StatusCacheEntry;
 import client.cache.UserCacheEntry;
 import client.errors.ClientException;
 import client.props.ClientProperty;
@@ -14,6 +15,7 @@ import shared.parameters.ServerParameter;
 import shared.parameters.ServerParameterMap;
 import shared.response.pki.SignResponse;
 import shared.response.server.*;
+import shared.utils.GsonUtils;
 import shared.utils.Utils;
 import shared.utils.crypto.*;
 import shared.utils.crypto.util.DHKeyType;
@@ -64,6 +66,10 @@ class Client {
 
       // Create SSL Socket and register Client properties
       SSLContext sslContext = buildSSLContext(ksHelper, tsHelper);
+
+      // Cached sessions are resumed by host and port with an abbreviated handshake
+      sslContext.getClientSessionContext().setSessionCacheSize(properties.getInt(ClientProperty.TLS_SESSION_CACHE_SIZE));
+      sslContext.getClientSessionContext().setSessionTimeout(properties.getInt(ClientProperty.TLS_SESSION_TIMEOUT));
       SSLSocketFactory factory = sslContext.getSocketFactory();
       ClientProperties cProps = new ClientProperties(properties, ksHelper, tsHelper, factory);
 
@@ -82,8 +88,8 @@ class Client {
       // Command reader
       BufferedReader lineReader = new BufferedReader(new InputStreamReader(System.in));
 
-      // Close the socket
-      cProps.closeConnection();
+      // Close the socket unless it is kept for the next commands
+      cProps.releaseConnection();
 
       while (true) {
         try {
@@ -139,16 +145,27 @@ class Client {
             case LOGIN:
               login(cProps, requestData, cmdArgs);
               break;
+            case STATS:
+              stats(cProps, requestData);
+              break;
+            case WAIT:
+              waitForMail(cProps, requestData);
+              break;
             case HELP:
               printCommands();
               break;
             case EXIT:
+              cProps.closeConnection();
+
+              if (debug)
+                System.out.println("TLS handshakes: " + cProps.getTLSStats());
+
               System.out.println("Exited the client.");
               System.exit(0);
               break;
           }
 
-          cProps.closeConnection();
+          cProps.releaseConnection();
         } catch (ClientException e) {
           System.err.println(e.getMessage());
           if (debug)
@@ -326,29 +343,58 @@ class Client {
   }
 
   private static void listUsers(ClientProperties cProps, JsonObject requestData, String[] args, boolean silent) throws IOException, ClientException {
-    // Check user logged in and add his id to request and send it
+    // Check user logged in
     if (cProps.session == null)
       throw new ClientException("User is not logged in.");
-    requestData.addProperty("userId", cProps.session.getId());
 
-    // Add id if inserted and send the request
+    // Add id if inserted, otherwise list the users registered since the last listing
+    boolean allUsers = args.length != 2;
+
     try {
-      if (args.length == 2)
+      if (!allUsers)
         requestData.addProperty("userId", Integer.valueOf(args[1]));
     } catch (NumberFormatException e) {
       throw new ClientException("User id has an invalid format.");
     }
-    cProps.sendRequest(requestData);
-
-    // Get response and check the nonce
-    ListUsersResponse resp = cProps.receiveRequestWithNonce(requestData, ListUsersResponse.class);
-
-    // Extract users from response an add them to the cache
-    ArrayList<User> users = resp.getUsers();
 
     ArrayList<Integer> obtained = new ArrayList<>();
     ArrayList<Integer> failed = new ArrayList<>();
 
+    ListUsersResponse resp;
+
+    do {
+      if (allUsers)
+        requestData.addProperty("after", cProps.session.getUsersCursor());
+
+      cProps.sendRequest(requestData);
+
+      // Get response and check the nonce
+      resp = cProps.receiveRequestWithNonce(requestData, ListUsersResponse.class);
+
+      // Extract users from response an add them to the cache
+      addUsersToCache(cProps, resp.getUsers(), obtained, failed);
+
+      if (allUsers)
+        cProps.session.setUsersCursor(resp.getNextCursor());
+
+      if (allUsers && resp.hasMore())
+        startNextPage(cProps, requestData);
+    } while (allUsers && resp.hasMore());
+
+    // Print results
+    if (!silent) {
+      if (obtained.size() > 0)
+        System.out.println("Obtained and verified user's with ids " + obtained.toString() + " info.");
+
+      if (failed.size() > 0)
+        System.err.println("Failed to verify user's with ids " + failed.toString() + " info.");
+
+      if (obtained.size() == 0 && failed.size() == 0)
+        System.err.println(allUsers ? "No new users found." : "No users found.");
+    }
+  }
+
+  private static void addUsersToCache(ClientProperties cProps, ArrayList<User> users, ArrayList<Integer> obtained, ArrayList<Integer> failed) {
     PublicKey userPubKey;
     for (User user : users) {
       if (user == null)
@@ -379,49 +425,89 @@ class Client {
           )
       );
     }
+  }
 
-    // Print results
-    if (!silent) {
-      if (obtained.size() > 0)
-        System.out.println("Obtained and verified user's with ids " + obtained.toString() + " info.");
+  private static void listNewMessages(ClientProperties cProps, JsonObject requestData) throws IOException, ClientException {
+    // Check user logged in and add his id to request and send it
+    if (cProps.session == null)
+      throw new ClientException("User is not logged in.");
+    requestData.addProperty("userId", cProps.session.getId());
 
-      if (failed.size() > 0)
-        System.err.println("Failed to verify user's with ids " + failed.toString() + " info.");
+    ListNewMessagesResponse resp;
 
-      if (obtained.size() == 0 && failed.size() == 0)
-        System.err.println("No users found.");
-    }
+    // Only messages after the ones already listed are fetched
+    do {
+      requestData.addProperty("after", cProps.session.getUnreadCursor());
+      cProps.sendRequest(requestData);
+
+      // Get response and check the nonce
+      resp = cProps.receiveRequestWithNonce(requestData, ListNewMessagesResponse.class);
+      cProps.session.addUnreadMessages(resp.getNewMessageIds(), resp.getNextCursor());
+
+      if (resp.hasMore())
+        startNextPage(cProps, requestData);
+    } while (resp.hasMore());
+
+    // Get new message ids an print them
+    System.out.println("Obtained the following unread message ids: (" + cProps.session.getUnreadMessageIds().toString() + ").");
   }
 
-  private static void listNewMessages(ClientProperties cProps, JsonObject requestData) throws IOException, ClientException {
+  // Blocks until the server sees new messages or receipts for the user, or gives up
+  private static void waitForMail(ClientProperties cProps, JsonObject requestData) throws IOException, ClientException {
     // Check user logged in and add his id to request and send it
     if (cProps.session == null)
       throw new ClientException("User is not logged in.");
     requestData.addProperty("userId", cProps.session.getId());
+    requestData.addProperty("timeout", cProps.getWaitTimeout());
+
+    // Nothing that happened since the last wait is missed
+    if (cProps.session.getWaitVersion() >= 0)
+      requestData.addProperty("version", cProps.session.getWaitVersion());
 
     cProps.sendRequest(requestData);
 
-    // Get response and check the nonce
-    ListNewMessagesResponse resp = cProps.receiveRequestWithNonce(requestData, ListNewMessagesResponse.class);
+    WaitResponse resp = cProps.receiveRequestWithNonce(requestData, WaitResponse.class);
+    cProps.session.setWaitVersion(resp.getVersion());
+
+    if (!resp.getReadMessageIds().isEmpty())
+      System.out.println("The following sent messages were read: (" + resp.getReadMessageIds().toString() + ").");
 
-    // Get new message ids an print them
     System.out.println("Obtained the following unread message ids: (" + resp.getNewMessageIds().toString() + ").");
   }
 
+  // Only works for certificates the server lists as admins
+  private static void stats(ClientProperties cProps, JsonObject requestData) throws IOException, ClientException {
+    cProps.sendRequest(requestData);
+
+    StatsResponse resp = cProps.receiveRequestWithNonce(requestData, StatsResponse.class);
+
+    System.out.println(GsonUtils.buildGsonInstance().toJson(resp.getStats()));
+  }
+
   private static void listAllMessages(ClientProperties cProps, JsonObject requestData) throws IOException, ClientException {
     // Check user logged in and add his id to request and send it
     if (cProps.session == null)
       throw new ClientException("User is not logged in.");
     requestData.addProperty("userId", cProps.session.getId());
 
-    cProps.sendRequest(requestData);
+    ListMessagesResponse resp;
+
+    // Only messages after the ones already listed are fetched
+    do {
+      requestData.addProperty("after", cProps.session.getMessagesCursor());
+      cProps.sendRequest(requestData);
+
+      // Get response and check the nonce
+      resp = cProps.receiveRequestWithNonce(requestData, ListMessagesResponse.class);
+      cProps.session.addMessages(resp.getReceivedMessageIds(), resp.getSentMessageIds(), resp.getNextCursor());
 
-    // Get response and check the nonce
-    ListMessagesResponse resp = cProps.receiveRequestWithNonce(requestData, ListMessagesResponse.class);
+      if (resp.hasMore())
+        startNextPage(cProps, requestData);
+    } while (resp.hasMore());
 
     // Get new message ids an print them
-    System.out.println("Obtained the following received message ids: (" + resp.getReceivedMessageIds().toString() + ").");
-    System.out.println("Obtained the following sent message ids: (" + resp.getSentMessageIds().toString() + ").");
+    System.out.println("Obtained the following received message ids: (" + cProps.session.getReceivedMessageIds().toString() + ").");
+    System.out.println("Obtained the following sent message ids: (" + cProps.session.getSentMessageIds().toString() + ").");
     System.out.println("Note: Read messages come with a prefixed \"_\".");
   }
 
@@ -509,7 +595,14 @@ class Client {
         encryptedFilesBytes = seaHelper.encrypt(filesBytes, sharedSeaKey, tempCipherIVBytes);
       } else
         encryptedFilesBytes = seaHelper.encrypt(filesBytes, sharedSeaKey);
-      requestData.addProperty("attachments", cProps.b64Helper.encode(encryptedFilesBytes));
+
+      // Large attachments are uploaded in chunks first and referenced by the message
+      if (cProps.supportsChunks() && encryptedFilesBytes.length > cProps.getChunkSize()) {
+        requestData.addProperty("uploadId", uploadAttachments(cProps, encryptedFilesBytes));
+        requestData.addProperty("attachments", "");
+      } else {
+        requestData.addProperty("attachments", cProps.b64Helper.encode(encryptedFilesBytes));
+      }
     } else
       requestData.addProperty("attachments", "");
 
@@ -566,14 +659,23 @@ class Client {
     int senderId;
     int receiverId;
     Message message = null;
+    byte[] downloadedFiles = null;
 
     if (messageCacheEntry == null) {
       // Get message object from the server response
       requestData.addProperty("messageId", messageId);
+
+      // Attachments are then downloaded in chunks
+      if (cProps.supportsChunks())
+        requestData.addProperty("chunked", true);
+
       cProps.sendRequest(requestData);
       ReceiveMessageResponse resp = cProps.receiveRequestWithNonce(requestData, ReceiveMessageResponse.class);
       message = resp.getMessage();
 
+      if (resp.getAttachmentsSize() > 0)
+        downloadedFiles = downloadAttachments(cProps, messageId, resp.getAttachmentsSize());
+
       // Get message sender
       senderId = message.getSenderId();
       receiverId = message.getReceiverId();
@@ -608,7 +710,7 @@ class Client {
 
       encryptedText = cProps.b64Helper.decode(message.getText());
       encryptedFileSpec = cProps.b64Helper.decode(message.getAttachmentData());
-      encryptedFiles = cProps.b64Helper.decode(message.getAttachments());
+      encryptedFiles = downloadedFiles != null ? downloadedFiles : cProps.b64Helper.decode(message.getAttachments());
       iv = cProps.b64Helper.decode(message.getIV());
       signature = cProps.b64Helper.decode(message.getSenderSignature());
 
@@ -721,7 +823,8 @@ class Client {
     // Add signature and date to request header and send the request
     requestData.addProperty("receiverSignature", cProps.b64Helper.encode(signedDecryptedContents));
 
-    cProps.sendRequest(requestData);
+    cProps.sendRequestWithoutResponse(requestData);
+    cProps.session.markRead(messageId);
 
     System.out.println("Successfully sent receipt of message with id: " + messageId);
   }
@@ -734,10 +837,22 @@ class Client {
     // Send message id to obtain response
     int messageId = Integer.parseInt(args[1]);
     requestData.addProperty("messageId", messageId);
+
+    // Receipts already verified are only sent again if new ones arrived
+    StatusCacheEntry cachedStatus = cProps.cache.getStatus(messageId);
+    if (cachedStatus != null)
+      requestData.addProperty("ifNoneMatch", cachedStatus.getVersion());
+
     cProps.sendRequest(requestData);
 
     // Get response object and extract messages and receipts
-    MessageReceiptsResponse resp = cProps.receiveRequestWithNonce(requestData, MessageReceiptsResponse.class);
+    MessageReceiptsResponse resp = cProps.receiveRequestIfModified(requestData, MessageReceiptsResponse.class);
+
+    if (resp == null) {
+      printStatus(cachedStatus.getResults());
+      return;
+    }
+
     ArrayList<Receipt> receipts = resp.getReceipts();
     Message message = resp.getMessage();
 
@@ -759,7 +874,7 @@ class Client {
     // Validate message contents by verifying mac, check if it has been tampered with
     byte[] encryptedText = cProps.b64Helper.decode(message.getText());
     byte[] encryptedFileSpec = cProps.b64Helper.decode(message.getAttachmentData());
-    byte[] encryptedFiles = cProps.b64Helper.decode(message.getAttachments());
+    byte[] encryptedFiles = getStatusAttachments(cProps, messageId, resp.getAttachmentsSize());
     byte[] iv = cProps.b64Helper.decode(message.getIV());
     byte[] signature = cProps.b64Helper.decode(message.getSenderSignature());
 
@@ -833,7 +948,27 @@ class Client {
         results.add(new Pair<>("Invalid/Forged", "user id: " + receipt.getSenderId() + " date: " + receipt.getDate()));
     }
 
-    // Print results
+    cProps.cache.addStatus(messageId, new StatusCacheEntry(resp.getVersion(), results));
+
+    printStatus(results);
+  }
+
+  // Status replies leave the attachments out, the sender usually still has them cached from the send
+  private static byte[] getStatusAttachments(ClientProperties cProps, int messageId, int size) throws IOException, ClientException {
+    if (size == 0)
+      return new byte[0];
+
+    MessageCacheEntry cachedMessage = cProps.cache.getMessage(messageId);
+    if (cachedMessage != null && cachedMessage.getAttachments().length == size)
+      return cachedMessage.getAttachments();
+
+    if (!cProps.supportsChunks())
+      throw new ClientException("Server does not support attachment downloads.");
+
+    return downloadAttachments(cProps, messageId, size);
+  }
+
+  private static void printStatus(ArrayList<Pair<String, String>> results) {
     for (Pair<String, String> resultPair : results) {
       System.out.println("Message status: " + resultPair.getA() + " - " + resultPair.getB() + ".");
     }
@@ -879,6 +1014,8 @@ class Client {
             "RECEIVE <messageId>" + "\n" +
             "STATUS <messageId>" + "\n" +
             "LOGIN <username" + "\n" +
+            "WAIT" + "\n" +
+            "STATS" + "\n" +
             "HELP" + "\n" +
             "EXIT"
     );
@@ -958,6 +1095,14 @@ class Client {
   /*
     UTILS
   */
+  // Every page of a listing is its own request with a new nonce
+  private static void startNextPage(ClientProperties cProps, JsonObject requestData) throws IOException {
+    cProps.releaseConnection();
+    cProps.startConnection();
+
+    requestData.addProperty("nonce", cProps.rndHelper.getNonce());
+  }
+
   private static String getCurrentDate() {
     DateFormat df = new SimpleDateFormat("dd/MM/yyyy HH:mm:ss");
 
@@ -1050,6 +1195,102 @@ class Client {
     return new Pair<>(sharedHelpers, sharedKeys);
   }
 
+  // Uploads the attachments in chunks, resuming from the offset stored by the server after a failure
+  private static String uploadAttachments(ClientProperties cProps, byte[] attachments) throws IOException, ClientException {
+    String uploadId = null;
+    int offset = 0;
+    int failures = 0;
+    boolean resume = false;
+
+    while (uploadId == null || offset < attachments.length) {
+      try {
+        JsonObject chunkRequest = new JsonObject();
+        chunkRequest.addProperty("type", "upload");
+        chunkRequest.addProperty("nonce", cProps.rndHelper.getNonce());
+
+        if (uploadId != null)
+          chunkRequest.addProperty("uploadId", uploadId);
+
+        // Ask where to continue from without sending a chunk
+        if (!resume) {
+          byte[] chunk = Arrays.copyOfRange(attachments, offset, Math.min(offset + cProps.getChunkSize(), attachments.length));
+
+          chunkRequest.addProperty("offset", offset);
+          chunkRequest.addProperty("chunk", cProps.b64Helper.encode(chunk));
+          chunkRequest.addProperty("chunkHash", cProps.b64Helper.encode(cProps.getChunkHashHelper().hash(chunk)));
+        }
+
+        cProps.sendRequest(chunkRequest);
+        UploadResponse resp = cProps.receiveRequestWithNonce(chunkRequest, UploadResponse.class);
+
+        uploadId = resp.getUploadId();
+        offset = resp.getSize();
+        resume = false;
+        failures = 0;
+
+        // Connections are only reused with keep-alive
+        cProps.releaseConnection();
+        cProps.startConnection();
+      } catch (IOException | ClientException e) {
+        if (++failures > cProps.getChunkRetries())
+          throw new ClientException("Failed to upload attachments: " + e.getMessage());
+
+        System.err.println("Attachment upload interrupted at " + offset + " bytes. Retrying...");
+
+        resume = uploadId != null;
+        cProps.closeConnection();
+        cProps.startConnection();
+      }
+    }
+
+    return uploadId;
+  }
+
+  // Downloads the attachments in chunks, a failed chunk is requested again from the same offset
+  private static byte[] downloadAttachments(ClientProperties cProps, int messageId, int size) throws IOException, ClientException {
+    ByteArrayOutputStream attachments = new ByteArrayOutputStream(size);
+    int failures = 0;
+
+    while (attachments.size() < size) {
+      try {
+        JsonObject chunkRequest = new JsonObject();
+        chunkRequest.addProperty("type", "download");
+        chunkRequest.addProperty("nonce", cProps.rndHelper.getNonce());
+        chunkRequest.addProperty("messageId", messageId);
+        chunkRequest.addProperty("offset", attachments.size());
+        chunkRequest.addProperty("length", cProps.getChunkSize());
+
+        cProps.sendRequest(chunkRequest);
+        DownloadResponse resp = cProps.receiveRequestWithNonce(chunkRequest, DownloadResponse.class);
+
+        byte[] chunk = cProps.b64Helper.decode(resp.getChunk());
+
+        if (!cProps.getChunkHashHelper().verifyHash(chunk, cProps.b64Helper.decode(resp.getChunkHash())))
+          throw new ClientException("Chunk does not match its hash.");
+
+        if (chunk.length == 0 || resp.getSize() != size)
+          throw new ClientException("Message attachments changed during download.");
+
+        attachments.write(chunk);
+        failures = 0;
+
+        // Connections are only reused with keep-alive
+        cProps.releaseConnection();
+        cProps.startConnection();
+      } catch (IOException | ClientException e) {
+        if (++failures > cProps.getChunkRetries())
+          throw new ClientException("Failed to download attachments: " + e.getMessage());
+
+        System.err.println("Attachment download interrupted at " + attachments.size() + " bytes. Retrying...");
+
+        cProps.closeConnection();
+        cProps.startConnection();
+      }
+    }
+
+    return attachments.toByteArray();
+  }
+
   private static int validateMessageIv(byte[] encryptedFileSpec, byte[] encryptedFiles, byte[] iv, SEAHelper seaHelper) throws ClientException {
     // Verify if message has files or file spec to determine integrity and iv size
     if (encryptedFileSpec.length != 0 && encryptedFiles.length == 0)
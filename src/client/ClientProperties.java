@@ -7,6 +7,7 @@ import client.errors.ClientException;
 import client.props.ClientProperty;
 import client.utils.FileHelper;
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonSyntaxException;
 import com.google.gson.stream.JsonReader;
@@ -18,20 +19,28 @@ import shared.parameters.ServerParameterMap;
 import shared.parameters.ServerParameter;
 import shared.response.ErrorResponse;
 import shared.response.GsonResponse;
+import shared.response.OKResponse;
 import shared.response.OkResponseWithNonce;
+import shared.response.server.NotModifiedResponse;
+import shared.utils.BinaryProtocol;
 import shared.utils.GsonUtils;
 import shared.utils.SafeInputStreamReader;
 import shared.utils.crypto.*;
 import shared.utils.crypto.util.DHKeyType;
+import shared.utils.crypto.util.TLSSessionStats;
 import shared.utils.properties.CustomProperties;
 
 import javax.crypto.*;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.lang.reflect.Type;
 import java.math.BigInteger;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.security.*;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
@@ -54,7 +63,10 @@ final class ClientProperties {
   FileHelper fileHelper;
 
   // Comms
+  private PushbackInputStream socketInput;
+  private SafeInputStreamReader reader;
   private JsonReader input;
+  private DataInputStream binaryInput;
   private OutputStream output;
 
   private final CustomProperties props;
@@ -74,8 +86,15 @@ final class ClientProperties {
   private String[] tlsProtocols;
   private String[] tlsCiphersuites;
   private SSLSocket sslSocket;
+  private boolean connectedToPki;
   private int bufferSize;
   private int socketTimeout;
+  private final boolean keepAlive;
+  private final boolean binaryProtocol;
+  private final int chunkSize;
+  private final int chunkRetries;
+  private HashHelper chunkHashHelper;
+  private final TLSSessionStats tlsStats;
 
   // PKI
   private final String pkiAddress;
@@ -97,6 +116,11 @@ final class ClientProperties {
     tlsCiphersuites = props.getStringArr(ClientProperty.TLS_CIPHERSUITES);
     bufferSize = props.getInt(ClientProperty.BUFFER_SIZE_MB);
     socketTimeout = props.getInt(ClientProperty.SOCKET_TIMEOUT);
+    keepAlive = props.getBool(ClientProperty.KEEP_ALIVE);
+    binaryProtocol = props.getBool(ClientProperty.BINARY_PROTOCOL);
+    chunkSize = props.getInt(ClientProperty.CHUNK_SIZE_KB) * 1024;
+    chunkRetries = props.getInt(ClientProperty.CHUNK_RETRIES);
+    tlsStats = new TLSSessionStats();
 
     // Set up file helper
     fileHelper = new FileHelper(props.getString(ClientProperty.OUTPUT_FOLDER));
@@ -132,6 +156,31 @@ final class ClientProperties {
     return (PrivateKey) ksHelper.getKey(clientPublicKeyName);
   }
 
+  boolean supportsChunks() {
+    return chunkHashHelper != null;
+  }
+
+  HashHelper getChunkHashHelper() {
+    return chunkHashHelper;
+  }
+
+  int getChunkSize() {
+    return chunkSize;
+  }
+
+  int getChunkRetries() {
+    return chunkRetries;
+  }
+
+  // In seconds, the server answers a wait request before our socket read times out
+  int getWaitTimeout() {
+    return Math.max(1, socketTimeout - 2);
+  }
+
+  TLSSessionStats getTLSStats() {
+    return tlsStats;
+  }
+
   PublicKey getServerPublicKey() {
     return serverPubKey;
   }
@@ -159,21 +208,54 @@ final class ClientProperties {
   }
 
   void sendRequest(JsonObject jsonObject) throws IOException {
-    output.write(GSON.toJson(jsonObject).getBytes());
+    if (binaryProtocol)
+      BinaryProtocol.writeFrame(output, jsonObject);
+    else
+      output.write(GSON.toJson(jsonObject).getBytes());
   }
 
   <T> T receiveRequest(Type type) throws ClientException {
+    return parseResponse(receiveResponse(false), type);
+  }
+
+  <T> T receiveRequestWithNonce(JsonObject requestData, Type type) throws ClientException {
+    return checkNonce(requestData, receiveRequest(type));
+  }
+
+  // Returns null if the server still has the version sent as ifNoneMatch
+  <T> T receiveRequestIfModified(JsonObject requestData, Type type) throws ClientException {
+    JsonObject jsonObject = receiveResponse(true);
+    GsonResponse response = parseResponse(jsonObject, GsonResponse.class);
+
+    if (response.getStatus().getCode() == HTTPStatus.NOT_MODIFIED.code()) {
+      checkNonce(requestData, parseResponse(jsonObject, NotModifiedResponse.class));
+      return null;
+    }
+
+    return checkNonce(requestData, parseResponse(jsonObject, type));
+  }
+
+  private JsonObject receiveResponse(boolean notModifiedExpected) throws ClientException {
     JsonObject jsonObject;
     GsonResponse response;
 
+    // The size limit applies to each response, not to the whole kept alive connection
+    reader.resetBytesRead();
+
     // Check if retrieved object is a GsonResponse as expected
     try {
-      jsonObject = GsonUtils.parseRequest(input);
+      jsonObject = binaryProtocol ? parseBinaryResponse() : GsonUtils.parseRequest(input);
       response = GSON.fromJson(jsonObject, GsonResponse.class);
-    } catch (JsonSyntaxException | InvalidFormatException e) {
+    } catch (JsonSyntaxException | InvalidFormatException | IOException e) {
+      // The stream can't be trusted anymore, so don't reuse this connection
+      abortConnection();
       throw new ClientException("Failed to parse response object. Probably corrupted");
     }
 
+    // Not modified is only an answer to requests with ifNoneMatch
+    if (notModifiedExpected && response.getStatus().getCode() == HTTPStatus.NOT_MODIFIED.code())
+      return jsonObject;
+
     // If there was an error (code != 200/OK), try to extract it
     if (response.getStatus().getCode() != HTTPStatus.OK.code()) {
       try {
@@ -188,7 +270,11 @@ final class ClientProperties {
       }
     }
 
-    // Return the request data as an OKResponse object
+    return jsonObject;
+  }
+
+  // Return the request data as an OKResponse object
+  private <T> T parseResponse(JsonObject jsonObject, Type type) throws ClientException {
     try {
       return GSON.fromJson(jsonObject, type);
     } catch (JsonSyntaxException e) {
@@ -196,10 +282,8 @@ final class ClientProperties {
     }
   }
 
-  <T> T receiveRequestWithNonce(JsonObject requestData, Type type) throws ClientException {
+  private <T> T checkNonce(JsonObject requestData, T response) throws ClientException {
     try {
-      T response = receiveRequest(type);
-
       if (!requestData.get("nonce").getAsString().equals(((OkResponseWithNonce) response).getNonce()))
         throw new ClientException("The nonce retrieved from the server does not match.");
 
@@ -209,6 +293,12 @@ final class ClientProperties {
     }
   }
 
+  // Requests without a response are still acknowledged, whatever the server keep-alive setting
+  void sendRequestWithoutResponse(JsonObject jsonObject) throws IOException, ClientException {
+    sendRequest(jsonObject);
+    receiveRequest(OKResponse.class);
+  }
+
   public <T> T fromJson(JsonObject jsonObject, Type type) {
     return GSON.fromJson(jsonObject, type);
   }
@@ -218,17 +308,30 @@ final class ClientProperties {
   }
 
   void closeConnection() throws IOException {
+    if (sslSocket == null)
+      return;
+
     input.close();
     output.close();
     sslSocket.close();
     sslSocket = null;
   }
 
+  // Ends the current request, keeping the connection open for the next one if keep-alive is on
+  void releaseConnection() throws IOException {
+    if (!keepAlive)
+      closeConnection();
+  }
+
   void startConnection() throws IOException {
     startConnection(false);
   }
 
   void startConnection(boolean pki) throws IOException {
+    // Reuse the previous connection if it is still usable
+    if (keepAlive && sslSocket != null && connectedToPki == pki && !isConnectionStale())
+      return;
+
     // check if previous connection was still on
     if (sslSocket != null) {
       input.close();
@@ -236,11 +339,13 @@ final class ClientProperties {
       sslSocket.close();
     }
 
-    // Create socket
-    if (pki)
-      sslSocket = (SSLSocket) sslSocketFactory.createSocket(pkiAddress, pkiPort);
-    else
-      sslSocket = (SSLSocket) sslSocketFactory.createSocket(serverAddress, serverPort);
+    connectedToPki = pki;
+
+    // Create socket, the host and port are what the cached session is looked up by
+    String address = pki ? pkiAddress : serverAddress;
+    int port = pki ? pkiPort : serverPort;
+
+    sslSocket = (SSLSocket) sslSocketFactory.createSocket(address, port);
 
     sslSocket.setSoTimeout(socketTimeout * 1000);
 
@@ -249,16 +354,72 @@ final class ClientProperties {
     sslSocket.setEnabledCipherSuites(tlsCiphersuites);
 
     // Start handshake and register input and output
+    long handshakeStart = System.currentTimeMillis();
     sslSocket.startHandshake();
+    tlsStats.record(sslSocket.getSession(), handshakeStart, address, port);
 
-    input = new JsonReader(new SafeInputStreamReader(sslSocket.getInputStream(), bufferSize));
+    // A byte read to check a kept alive connection is pushed back for the next response
+    socketInput = new PushbackInputStream(sslSocket.getInputStream(), 1);
+    reader = new SafeInputStreamReader(socketInput, bufferSize);
+    input = new JsonReader(reader);
+    binaryInput = new DataInputStream(socketInput);
     output = sslSocket.getOutputStream();
 
+    // Ask for binary frames for the rest of this connection
+    if (binaryProtocol)
+      BinaryProtocol.writePreamble(output);
+
     // Get server public key
     X509Certificate certificate = (X509Certificate) sslSocket.getSession().getPeerCertificates()[0];
     serverPubKey = certificate.getPublicKey();
   }
 
+  // The server closes idle connections, which can only be noticed by reading from the socket
+  private boolean isConnectionStale() {
+    if (sslSocket.isClosed())
+      return true;
+
+    try {
+      sslSocket.setSoTimeout(1);
+
+      int read = socketInput.read();
+
+      if (read == -1)
+        return true;
+
+      socketInput.unread(read);
+      return false;
+    } catch (SocketTimeoutException e) {
+      // Nothing to read, connection is still up
+      return false;
+    } catch (IOException e) {
+      return true;
+    } finally {
+      try {
+        sslSocket.setSoTimeout(socketTimeout * 1000);
+      } catch (SocketException e) {
+        // Socket is closed, will be replaced
+      }
+    }
+  }
+
+  private JsonObject parseBinaryResponse() throws IOException, InvalidFormatException {
+    JsonElement data = BinaryProtocol.readFrame(binaryInput, bufferSize);
+
+    if (data == null || !data.isJsonObject())
+      throw new InvalidFormatException();
+
+    return data.getAsJsonObject();
+  }
+
+  private void abortConnection() {
+    try {
+      closeConnection();
+    } catch (IOException e) {
+      sslSocket = null;
+    }
+  }
+
   void loadServerParams(ServerParameterMap map) throws GeneralSecurityException {
 
     // Load all the parameters and assign them
@@ -275,6 +436,12 @@ final class ClientProperties {
     // Create helpers from received params
     aeaHelper = new AEAHelper(pubKeyAlg, certSignAlg);
     dhHelper = new ClientDHHelper(dhAlg, dhHashAlg, dhKeySize, dhP, dhG);
+
+    // Servers that don't publish a hash algorithm don't support chunked attachments
+    String hashAlg = map.getParameter(ServerParameter.HASH_ALG);
+
+    if (hashAlg != null)
+      chunkHashHelper = new HashHelper(hashAlg);
   }
 
   Pair<Key, Key> getSharedKeys(int destinationId) throws PropertyException, NoSuchAlgorithmException, ClientException {
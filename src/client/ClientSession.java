@@ -5,6 +5,9 @@ import shared.utils.crypto.SEAHelper;
 
 import java.security.GeneralSecurityException;
 import java.security.KeyPair;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 class ClientSession {
   private final int id;
@@ -17,6 +20,18 @@ class ClientSession {
   MacHelper macHelper;
   SEAHelper seaHelper;
 
+  // Mailbox version of the last wait response, -1 before the first one
+  private long waitVersion;
+
+  // Listings already fetched, later ones only ask for what comes after the cursors
+  private int usersCursor;
+  private int unreadCursor;
+  private int messagesCursor;
+  private final TreeSet<Integer> unreadMessageIds;
+  // Received message ids and whether they were read
+  private final TreeMap<Integer, Boolean> receivedMessageIds;
+  private final TreeSet<Integer> sentMessageIds;
+
   ClientSession(String uuid, int id, String seaSpec, String macSpec, KeyPair dhSeaKeyPair, KeyPair dhMacKeyPair) throws GeneralSecurityException {
     this.uuid = uuid;
     this.id = id;
@@ -27,6 +42,15 @@ class ClientSession {
 
     seaHelper = new SEAHelper(seaSpec);
     macHelper = new MacHelper(macSpec);
+
+    waitVersion = -1;
+
+    usersCursor = 0;
+    unreadCursor = 0;
+    messagesCursor = 0;
+    unreadMessageIds = new TreeSet<>();
+    receivedMessageIds = new TreeMap<>();
+    sentMessageIds = new TreeSet<>();
   }
 
   public int getId() {
@@ -52,4 +76,68 @@ class ClientSession {
   public KeyPair getDhMacKeyPair() {
     return dhMacKeyPair;
   }
+
+  public long getWaitVersion() {
+    return waitVersion;
+  }
+
+  public void setWaitVersion(long waitVersion) {
+    this.waitVersion = waitVersion;
+  }
+
+  public int getUsersCursor() {
+    return usersCursor;
+  }
+
+  public void setUsersCursor(int usersCursor) {
+    this.usersCursor = usersCursor;
+  }
+
+  public int getUnreadCursor() {
+    return unreadCursor;
+  }
+
+  public int getMessagesCursor() {
+    return messagesCursor;
+  }
+
+  public void addUnreadMessages(ArrayList<Integer> messageIds, int cursor) {
+    unreadMessageIds.addAll(messageIds);
+    unreadCursor = cursor;
+  }
+
+  // Received ids are prefixed with "_" when read
+  public void addMessages(ArrayList<String> receivedIds, ArrayList<Integer> sentIds, int cursor) {
+    for (String receivedId : receivedIds) {
+      boolean read = receivedId.startsWith("_");
+      receivedMessageIds.put(Integer.parseInt(read ? receivedId.substring(1) : receivedId), read);
+    }
+
+    sentMessageIds.addAll(sentIds);
+    messagesCursor = cursor;
+  }
+
+  // Messages read from another client stay unread here until the next login
+  public void markRead(int messageId) {
+    unreadMessageIds.remove(messageId);
+
+    if (receivedMessageIds.containsKey(messageId))
+      receivedMessageIds.put(messageId, true);
+  }
+
+  public ArrayList<Integer> getUnreadMessageIds() {
+    return new ArrayList<>(unreadMessageIds);
+  }
+
+  public ArrayList<String> getReceivedMessageIds() {
+    ArrayList<String> messageIds = new ArrayList<>();
+
+    receivedMessageIds.forEach((messageId, read) -> messageIds.add((read ? "_" : "") + messageId));
+
+    return messageIds;
+  }
+
+  public ArrayList<Integer> getSentMessageIds() {
+    return new ArrayList<>(sentMessageIds);
+  }
 }
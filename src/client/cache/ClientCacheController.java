@@ -6,6 +6,7 @@ import java.util.Map.Entry;
 
 public final class ClientCacheController {
   private static final int MAX_UUID_ASSOCS = 15;
+  private static final int MAX_STATUS_ENTRIES = 15;
   private final long maxSize;
   private final long currentSize;
 
@@ -21,6 +22,9 @@ public final class ClientCacheController {
   // Associate known uuids to ids
   private final LinkedHashMap<String, Integer> uuidAssociations;
 
+  // Verified receipts of sent messages, revalidated with the server by version
+  private final LinkedHashMap<Integer, StatusCacheEntry> statusCache;
+
   // Very basic cache implementation that doesn't allow the
   // memory to get completely full of entries
   public ClientCacheController(long maxSize) {
@@ -33,6 +37,7 @@ public final class ClientCacheController {
     userCache = new HashMap<>();
     userCacheAccesses = new HashMap<>();
     uuidAssociations = new LinkedHashMap<>();
+    statusCache = new LinkedHashMap<>();
   }
 
   public void addMessage(int messageId, MessageCacheEntry message) {
@@ -101,6 +106,21 @@ public final class ClientCacheController {
     return null;
   }
 
+  public void addStatus(int messageId, StatusCacheEntry status) {
+    statusCache.remove(messageId);
+    statusCache.put(messageId, status);
+
+    // Same as uuids, remove the oldest one
+    if (statusCache.size() > MAX_STATUS_ENTRIES) {
+      int toRemove = statusCache.entrySet().iterator().next().getKey();
+      statusCache.remove(toRemove);
+    }
+  }
+
+  public StatusCacheEntry getStatus(int messageId) {
+    return statusCache.get(messageId);
+  }
+
   // Free up memory if needed recursively
   // Not the smartest algorithm. but a little bit
   // better than a bluescreen
@@ -0,0 +1,29 @@
+package client.cache;
+
+import shared.Pair;
+
+import java.util.ArrayList;
+
+public class StatusCacheEntry extends CacheEntry {
+  private final String version;
+  private final ArrayList<Pair<String, String>> results;
+
+  // Receipts of a sent message already verified, at the version the server sent
+  public StatusCacheEntry(String version, ArrayList<Pair<String, String>> results) {
+    this.version = version;
+    this.results = results;
+
+    // Get rough estimate of size
+    size = version.length();
+    for (Pair<String, String> result : results)
+      size += result.getA().length() + result.getB().length();
+  }
+
+  public String getVersion() {
+    return version;
+  }
+
+  public ArrayList<Pair<String, String>> getResults() {
+    return results;
+  }
+}
@@ -19,7 +19,13 @@ public enum ClientProperty implements ICustomProperty {
   SERVER_PORT("server_port", CustomPropertyType.INT),
   TLS_PROTOCOLS("tls_protocols", CustomPropertyType.STRING_ARRAY),
   TLS_CIPHERSUITES("tls_ciphersuites", CustomPropertyType.STRING_ARRAY),
+  TLS_SESSION_CACHE_SIZE("tls_session_cache_size", CustomPropertyType.INT),
+  TLS_SESSION_TIMEOUT("tls_session_timeout", CustomPropertyType.INT),
   BUFFER_SIZE_MB("buffer_size_megabytes", CustomPropertyType.INT),
+  KEEP_ALIVE("keep_alive", CustomPropertyType.BOOL),
+  BINARY_PROTOCOL("binary_protocol", CustomPropertyType.BOOL),
+  CHUNK_SIZE_KB("chunk_size_kilobytes", CustomPropertyType.INT),
+  CHUNK_RETRIES("chunk_retries", CustomPropertyType.INT),
 
   // Crypt
   SEA_SPEC("sea_spec", CustomPropertyType.STRING),
@@ -10,6 +10,8 @@ public enum ClientRequest {
   SEND("send", 1),
   RECV("recv", 1),
   STATUS("status", 1),
+  STATS("stats", 0),
+  WAIT("wait", 0),
   HELP("help", 0),
   EXIT("exit", 0);
 
@@ -4,15 +4,16 @@ import pki.db.PKIDatabaseDriver;
 import pki.props.PKIProperty;
 import shared.errors.properties.InvalidValueException;
 import shared.errors.properties.PropertyException;
+import shared.utils.AdmissionController;
+import shared.utils.ExecutorType;
+import shared.utils.db.ConnectionPool;
+import shared.utils.logging.AsyncLogHandler;
 import shared.utils.crypto.KSHelper;
 import shared.utils.properties.CustomProperties;
 
 import javax.net.ssl.*;
 import java.io.IOException;
 import java.security.SecureRandom;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
-import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,6 +26,7 @@ final class PKIServer {
 
     CustomProperties props = null;
     Logger logger = null;
+    AsyncLogHandler logHandler = null;
     boolean debugMode = false;
 
     try {
@@ -34,7 +36,25 @@ final class PKIServer {
       String logFile = props.getString(PKIProperty.LOG_LOC);
       logger = Logger.getLogger("PKI Logger");
       logger.setLevel(Level.ALL);
-      logger.addHandler(new FileHandler(logFile, true));
+
+      int logBufferSize = props.getInt(PKIProperty.LOG_BUFFER_SIZE);
+
+      if (logBufferSize <= 0)
+        throw new InvalidValueException(PKIProperty.LOG_BUFFER_SIZE.val());
+
+      AsyncLogHandler.OverflowPolicy logOverflowPolicy = AsyncLogHandler.OverflowPolicy.fromString(props.getString(PKIProperty.LOG_OVERFLOW_POLICY));
+
+      if (logOverflowPolicy == null)
+        throw new InvalidValueException(PKIProperty.LOG_OVERFLOW_POLICY.val());
+
+      // Requests only queue their records, a writer thread does the file I/O
+      AsyncLogHandler handler = new AsyncLogHandler(logFile, logBufferSize, logOverflowPolicy);
+      logger.addHandler(handler);
+      logger.setUseParentHandlers(false);
+
+      // Write what is still queued when the server exits
+      Runtime.getRuntime().addShutdownHook(new Thread(handler::close));
+      logHandler = handler;
 
       debugMode = props.getBool(PKIProperty.DEBUG);
     } catch (PropertyException e) {
@@ -52,7 +72,18 @@ final class PKIServer {
       if (!validateThreadCount(threadPoolSize))
         throw new InvalidValueException(PKIProperty.THREAD_POOL_SIZE.val());
 
-      Executor executor = Executors.newFixedThreadPool(threadPoolSize);
+      ExecutorType executorType = ExecutorType.fromString(props.getString(PKIProperty.EXECUTOR_TYPE));
+
+      if (executorType == null)
+        throw new InvalidValueException(PKIProperty.EXECUTOR_TYPE.val());
+
+      // Bounded admission, connections past the queue are turned away instead of waiting
+      int workQueueSize = props.getInt(PKIProperty.WORK_QUEUE_SIZE);
+
+      if (workQueueSize < 0)
+        throw new InvalidValueException(PKIProperty.WORK_QUEUE_SIZE.val());
+
+      AdmissionController admission = new AdmissionController(executorType.build(threadPoolSize), threadPoolSize, workQueueSize);
 
       // Load Keystore
       KSHelper ksHelper = new KSHelper(
@@ -71,6 +102,10 @@ final class PKIServer {
       SSLContext sslContext = SSLContext.getInstance("TLS");
       sslContext.init(keyManagerFactory.getKeyManagers(), null, new SecureRandom());
 
+      // Session cache allows abbreviated handshakes from returning servers and clients
+      sslContext.getServerSessionContext().setSessionCacheSize(props.getInt(PKIProperty.TLS_SESSION_CACHE_SIZE));
+      sslContext.getServerSessionContext().setSessionTimeout(props.getInt(PKIProperty.TLS_SESSION_TIMEOUT));
+
       SSLServerSocketFactory ssf = sslContext.getServerSocketFactory();
       SSLServerSocket serverSocket = (SSLServerSocket) ssf.createServerSocket(port);
 
@@ -86,15 +121,25 @@ final class PKIServer {
       System.out.print("Started pki server on port " + port + "\n");
 
       // Create db and initiate properties
-      PKIDatabaseDriver db = new PKIDatabaseDriver(props.getString(PKIProperty.DATABASE_LOC));
+      PKIDatabaseDriver db = new PKIDatabaseDriver(ConnectionPool.fromProperties(props, props.getString(PKIProperty.DATABASE_LOC)));
       PKIServerProperties pkiServerProps = new PKIServerProperties(props, db, logger, ksHelper);
 
+      pkiServerProps.METRICS.gauge("admission.admitted", admission::getAdmitted);
+      pkiServerProps.METRICS.gauge("admission.rejected", admission::getRejected);
+      pkiServerProps.METRICS.gauge("admission.queue_wait_avg_ms", admission::getAverageQueueWaitMillis);
+      pkiServerProps.METRICS.gauge("admission.queue_wait_max_ms", admission::getMaxQueueWaitMillis);
+
+      if (logHandler != null)
+        pkiServerProps.METRICS.gauge("log.dropped", logHandler::getDropped);
+
       // Client serving loop
       SSLSocket sslClient;
 
       while (true) {
         sslClient = (SSLSocket) serverSocket.accept();
-        executor.execute(new Thread(new PKIServerResources(sslClient, pkiServerProps)));
+
+        if (!admission.tryExecute(new PKIServerResources(sslClient, pkiServerProps)))
+          rejectConnection(sslClient, admission, logger);
       }
     } catch (Exception e) {
       handleException(e, debugMode, logger);
@@ -124,10 +169,20 @@ final class PKIServer {
       e.printStackTrace();
   }
 
-  private static boolean validateThreadCount(int threadCount) {
-    int totalThreads = Runtime.getRuntime().availableProcessors();
+  // Closed before the handshake, answering would cost the overloaded workers a full TLS handshake
+  private static void rejectConnection(SSLSocket client, AdmissionController admission, Logger logger) {
+    try {
+      client.setSoLinger(true, 0);
+      client.close();
+    } catch (IOException e) {
+      // Already closed
+    }
 
-    // Keep threads between 0 < threads < CPUTOTAL
-    return totalThreads > threadCount && threadCount > 0;
+    logger.log(Level.FINE, "Rejected connection, work queue is full - " + admission);
+  }
+
+  private static boolean validateThreadCount(int threadCount) {
+    // Workers mostly wait on TLS and the DB, so they are not bound by the CPU count
+    return threadCount > 0;
   }
 }
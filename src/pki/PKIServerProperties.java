@@ -3,13 +3,18 @@ package pki;
 import com.google.gson.Gson;
 import pki.db.PKIDatabaseDriver;
 import pki.props.PKIProperty;
+import shared.errors.properties.InvalidValueException;
 import shared.errors.properties.PropertyException;
 import shared.utils.GsonUtils;
 import shared.utils.crypto.*;
+import shared.utils.crypto.util.TLSSessionStats;
+import shared.utils.metrics.MetricsRegistry;
 import shared.utils.properties.CustomProperties;
 
+import java.nio.file.Paths;
 import java.security.*;
 import java.security.cert.X509Certificate;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 final class PKIServerProperties {
@@ -24,6 +29,12 @@ final class PKIServerProperties {
 
   PKIDatabaseDriver DB;
 
+  // Serializes writes without pinning virtual threads like synchronized would
+  final ReentrantLock DB_WRITE_LOCK;
+
+  final TLSSessionStats TLS_STATS;
+  final MetricsRegistry METRICS;
+
   PublicKey PUB_KEY;
   X509Certificate CERT;
   int CERT_VALIDITY;
@@ -37,9 +48,24 @@ final class PKIServerProperties {
     this.logger = logger;
     DEBUG_MODE = props.getBool(PKIProperty.DEBUG);
     DB = db;
+    DB_WRITE_LOCK = new ReentrantLock();
+    TLS_STATS = new TLSSessionStats();
     b64Helper = new B64Helper();
     GSON = GsonUtils.buildGsonInstance();
 
+    // Runtime stats, dumped to a file since PKI clients are not authenticated
+    METRICS = new MetricsRegistry();
+    METRICS.gauge("tls.full_handshakes", TLS_STATS::getFullHandshakes);
+    METRICS.gauge("tls.resumed_handshakes", TLS_STATS::getResumedHandshakes);
+
+    int statsDumpInterval = props.getInt(PKIProperty.STATS_DUMP_INTERVAL);
+
+    if (statsDumpInterval < 0)
+      throw new InvalidValueException(PKIProperty.STATS_DUMP_INTERVAL.val());
+
+    if (statsDumpInterval > 0)
+      METRICS.startDump(Paths.get(props.getString(PKIProperty.STATS_DUMP_LOC)), statsDumpInterval, GSON, logger);
+
     token = props.getString(PKIProperty.TOKEN_VALUE);
 
     // Initialize hash helper
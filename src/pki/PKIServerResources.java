@@ -24,9 +24,11 @@ import shared.response.GsonResponse;
 import shared.response.OKResponse;
 import shared.utils.GsonUtils;
 import shared.response.ErrorResponse;
+import shared.errors.request.InvalidFormatException;
 import shared.errors.request.InvalidRouteException;
 import shared.errors.request.RequestException;
 import shared.http.HTTPStatus;
+import shared.utils.BinaryProtocol;
 import shared.utils.SafeInputStreamReader;
 
 import javax.net.ssl.SSLSocket;
@@ -34,10 +36,22 @@ import javax.net.ssl.SSLSocket;
 import static org.bouncycastle.asn1.x500.style.RFC4519Style.serialNumber;
 
 final class PKIServerResources implements Runnable {
+  // Metric names
+  private static final String ROUTE_METRIC = "route.";
+  private static final String STATUS_METRIC = "status.";
+  private static final String SIGN_PHASE = "phase.csr_sign";
+  private static final String VERIFY_PHASE = "phase.cert_verify";
+  private static final String DB_PHASE = "phase.db";
+  private static final String SERIALIZATION_PHASE = "phase.serialization";
+
   private final SSLSocket client;
+  private PushbackInputStream rawInput;
   private com.google.gson.stream.JsonReader input;
   private OutputStream output;
 
+  // Set when the client negotiated binary frames instead of JSON
+  private boolean binary;
+
   private final PKIServerProperties props;
 
   PKIServerResources(SSLSocket client, PKIServerProperties props) {
@@ -48,7 +62,8 @@ final class PKIServerResources implements Runnable {
       // We should not allow large transfers in order to avoid DoS
       int maxBufferSizeInMB = 1;
 
-      input = new JsonReader(new SafeInputStreamReader(client.getInputStream(), maxBufferSizeInMB));
+      rawInput = new PushbackInputStream(client.getInputStream(), 1);
+      input = new JsonReader(new SafeInputStreamReader(rawInput, maxBufferSizeInMB));
       output = client.getOutputStream();
     } catch (Exception e) {
       handleException(e);
@@ -57,7 +72,20 @@ final class PKIServerResources implements Runnable {
 
   public void run() {
     try {
-      JsonObject parsedRequest = GsonUtils.parseRequest(input);
+      // The handshake runs when the session is first requested
+      long handshakeStart = System.currentTimeMillis();
+      boolean resumed = props.TLS_STATS.record(client.getSession(), handshakeStart);
+      props.logger.log(Level.FINE, "TLS handshake " + (resumed ? "resumed" : "full") + " - " + props.TLS_STATS);
+
+      JsonObject parsedRequest;
+
+      // Clients that want binary frames say so before their request
+      binary = BinaryProtocol.readPreamble(rawInput);
+
+      if (binary)
+        parsedRequest = parseBinaryRequest();
+      else
+        parsedRequest = GsonUtils.parseRequest(input);
 
       handleRequest(parsedRequest);
 
@@ -69,8 +97,11 @@ final class PKIServerResources implements Runnable {
   }
 
   private void handleRequest(JsonObject requestData) throws RequestException, IOException, GeneralSecurityException, CriticalDatabaseException, OperatorException {
+    String requestType = null;
+    long start = System.nanoTime();
+
     try {
-      String requestType = GsonUtils.getString(requestData, "type");
+      requestType = GsonUtils.getString(requestData, "type");
 
       switch (requestType) {
         case "sign":
@@ -83,15 +114,22 @@ final class PKIServerResources implements Runnable {
           revoke(requestData);
           break;
         default:
+          requestType = null;
           throw new InvalidRouteException();
       }
     } catch (ClassCastException | IllegalStateException e) {
       throw new InvalidRouteException();
+    } finally {
+      // Unknown routes are only counted by their status
+      if (requestType != null) {
+        props.METRICS.increment(ROUTE_METRIC + requestType);
+        props.METRICS.recordSince(ROUTE_METRIC + requestType, start);
+      }
     }
   }
 
   // Register
-  private synchronized void sign(JsonObject requestData) throws RequestException, GeneralSecurityException, IOException, OperatorCreationException, CriticalDatabaseException {
+  private void sign(JsonObject requestData) throws RequestException, GeneralSecurityException, IOException, OperatorCreationException, CriticalDatabaseException {
     // token validity should be verified but is out of work scope.
     // users could purchase a valid token to certify one certificate
     String token = GsonUtils.getString(requestData, "token");
@@ -114,10 +152,14 @@ final class PKIServerResources implements Runnable {
 
     // Attempt to create signed CSR
     X509Certificate signedCert;
+    long signStart = System.nanoTime();
+
     try {
       signedCert = props.aeaHelper.signCSR(certRequest, props.CERT, props.privateKey(), props.CERT_VALIDITY);
     } catch (PKCSException e) {
       throw new CustomRequestException("CSR signature is invalid", HTTPStatus.BAD_REQUEST);
+    } finally {
+      props.METRICS.recordSince(SIGN_PHASE, signStart);
     }
 
     // Get cert SN and hash
@@ -126,10 +168,15 @@ final class PKIServerResources implements Runnable {
     String certSN = props.aeaHelper.getCertSN(signedCert);
 
     // Attempt to register CSR
+    long dbStart = System.nanoTime();
+    props.DB_WRITE_LOCK.lock();
     try {
       props.DB.register(certSN, certHashEncoded);
     } catch (DatabaseException e) {
       throw new CustomRequestException("Duplicate certificate serial number", HTTPStatus.BAD_REQUEST);
+    } finally {
+      props.DB_WRITE_LOCK.unlock();
+      props.METRICS.recordSince(DB_PHASE, dbStart);
     }
 
     // encode signed certificate
@@ -161,10 +208,14 @@ final class PKIServerResources implements Runnable {
 
     // Check cert belongs to public key
     try {
+      long verifyStart = System.nanoTime();
       certificate.verify(props.PUB_KEY);
+      props.METRICS.recordSince(VERIFY_PHASE, verifyStart);
 
       // Look for certificate in Revocation DB
+      long dbStart = System.nanoTime();
       boolean valid = props.DB.isValid(certSN, certHash);
+      props.METRICS.recordSince(DB_PHASE, dbStart);
 
       send(new ValidateResponse(valid));
 
@@ -177,7 +228,7 @@ final class PKIServerResources implements Runnable {
   }
 
   // Revoke
-  private synchronized void revoke(JsonObject requestData) throws RequestException, IOException, CriticalDatabaseException {
+  private void revoke(JsonObject requestData) throws RequestException, IOException, CriticalDatabaseException {
     // token validity should be verified but is out of work scope.
     // this token would be issued to an admin so he could revoke certificates at will
     String token = GsonUtils.getString(requestData, "token");
@@ -189,11 +240,16 @@ final class PKIServerResources implements Runnable {
     // Get certificate and public key
     String serialNumber = GsonUtils.getString(requestData, "serialNumber");
 
+    long dbStart = System.nanoTime();
+    props.DB_WRITE_LOCK.lock();
     try {
       props.DB.revoke(serialNumber);
       props.logger.log(Level.WARNING, "Certificate " + serialNumber + " revoked");
     } catch (DatabaseException e) {
       throw new CustomRequestException("Certificate not found.", HTTPStatus.NOT_FOUND);
+    } finally {
+      props.DB_WRITE_LOCK.unlock();
+      props.METRICS.recordSince(DB_PHASE, dbStart);
     }
 
     send(new OKResponse());
@@ -204,6 +260,16 @@ final class PKIServerResources implements Runnable {
   /*
     UTILS
   */
+  private JsonObject parseBinaryRequest() throws IOException, InvalidFormatException {
+    // We should not allow large transfers in order to avoid DoS
+    JsonElement data = BinaryProtocol.readFrame(new DataInputStream(rawInput), 1);
+
+    if (data == null || !data.isJsonObject())
+      throw new InvalidFormatException();
+
+    return data.getAsJsonObject();
+  }
+
   private void handleException(Exception exception) {
     ErrorResponse response;
 
@@ -234,6 +300,20 @@ final class PKIServerResources implements Runnable {
   }
 
   private void send(GsonResponse response) throws IOException {
-    output.write(response.json(props.GSON).getBytes(StandardCharsets.UTF_8));
+    if (response instanceof ErrorResponse)
+      props.METRICS.increment(STATUS_METRIC + response.getStatus().getCode());
+
+    long start = System.nanoTime();
+    byte[] bytes;
+
+    if (binary)
+      bytes = BinaryProtocol.encodeFrame(props.GSON.toJsonTree(response));
+    else
+      bytes = response.json(props.GSON).getBytes(StandardCharsets.UTF_8);
+
+    props.METRICS.recordSince(SERIALIZATION_PHASE, start);
+
+    // Single write so the response goes out in as few TLS records as possible
+    output.write(bytes);
   }
 }
\ No newline at end of file
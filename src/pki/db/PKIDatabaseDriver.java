@@ -1,7 +1,8 @@
 package pki.db;
 
-import org.sqlite.JDBC;
 import shared.errors.db.*;
+import shared.utils.db.ConnectionPool;
+import shared.utils.db.PooledConnection;
 
 import java.sql.*;
 
@@ -9,26 +10,18 @@ public final class PKIDatabaseDriver {
   private static final int ERR_UNIQUE_CONSTRAINT = 19;
   private static final int ERR_NOT_FOUND = 12;
 
-  private Connection connection;
+  private final ConnectionPool pool;
 
-  public PKIDatabaseDriver(String path) throws CriticalDatabaseException {
-    // Connect to file
-    connection = connect(path);
+  public PKIDatabaseDriver(ConnectionPool pool) throws CriticalDatabaseException {
+    this.pool = pool;
 
     // Create table if it does not exist
     createTables();
   }
 
-  private Connection connect(String path) throws CriticalDatabaseException {
-    try {
-      DriverManager.registerDriver(new JDBC());
-      return DriverManager.getConnection("jdbc:sqlite:" + path);
-    } catch (SQLException e) {
-      throw new CriticalDatabaseException(e);
-    }
-  }
-
   private void createTables() throws CriticalDatabaseException {
+    PooledConnection connection = pool.acquireWriter();
+
     try {
       String query =
           "CREATE TABLE IF NOT EXISTS entries (" +
@@ -37,17 +30,23 @@ public final class PKIDatabaseDriver {
               "revoked         INTEGER NOT NULL DEFAULT 0 " +
               ");";
 
-      connection.createStatement().execute(query);
+      connection.execute(query);
     } catch (SQLException e) {
       throw new CriticalDatabaseException(e);
+    } finally {
+      release(connection);
     }
   }
 
   public void register(String certSN, String certHash) throws DatabaseException, CriticalDatabaseException {
+    PooledConnection connection = null;
+
     try {
+      connection = pool.acquireWriter();
+
       String insertQuery = "INSERT INTO entries (cert_sn, cert_hash) VALUES (?, ?);";
 
-      PreparedStatement ps = connection.prepareStatement(insertQuery);
+      PreparedStatement ps = connection.prepare(insertQuery);
       ps.setString(1, certSN);
       ps.setString(2, certHash);
 
@@ -57,30 +56,45 @@ public final class PKIDatabaseDriver {
         throw new DuplicateEntryException();
 
       throw new CriticalDatabaseException(e);
+    } finally {
+      release(connection);
     }
   }
 
   public boolean isValid(String certSN, String certHash) throws CriticalDatabaseException {
+    PooledConnection connection = null;
+
     try {
+      connection = pool.acquireReader();
+
       String selectUser = "SELECT * FROM entries WHERE cert_sn = ? AND cert_hash = ? AND revoked = 0;";
 
-      PreparedStatement ps = connection.prepareStatement(selectUser);
+      PreparedStatement ps = connection.prepare(selectUser);
       ps.setString(1, certSN);
       ps.setString(2, certHash);
 
-      ResultSet rs = ps.executeQuery();
+      ResultSet rs = connection.query(ps);
+      boolean valid = rs.next();
+
+      rs.close();
 
-      return rs.next();
+      return valid;
     } catch (SQLException e) {
       throw new CriticalDatabaseException(e);
+    } finally {
+      release(connection);
     }
   }
 
   public void revoke(String cert_sn) throws DatabaseException, CriticalDatabaseException {
+    PooledConnection connection = null;
+
     try {
+      connection = pool.acquireWriter();
+
       String selectUser = "UPDATE entries SET revoked = 1 WHERE cert_sn = ?;";
 
-      PreparedStatement ps = connection.prepareStatement(selectUser);
+      PreparedStatement ps = connection.prepare(selectUser);
       ps.setString(1, cert_sn);
 
       int updated = ps.executeUpdate();
@@ -88,6 +102,19 @@ public final class PKIDatabaseDriver {
       if (updated == 0)
         throw new EntryNotFoundException();
 
+    } catch (SQLException e) {
+      throw new CriticalDatabaseException(e);
+    } finally {
+      release(connection);
+    }
+  }
+
+  /*
+    UTILS
+  */
+  private void release(PooledConnection connection) throws CriticalDatabaseException {
+    try {
+      pool.release(connection);
     } catch (SQLException e) {
       throw new CriticalDatabaseException(e);
     }
@@ -9,13 +9,21 @@ public enum PKIProperty implements ICustomProperty {
   // System
   DEBUG("debug", CustomPropertyType.BOOL),
   LOG_LOC("log_location", CustomPropertyType.STRING),
+  LOG_BUFFER_SIZE("log_buffer_size", CustomPropertyType.INT),
+  LOG_OVERFLOW_POLICY("log_overflow_policy", CustomPropertyType.STRING),
   THREAD_POOL_SIZE("thread_pool_size", CustomPropertyType.INT),
+  WORK_QUEUE_SIZE("work_queue_size", CustomPropertyType.INT),
+  EXECUTOR_TYPE("executor_type", CustomPropertyType.STRING),
   DATABASE_LOC("database_location", CustomPropertyType.STRING),
+  STATS_DUMP_LOC("stats_dump_location", CustomPropertyType.STRING),
+  STATS_DUMP_INTERVAL("stats_dump_interval", CustomPropertyType.INT),
 
   // Network,
   PORT("port", CustomPropertyType.INT),
   TLS_CIPHERSUITES("tls_ciphersuites", CustomPropertyType.STRING_ARRAY),
   TLS_PROTOCOLS("tls_protocols", CustomPropertyType.STRING_ARRAY),
+  TLS_SESSION_CACHE_SIZE("tls_session_cache_size", CustomPropertyType.INT),
+  TLS_SESSION_TIMEOUT("tls_session_timeout", CustomPropertyType.INT),
 
   // Crypt
   PROVIDER("provider", CustomPropertyType.STRING),
@@ -0,0 +1,214 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+// Wakes wait requests when a message or receipt for their user is stored.
+// Every event takes the next version of one sequence and the last ones are kept in a bounded log,
+// waiters pass the last version they saw so nothing that happened between two wait requests is missed.
+// Waiters are callbacks instead of parked threads, and a user only has an entry while someone waits.
+final class MailboxNotifier {
+  // Events kept for waiters that are behind, the ones further behind are woken right away
+  private static final int MAX_EVENTS = 4096;
+
+  // Locks instead of monitors so virtual threads never pin their carrier
+  private final ReentrantLock lock;
+
+  // Log of the last events, by version. The message id of a receipt or -1 for a new message
+  private final int[] eventUsers;
+  private final int[] eventMessages;
+  private long version;
+
+  private final HashMap<Integer, ArrayList<Waiter>> waiters;
+  private final ScheduledThreadPoolExecutor timer;
+
+  MailboxNotifier() {
+    lock = new ReentrantLock();
+
+    eventUsers = new int[MAX_EVENTS];
+    eventMessages = new int[MAX_EVENTS];
+    version = 0;
+
+    waiters = new HashMap<>();
+
+    timer = new ScheduledThreadPoolExecutor(1, task -> {
+      Thread thread = new Thread(task, "wait-timer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    timer.setRemoveOnCancelPolicy(true);
+  }
+
+  void messageArrived(int receiverId) {
+    publish(receiverId, -1);
+  }
+
+  // The message sender learns its message was read
+  void receiptArrived(int senderId, int messageId) {
+    publish(senderId, messageId);
+  }
+
+  long getVersion() {
+    lock.lock();
+    try {
+      return version;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Calls the listener once, when something happens to the user after the given version or with
+  // what is current when the timeout passes. Right away, from this thread, if something already did.
+  // Otherwise from the thread that stored the event or the timer, so listeners must not block
+  void watch(int userId, long seenVersion, long timeoutInMillis, Consumer<Change> listener) {
+    Change change;
+
+    lock.lock();
+    try {
+      change = changeSince(userId, seenVersion);
+
+      if (change == null) {
+        Waiter waiter = new Waiter(seenVersion, listener);
+
+        waiters.computeIfAbsent(userId, key -> new ArrayList<>()).add(waiter);
+        waiter.timeout = timer.schedule(() -> expire(userId, waiter), timeoutInMillis, TimeUnit.MILLISECONDS);
+        return;
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    listener.accept(change);
+  }
+
+  int getWaiting() {
+    lock.lock();
+    try {
+      int waiting = 0;
+      for (ArrayList<Waiter> userWaiters : waiters.values())
+        waiting += userWaiters.size();
+
+      return waiting;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /*
+    UTILS
+  */
+  private void publish(int userId, int receiptMessageId) {
+    ArrayList<Waiter> woken;
+    ArrayList<Change> changes = new ArrayList<>();
+
+    lock.lock();
+    try {
+      version++;
+
+      int index = (int) (version % MAX_EVENTS);
+      eventUsers[index] = userId;
+      eventMessages[index] = receiptMessageId;
+
+      // The user entry goes with its last waiter
+      woken = waiters.remove(userId);
+
+      if (woken != null) {
+        for (Waiter waiter : woken)
+          changes.add(changeSince(userId, waiter.seenVersion));
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    if (woken == null)
+      return;
+
+    for (int i = 0; i < woken.size(); i++) {
+      woken.get(i).timeout.cancel(false);
+      woken.get(i).listener.accept(changes.get(i));
+    }
+  }
+
+  private void expire(int userId, Waiter waiter) {
+    Change change;
+
+    lock.lock();
+    try {
+      ArrayList<Waiter> userWaiters = waiters.get(userId);
+
+      // Already woken by an event
+      if (userWaiters == null || !userWaiters.remove(waiter))
+        return;
+
+      if (userWaiters.isEmpty())
+        waiters.remove(userId);
+
+      // Nothing happened to the user up to the current version
+      change = new Change(version, new ArrayList<>());
+    } finally {
+      lock.unlock();
+    }
+
+    waiter.listener.accept(change);
+  }
+
+  // Null if nothing happened to the user after the given version. Called with the lock held
+  private Change changeSince(int userId, long seenVersion) {
+    // Versions from before a server restart are ahead of ours, the ones older than the log may have missed events
+    boolean changed = seenVersion > version || seenVersion < version - MAX_EVENTS;
+    ArrayList<Integer> readMessageIds = new ArrayList<>();
+
+    long first = Math.max(1, Math.max(seenVersion + 1, version - MAX_EVENTS + 1));
+
+    for (long logged = first; logged <= version; logged++) {
+      int index = (int) (logged % MAX_EVENTS);
+
+      if (eventUsers[index] != userId)
+        continue;
+
+      changed = true;
+
+      if (eventMessages[index] >= 0)
+        readMessageIds.add(eventMessages[index]);
+    }
+
+    return changed ? new Change(version, readMessageIds) : null;
+  }
+
+  // What a waiter is told, the version to wait from next and the messages of the user that were read
+  static final class Change {
+    private final long version;
+    private final ArrayList<Integer> readMessageIds;
+
+    private Change(long version, ArrayList<Integer> readMessageIds) {
+      this.version = version;
+      this.readMessageIds = readMessageIds;
+    }
+
+    long getVersion() {
+      return version;
+    }
+
+    ArrayList<Integer> getReadMessageIds() {
+      return readMessageIds;
+    }
+  }
+
+  private static final class Waiter {
+    private final long seenVersion;
+    private final Consumer<Change> listener;
+
+    // Set before the lock is released, so whoever removes the waiter sees it
+    private ScheduledFuture<?> timeout;
+
+    private Waiter(long seenVersion, Consumer<Change> listener) {
+      this.seenVersion = seenVersion;
+      this.listener = listener;
+    }
+  }
+}
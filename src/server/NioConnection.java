@@ -0,0 +1,331 @@
+package server;
+
+import server.request.JsonFrameDecoder;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// State of one client connection of the non-blocking front end.
+// The SSLEngine and buffers are only touched by the selector thread,
+// workers hand back responses through the responses queue.
+final class NioConnection {
+  private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+  // Stop reading from clients that pipeline too many requests
+  private static final int MAX_QUEUED_REQUESTS = 16;
+
+  private final NioServer server;
+  private final SocketChannel channel;
+  private final SelectionKey key;
+  private final SSLEngine engine;
+  private final JsonFrameDecoder decoder;
+
+  private ByteBuffer netIn;
+  private ByteBuffer netOut;
+  private ByteBuffer appIn;
+
+  // Selector thread only
+  private final ArrayDeque<byte[]> requests;
+  private ByteBuffer currentResponse;
+  private boolean handshakeDone;
+  private final long handshakeStart;
+  private boolean closed;
+
+  // Shared with workers
+  private final ConcurrentLinkedQueue<ByteBuffer> responses;
+  private volatile boolean taskRunning;
+  private volatile boolean requestInFlight;
+  private volatile boolean closeAfterResponses;
+  private volatile long lastActivity;
+
+  private X509Certificate clientCert;
+  private volatile boolean certificateVerified;
+
+  NioConnection(NioServer server, SocketChannel channel, SelectionKey key, SSLEngine engine, int maxRequestSizeInMB) {
+    this.server = server;
+    this.channel = channel;
+    this.key = key;
+    this.engine = engine;
+
+    decoder = new JsonFrameDecoder(maxRequestSizeInMB);
+    requests = new ArrayDeque<>();
+    responses = new ConcurrentLinkedQueue<>();
+
+    SSLSession session = engine.getSession();
+    netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+    netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+    appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+
+    lastActivity = System.currentTimeMillis();
+    handshakeStart = lastActivity;
+  }
+
+  /*
+    Selector thread
+  */
+  void onReadable() {
+    try {
+      int read = channel.read(netIn);
+
+      if (read == -1) {
+        try {
+          engine.closeInbound();
+        } catch (SSLException e) {
+          // Client did not send close_notify
+        }
+
+        close();
+        return;
+      }
+
+      lastActivity = System.currentTimeMillis();
+    } catch (IOException e) {
+      close();
+      return;
+    }
+
+    process();
+  }
+
+  // Drives the engine as far as possible without blocking
+  void process() {
+    if (closed || taskRunning)
+      return;
+
+    try {
+      boolean progressed;
+
+      do {
+        if (!flush())
+          break;
+
+        HandshakeStatus status = engine.getHandshakeStatus();
+
+        if (status == HandshakeStatus.NEED_TASK) {
+          runDelegatedTasks();
+          return;
+        }
+
+        progressed = false;
+
+        if (status == HandshakeStatus.NEED_WRAP || (handshakeDone && hasResponseToWrap()))
+          progressed = wrap();
+
+        if (status != HandshakeStatus.NEED_WRAP && unwrap())
+          progressed = true;
+      } while (progressed && !closed);
+
+      if (closed)
+        return;
+
+      // Everything was sent, including close_notify
+      if (engine.isOutboundDone() && netOut.position() == 0) {
+        close();
+        return;
+      }
+
+      dispatchNextRequest();
+      updateInterest();
+    } catch (IOException e) {
+      close();
+    }
+  }
+
+  boolean isIdle(long now, long timeout) {
+    return !requestInFlight && !taskRunning && now - lastActivity > timeout;
+  }
+
+  void close() {
+    if (closed)
+      return;
+
+    closed = true;
+    key.cancel();
+
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // Already closed
+    }
+  }
+
+  /*
+    Workers
+  */
+  X509Certificate getClientCertificate() {
+    return clientCert;
+  }
+
+  boolean isBinary() {
+    return decoder.isBinary();
+  }
+
+  boolean isCertificateVerified() {
+    return certificateVerified;
+  }
+
+  void complete(byte[] response, boolean keepOpen) {
+    if (keepOpen)
+      certificateVerified = true;
+    else
+      closeAfterResponses = true;
+
+    responses.add(ByteBuffer.wrap(response));
+    requestInFlight = false;
+    lastActivity = System.currentTimeMillis();
+
+    server.wake(this);
+  }
+
+  /*
+    Utils
+  */
+  private boolean hasResponseToWrap() {
+    if (currentResponse == null)
+      currentResponse = responses.poll();
+
+    return currentResponse != null || (closeAfterResponses && !requestInFlight && !engine.isOutboundDone());
+  }
+
+  private boolean wrap() throws IOException {
+    ByteBuffer source = EMPTY;
+
+    if (handshakeDone && engine.getHandshakeStatus() != HandshakeStatus.NEED_WRAP) {
+      if (currentResponse != null)
+        source = currentResponse;
+      else
+        engine.closeOutbound(); // Last response was sent and the connection is not kept alive
+    }
+
+    SSLEngineResult result = engine.wrap(source, netOut);
+    checkHandshakeFinished(result);
+
+    switch (result.getStatus()) {
+      case BUFFER_OVERFLOW:
+        netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+        return true;
+      case CLOSED:
+        return result.bytesProduced() > 0;
+      default:
+        break;
+    }
+
+    if (currentResponse != null && !currentResponse.hasRemaining())
+      currentResponse = null;
+
+    return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+  }
+
+  private boolean unwrap() throws IOException {
+    if (netIn.position() == 0)
+      return false;
+
+    netIn.flip();
+    SSLEngineResult result = engine.unwrap(netIn, appIn);
+    netIn.compact();
+
+    checkHandshakeFinished(result);
+
+    switch (result.getStatus()) {
+      case BUFFER_OVERFLOW:
+        appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+        return true;
+      case BUFFER_UNDERFLOW:
+        // Wait for the rest of the record, making room for it if needed
+        if (!netIn.hasRemaining())
+          netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+        return false;
+      case CLOSED:
+        engine.closeOutbound();
+        return true;
+      default:
+        break;
+    }
+
+    if (appIn.position() > 0) {
+      appIn.flip();
+      requests.addAll(decoder.feed(appIn));
+      appIn.clear();
+    }
+
+    return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+  }
+
+  private void checkHandshakeFinished(SSLEngineResult result) throws SSLException {
+    if (result.getHandshakeStatus() != HandshakeStatus.FINISHED || handshakeDone)
+      return;
+
+    handshakeDone = true;
+
+    // Mutual authentication is required to identify the client
+    clientCert = (X509Certificate) engine.getSession().getPeerCertificates()[0];
+
+    server.recordHandshake(engine.getSession(), handshakeStart);
+  }
+
+  // Returns true if there is nothing left to write
+  private boolean flush() throws IOException {
+    if (netOut.position() == 0)
+      return true;
+
+    netOut.flip();
+    channel.write(netOut);
+    netOut.compact();
+
+    return netOut.position() == 0;
+  }
+
+  private void runDelegatedTasks() {
+    taskRunning = true;
+    key.interestOps(0);
+
+    // Handshake tasks do the expensive key operations, keep them off the selector thread
+    server.execute(() -> {
+      Runnable task;
+      while ((task = engine.getDelegatedTask()) != null)
+        task.run();
+
+      taskRunning = false;
+      server.wake(this);
+    });
+  }
+
+  private void dispatchNextRequest() {
+    if (!handshakeDone || requestInFlight || closeAfterResponses || requests.isEmpty())
+      return;
+
+    requestInFlight = true;
+    server.dispatch(this, requests.poll());
+  }
+
+  private void updateInterest() {
+    int ops = 0;
+
+    if (netOut.position() > 0)
+      ops |= SelectionKey.OP_WRITE;
+
+    if (requests.size() < MAX_QUEUED_REQUESTS && !closeAfterResponses)
+      ops |= SelectionKey.OP_READ;
+
+    key.interestOps(ops);
+  }
+
+  private static ByteBuffer enlarge(ByteBuffer buffer, int minSize) {
+    ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(minSize, buffer.capacity() * 2));
+
+    buffer.flip();
+    newBuffer.put(buffer);
+
+    return newBuffer;
+  }
+}
@@ -0,0 +1,173 @@
+package server;
+
+import shared.http.HTTPStatus;
+import shared.utils.AdmissionController;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+
+// Non-blocking front end. A single selector thread does all the socket and TLS record work,
+// workers are only used for handshake tasks and for serving complete requests.
+final class NioServer {
+  private static final int SELECT_TIMEOUT = 1000;
+
+  private final ServerProperties props;
+  private final SSLContext sslContext;
+  private final AdmissionController admission;
+
+  private final String[] enabledProtocols;
+  private final String[] enabledCipherSuites;
+  private final boolean mutualAuth;
+
+  private final Selector selector;
+
+  // Connections with work finished by a worker, resumed by the selector thread
+  private final ConcurrentLinkedQueue<NioConnection> woken;
+
+  NioServer(ServerProperties props, SSLContext sslContext, AdmissionController admission, String[] enabledProtocols, String[] enabledCipherSuites, boolean mutualAuth) throws IOException {
+    this.props = props;
+    this.sslContext = sslContext;
+    this.admission = admission;
+    this.enabledProtocols = enabledProtocols;
+    this.enabledCipherSuites = enabledCipherSuites;
+    this.mutualAuth = mutualAuth;
+
+    selector = Selector.open();
+    woken = new ConcurrentLinkedQueue<>();
+  }
+
+  @SuppressWarnings("InfiniteLoopStatement")
+  void serve(int port) throws IOException {
+    ServerSocketChannel serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(new InetSocketAddress(port));
+    serverChannel.configureBlocking(false);
+    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+    long lastIdleCheck = System.currentTimeMillis();
+
+    while (true) {
+      selector.select(SELECT_TIMEOUT);
+
+      Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+      while (keys.hasNext()) {
+        SelectionKey key = keys.next();
+        keys.remove();
+
+        if (!key.isValid())
+          continue;
+
+        if (key.isAcceptable()) {
+          accept(serverChannel);
+          continue;
+        }
+
+        NioConnection connection = (NioConnection) key.attachment();
+
+        if (key.isReadable())
+          connection.onReadable();
+        else
+          connection.process();
+      }
+
+      // Continue connections whose tasks or requests were finished by workers
+      NioConnection connection;
+      while ((connection = woken.poll()) != null)
+        connection.process();
+
+      // Drop connections that have been idle for too long
+      long now = System.currentTimeMillis();
+
+      if (now - lastIdleCheck > SELECT_TIMEOUT) {
+        closeIdleConnections(now);
+        lastIdleCheck = now;
+      }
+    }
+  }
+
+  void dispatch(NioConnection connection, byte[] request) {
+    boolean admitted = admission.tryExecute(() -> {
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      ServerResources resources = new ServerResources(connection.getClientCertificate(), output, props, admission, connection.isBinary());
+
+      resources.serve(request, !connection.isCertificateVerified(), keepOpen -> connection.complete(output.toByteArray(), keepOpen && props.KEEP_ALIVE));
+    });
+
+    if (!admitted)
+      reject(connection);
+  }
+
+  void recordHandshake(SSLSession session, long handshakeStart) {
+    props.recordHandshake(session, handshakeStart);
+  }
+
+  void execute(Runnable task) {
+    admission.execute(task);
+  }
+
+  void wake(NioConnection connection) {
+    woken.add(connection);
+    selector.wakeup();
+  }
+
+  /*
+    Utils
+  */
+  private void accept(ServerSocketChannel serverChannel) {
+    try {
+      SocketChannel channel = serverChannel.accept();
+
+      if (channel == null)
+        return;
+
+      channel.configureBlocking(false);
+
+      // Apply the same TLS settings as the blocking front end
+      SSLEngine engine = sslContext.createSSLEngine();
+      engine.setUseClientMode(false);
+      engine.setEnabledProtocols(enabledProtocols);
+      engine.setEnabledCipherSuites(enabledCipherSuites);
+      engine.setNeedClientAuth(mutualAuth);
+      engine.beginHandshake();
+
+      SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+      NioConnection connection = new NioConnection(this, channel, key, engine, props.getBufferSizeInMB());
+      key.attach(connection);
+    } catch (IOException e) {
+      props.logger.log(Level.WARNING, "Failed to accept connection: " + e.getMessage());
+    }
+  }
+
+  // The handshake is already paid for, so the client is told to come back later
+  private void reject(NioConnection connection) {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ServerResources resources = new ServerResources(connection.getClientCertificate(), output, props, admission, connection.isBinary());
+
+    resources.reject(HTTPStatus.SERVICE_UNAVAILABLE);
+
+    // Connections whose certificate was not checked yet are not kept
+    connection.complete(output.toByteArray(), props.KEEP_ALIVE && connection.isCertificateVerified());
+
+    props.logger.log(Level.FINE, "Rejected request, work queue is full - " + admission);
+  }
+
+  private void closeIdleConnections(long now) {
+    for (SelectionKey key : selector.keys()) {
+      Object attachment = key.attachment();
+
+      if (attachment instanceof NioConnection && ((NioConnection) attachment).isIdle(now, props.getKeepAliveTimeout()))
+        ((NioConnection) attachment).close();
+    }
+  }
+}
@@ -0,0 +1,151 @@
+package server;
+
+import server.request.ServerRequest;
+
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Token buckets per client certificate serial and route, taken without locks.
+// A bucket is kept as the time it will be full again (GCRA), so taking a token is one CAS.
+// Clients are spread over stripes that are swept for idle buckets one at a time.
+final class RateLimiter {
+  private static final int STRIPES = 16;
+  private static final long NANOS_PER_SECOND = 1000000000L;
+
+  // Nanoseconds per token and how far ahead a bucket may be taken, by route
+  private final long[] intervals;
+  private final long[] tolerances;
+
+  private final long idleTimeout;
+  private final long sweepInterval;
+
+  private final ConcurrentHashMap<BigInteger, Buckets>[] stripes;
+  private final AtomicLong nextSweep;
+  private final AtomicInteger sweepStripe;
+
+  RateLimiter(Limit defaultLimit, Map<ServerRequest, Limit> limits, int idleTimeoutInSeconds) {
+    ServerRequest[] routes = ServerRequest.values();
+
+    intervals = new long[routes.length];
+    tolerances = new long[routes.length];
+
+    for (ServerRequest route : routes) {
+      Limit limit = limits.getOrDefault(route, defaultLimit);
+      long interval = (long) (NANOS_PER_SECOND / limit.rate);
+
+      intervals[route.ordinal()] = interval;
+      tolerances[route.ordinal()] = interval * (limit.burst - 1);
+    }
+
+    idleTimeout = idleTimeoutInSeconds * NANOS_PER_SECOND;
+    sweepInterval = Math.max(1, idleTimeout / STRIPES);
+
+    stripes = newStripes(STRIPES);
+    for (int i = 0; i < STRIPES; i++)
+      stripes[i] = new ConcurrentHashMap<>();
+
+    nextSweep = new AtomicLong(System.nanoTime() + sweepInterval);
+    sweepStripe = new AtomicInteger();
+  }
+
+  // Returns false if the client has no tokens left for the route
+  boolean tryAcquire(BigInteger serial, ServerRequest route) {
+    long now = System.nanoTime();
+
+    sweep(now);
+
+    Buckets buckets = stripes[Math.floorMod(serial.hashCode(), STRIPES)]
+        .computeIfAbsent(serial, key -> new Buckets(intervals.length, now));
+
+    int index = route.ordinal();
+    long interval = intervals[index];
+
+    while (true) {
+      long full = buckets.fullAt.get(index);
+      long next = (full - now < 0 ? now : full) + interval;
+
+      if (next - now > tolerances[index] + interval)
+        return false;
+
+      if (buckets.fullAt.compareAndSet(index, full, next))
+        return true;
+    }
+  }
+
+  /*
+    UTILS
+  */
+  // Arrays of a generic type can only be created raw
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static ConcurrentHashMap<BigInteger, Buckets>[] newStripes(int count) {
+    return new ConcurrentHashMap[count];
+  }
+
+  // Only one thread sweeps, the others never wait for it
+  private void sweep(long now) {
+    long scheduled = nextSweep.get();
+
+    if (now - scheduled < 0 || !nextSweep.compareAndSet(scheduled, now + sweepInterval))
+      return;
+
+    // A client removed while it sends a request only gets a full bucket again
+    stripes[Math.floorMod(sweepStripe.getAndIncrement(), STRIPES)]
+        .values()
+        .removeIf(buckets -> buckets.isIdle(now, idleTimeout));
+  }
+
+  static final class Limit {
+    private final double rate;
+    private final int burst;
+
+    private Limit(double rate, int burst) {
+      this.rate = rate;
+      this.burst = burst;
+    }
+
+    // Written as requests_per_second:burst, returns null if invalid
+    static Limit parse(String value) {
+      String[] parts = value.trim().split(":");
+
+      if (parts.length != 2)
+        return null;
+
+      try {
+        double rate = Double.parseDouble(parts[0]);
+        int burst = Integer.parseInt(parts[1]);
+
+        if (rate <= 0 || rate > NANOS_PER_SECOND || burst < 1)
+          return null;
+
+        return new Limit(rate, burst);
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+  }
+
+  private static final class Buckets {
+    // Time each route bucket is full again, full from the start
+    private final AtomicLongArray fullAt;
+
+    private Buckets(int routes, long now) {
+      fullAt = new AtomicLongArray(routes);
+
+      for (int i = 0; i < routes; i++)
+        fullAt.set(i, now);
+    }
+
+    private boolean isIdle(long now, long idleTimeout) {
+      for (int i = 0; i < fullAt.length(); i++) {
+        if (now - fullAt.get(i) <= idleTimeout)
+          return false;
+      }
+
+      return true;
+    }
+  }
+}
@@ -0,0 +1,269 @@
+package server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import shared.http.HTTPStatus;
+import shared.response.GsonResponse;
+import shared.utils.BinaryProtocol;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+// Responses that never change but for their nonce (server parameters, messages), kept serialized.
+// The body is serialized once per wire format around a marker nonce and later responses
+// only splice the request nonce in, without reading the DB or going through Gson again.
+// Only the serialized bytes are kept, bounded by their size, the least recently used go first.
+final class ResponseCache {
+  private static final long MEGA_BYTE = 1024L * 1024L; // 1 MB
+
+  // Placeholder the body is serialized with, the nonce is moved to the front of the body
+  // so the first occurrence of the marker is always its value and never text from the body
+  private static final String NONCE_MARKER = "\u0000nonce\u0000";
+  private static final String NONCE_FIELD = "nonce";
+
+  // Bodies bigger than this part of the cache would evict too much, they are not kept
+  private static final int MAX_ENTRY_PART = 8;
+
+  // Headers of the entry, its templates and arrays, and its map node
+  private static final int ENTRY_OVERHEAD = 128;
+
+  private final Gson gson;
+  private final long maxBytes;
+
+  // Locks instead of monitors so virtual threads never pin their carrier
+  private final ReentrantLock lock;
+  private final LinkedHashMap<String, Entry> entries;
+  private long bytes;
+
+  private final LongAdder hits;
+  private final LongAdder misses;
+
+  ResponseCache(Gson gson, int maxSizeInMB) {
+    this.gson = gson;
+    maxBytes = maxSizeInMB * MEGA_BYTE;
+
+    lock = new ReentrantLock();
+    entries = new LinkedHashMap<>(16, 0.75f, true);
+    bytes = 0;
+
+    hits = new LongAdder();
+    misses = new LongAdder();
+  }
+
+  // Returns null if the response has to be built again
+  CachedResponse get(String key, boolean binary, String nonce) {
+    Entry entry;
+
+    // Reads reorder the map too
+    lock.lock();
+    try {
+      entry = entries.get(entryKey(key, binary));
+    } finally {
+      lock.unlock();
+    }
+
+    if (entry == null) {
+      misses.increment();
+      return null;
+    }
+
+    hits.increment();
+    return new CachedResponse(entry, nonce);
+  }
+
+  // The source is only called here, with the marker nonce, nothing it read is kept
+  CachedResponse put(String key, boolean binary, String version, String nonce, Function<String, GsonResponse> source) throws IOException {
+    Entry entry = serialize(entryKey(key, binary), version, binary, source.apply(NONCE_MARKER));
+
+    // Still answers this request, only not kept
+    if (entry.size > maxBytes / MAX_ENTRY_PART)
+      return new CachedResponse(entry, nonce);
+
+    lock.lock();
+    try {
+      Entry replaced = entries.put(entry.key, entry);
+
+      if (replaced != null)
+        bytes -= replaced.size;
+
+      bytes += entry.size;
+
+      // The new entry is the most recently used, it is never the one evicted
+      Iterator<Entry> eldest = entries.values().iterator();
+
+      while (bytes > maxBytes && eldest.hasNext()) {
+        Entry evicted = eldest.next();
+
+        eldest.remove();
+        bytes -= evicted.size;
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    return new CachedResponse(entry, nonce);
+  }
+
+  long getHits() {
+    return hits.sum();
+  }
+
+  long getMisses() {
+    return misses.sum();
+  }
+
+  long getBytes() {
+    lock.lock();
+    try {
+      return bytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /*
+    UTILS
+  */
+  private static String entryKey(String key, boolean binary) {
+    return (binary ? "binary:" : "json:") + key;
+  }
+
+  // Splits the body around the marker nonce, called without the lock
+  private Entry serialize(String key, String version, boolean binary, GsonResponse response) throws IOException {
+    JsonObject tree = nonceFirst(gson.toJsonTree(response));
+    byte[] body;
+    byte[] marker;
+
+    if (binary) {
+      body = BinaryProtocol.encodeElement(tree);
+      marker = BinaryProtocol.encodeElement(new JsonPrimitive(NONCE_MARKER));
+    } else {
+      body = gson.toJson(tree).getBytes(StandardCharsets.UTF_8);
+      marker = gson.toJson(NONCE_MARKER).getBytes(StandardCharsets.UTF_8);
+    }
+
+    int index = indexOf(body, marker);
+    if (index < 0)
+      throw new IOException("Cached response has no nonce.");
+
+    byte[] head = new byte[index];
+    byte[] tail = new byte[body.length - index - marker.length];
+
+    System.arraycopy(body, 0, head, 0, head.length);
+    System.arraycopy(body, index + marker.length, tail, 0, tail.length);
+
+    return new Entry(key, version, binary, head, tail);
+  }
+
+  // Gson writes subclass fields before the nonce of OkResponseWithNonce, so it is moved first
+  private static JsonObject nonceFirst(JsonElement tree) throws IOException {
+    if (!tree.isJsonObject())
+      throw new IOException("Cached response has no nonce.");
+
+    JsonObject body = tree.getAsJsonObject();
+    JsonElement nonce = body.remove(NONCE_FIELD);
+
+    if (nonce == null || !nonce.isJsonPrimitive() || !NONCE_MARKER.equals(nonce.getAsString()))
+      throw new IOException("Cached response has no nonce.");
+
+    JsonObject ordered = new JsonObject();
+    ordered.add(NONCE_FIELD, nonce);
+
+    for (Map.Entry<String, JsonElement> field : body.entrySet())
+      ordered.add(field.getKey(), field.getValue());
+
+    return ordered;
+  }
+
+  private static int indexOf(byte[] bytes, byte[] target) {
+    outer:
+    for (int i = 0; i <= bytes.length - target.length; i++) {
+      for (int j = 0; j < target.length; j++) {
+        if (bytes[i + j] != target[j])
+          continue outer;
+      }
+
+      return i;
+    }
+
+    return -1;
+  }
+
+  // Response of a request served from the cache, sent as its spliced body.
+  // Inside a batch it is parsed back so Gson can serialize it with the others
+  final class CachedResponse extends GsonResponse {
+    private final transient Entry entry;
+    private final transient String nonce;
+
+    private CachedResponse(Entry entry, String nonce) {
+      super(HTTPStatus.OK);
+
+      this.entry = entry;
+      this.nonce = nonce;
+    }
+
+    String getVersion() {
+      return entry.version;
+    }
+
+    JsonElement toJsonTree() throws IOException {
+      if (entry.binary)
+        return BinaryProtocol.decode(splice(BinaryProtocol.encodeElement(new JsonPrimitive(nonce))));
+
+      return new JsonParser().parse(new String(serialize(false), StandardCharsets.UTF_8));
+    }
+
+    // Only in the wire format it was cached for
+    byte[] serialize(boolean binary) throws IOException {
+      if (binary != entry.binary)
+        throw new IOException("Cached response is in the other wire format.");
+
+      if (binary)
+        return BinaryProtocol.encodeFrame(entry.head, BinaryProtocol.encodeElement(new JsonPrimitive(nonce)), entry.tail);
+
+      return splice(gson.toJson(nonce).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private byte[] splice(byte[] nonceBytes) {
+      byte[] body = new byte[entry.head.length + nonceBytes.length + entry.tail.length];
+
+      System.arraycopy(entry.head, 0, body, 0, entry.head.length);
+      System.arraycopy(nonceBytes, 0, body, entry.head.length, nonceBytes.length);
+      System.arraycopy(entry.tail, 0, body, entry.head.length + nonceBytes.length, entry.tail.length);
+
+      return body;
+    }
+  }
+
+  private static final class Entry {
+    private final String key;
+    private final String version;
+    private final boolean binary;
+
+    // Body before and after the nonce
+    private final byte[] head;
+    private final byte[] tail;
+
+    // Counted in the cache, strings at two bytes a char
+    private final long size;
+
+    private Entry(String key, String version, boolean binary, byte[] head, byte[] tail) {
+      this.key = key;
+      this.version = version;
+      this.binary = binary;
+      this.head = head;
+      this.tail = tail;
+
+      size = ENTRY_OVERHEAD + head.length + tail.length + 2L * (key.length() + version.length());
+    }
+  }
+}
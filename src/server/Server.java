@@ -1,31 +1,42 @@
 package server;
 
+import server.db.MailboxStorage;
+import server.db.MemoryStorage;
 import server.db.ServerDatabaseDriver;
+import server.db.ShardedStorage;
 import server.props.ServerProperty;
 import shared.errors.properties.InvalidValueException;
 import shared.errors.properties.PropertyException;
+import shared.utils.AdmissionController;
+import shared.utils.ExecutorType;
+import shared.utils.db.ConnectionPool;
+import shared.utils.logging.AsyncLogHandler;
 import shared.utils.crypto.KSHelper;
 import shared.utils.properties.CustomProperties;
 
 import javax.net.ssl.*;
+import java.io.File;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
-import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 final class Server {
   private static final String PROPS_PATH = "server.properties";
 
+  private static final String FRONT_END_BLOCKING = "blocking";
+  private static final String FRONT_END_NIO = "nio";
+  private static final String STORAGE_SQLITE = "sqlite";
+  private static final String STORAGE_MEMORY = "memory";
+
   @SuppressWarnings("InfiniteLoopStatement")
   public static void main(String[] args) {
     System.setProperty("java.net.preferIPv4Stack", "true");
 
     CustomProperties properties = null;
     Logger logger = null;
+    AsyncLogHandler logHandler = null;
     boolean debugMode = false;
 
     try {
@@ -35,7 +46,25 @@ final class Server {
       String logFile = properties.getString(ServerProperty.LOG_LOC);
       logger = Logger.getLogger("Server Logger");
       logger.setLevel(Level.ALL);
-      logger.addHandler(new FileHandler(logFile, true));
+
+      int logBufferSize = properties.getInt(ServerProperty.LOG_BUFFER_SIZE);
+
+      if (logBufferSize <= 0)
+        throw new InvalidValueException(ServerProperty.LOG_BUFFER_SIZE.val());
+
+      AsyncLogHandler.OverflowPolicy logOverflowPolicy = AsyncLogHandler.OverflowPolicy.fromString(properties.getString(ServerProperty.LOG_OVERFLOW_POLICY));
+
+      if (logOverflowPolicy == null)
+        throw new InvalidValueException(ServerProperty.LOG_OVERFLOW_POLICY.val());
+
+      // Requests only queue their records, a writer thread does the file I/O
+      AsyncLogHandler handler = new AsyncLogHandler(logFile, logBufferSize, logOverflowPolicy);
+      logger.addHandler(handler);
+      logger.setUseParentHandlers(false);
+
+      // Write what is still queued when the server exits
+      Runtime.getRuntime().addShutdownHook(new Thread(handler::close));
+      logHandler = handler;
 
       debugMode = properties.getBool(ServerProperty.DEBUG);
     } catch (PropertyException e) {
@@ -55,49 +84,156 @@ final class Server {
       if (!isThreadCountValid(threadPoolSize))
         throw new InvalidValueException(ServerProperty.THREAD_POOL_SIZE.val());
 
-      Executor executor = Executors.newFixedThreadPool(threadPoolSize);
+      ExecutorType executorType = ExecutorType.fromString(properties.getString(ServerProperty.EXECUTOR_TYPE));
+
+      if (executorType == null)
+        throw new InvalidValueException(ServerProperty.EXECUTOR_TYPE.val());
+
+      // Bounded admission, requests past the queue are turned away instead of waiting
+      int workQueueSize = properties.getInt(ServerProperty.WORK_QUEUE_SIZE);
+
+      if (workQueueSize < 0)
+        throw new InvalidValueException(ServerProperty.WORK_QUEUE_SIZE.val());
+
+      AdmissionController admission = new AdmissionController(executorType.build(threadPoolSize), threadPoolSize, workQueueSize);
 
       // Get Keystore and providers
       KSHelper ksHelper = getKeyStore(properties);
       KSHelper tsHelper = getTrustStore(properties);
 
-      // Create SSL Socket
+      // Create SSL context
       int port = properties.getInt(ServerProperty.PORT);
 
       SSLContext sslContext = buildSSLContext(ksHelper, tsHelper);
 
-      SSLServerSocketFactory ssf = sslContext.getServerSocketFactory();
-      SSLServerSocket serverSocket = (SSLServerSocket) ssf.createServerSocket(port);
+      // Session caches allow abbreviated handshakes from clients and to the PKI
+      int sessionCacheSize = properties.getInt(ServerProperty.TLS_SESSION_CACHE_SIZE);
+      int sessionTimeout = properties.getInt(ServerProperty.TLS_SESSION_TIMEOUT);
+
+      sslContext.getServerSessionContext().setSessionCacheSize(sessionCacheSize);
+      sslContext.getServerSessionContext().setSessionTimeout(sessionTimeout);
+      sslContext.getClientSessionContext().setSessionCacheSize(sessionCacheSize);
+      sslContext.getClientSessionContext().setSessionTimeout(sessionTimeout);
 
-      // Set enabled protocols and cipher suites
+      // Get enabled protocols and cipher suites
       String[] enabledProtocols = properties.getStringArr(ServerProperty.TLS_PROTOCOLS);
       String[] enabledCipherSuites = properties.getStringArr(ServerProperty.TLS_CIPHERSUITES);
 
-      serverSocket.setEnabledProtocols(enabledProtocols);
-      serverSocket.setEnabledCipherSuites(enabledCipherSuites);
-
       // Set up auth unilateral or mutual
       boolean mutualAuth = properties.getBool(ServerProperty.TLS_MUTUAL_AUTH);
-      serverSocket.setNeedClientAuth(mutualAuth);
+
+      // Check which front end serves the clients
+      String frontEnd = properties.getString(ServerProperty.FRONT_END);
+
+      if (!frontEnd.equals(FRONT_END_BLOCKING) && !frontEnd.equals(FRONT_END_NIO))
+        throw new InvalidValueException(ServerProperty.FRONT_END.val());
 
       // Build DB and create shared properties class
-      String databaseLocation = properties.getString(ServerProperty.DATABASE_LOC);
-      ServerDatabaseDriver db = new ServerDatabaseDriver(databaseLocation);
+      String storageEngine = properties.getString(ServerProperty.STORAGE_ENGINE);
+      ServerDatabaseDriver sqliteDB = null;
+      ShardedStorage shardedDB = null;
+      MailboxStorage db;
+
+      if (storageEngine.equals(STORAGE_SQLITE)) {
+        String databaseLocation = properties.getString(ServerProperty.DATABASE_LOC);
+        String blobLocation = properties.getString(ServerProperty.BLOB_LOC);
+        int shardCount = properties.getInt(ServerProperty.DATABASE_SHARDS);
+        int writeBatchSize = properties.getInt(ServerProperty.WRITE_BATCH_SIZE);
+        int writeBatchDelay = properties.getInt(ServerProperty.WRITE_BATCH_DELAY);
+
+        if (writeBatchSize <= 0)
+          throw new InvalidValueException(ServerProperty.WRITE_BATCH_SIZE.val());
+
+        if (writeBatchDelay < 0)
+          throw new InvalidValueException(ServerProperty.WRITE_BATCH_DELAY.val());
+
+        if (shardCount <= 0)
+          throw new InvalidValueException(ServerProperty.DATABASE_SHARDS.val());
+
+        if (shardCount == 1) {
+          sqliteDB = new ServerDatabaseDriver(ConnectionPool.fromProperties(properties, databaseLocation), blobLocation, writeBatchSize, writeBatchDelay);
+
+          // Message ids of a sharded database would be read from the wrong files
+          if (!sqliteDB.checkShardLayout(0, 1))
+            throw new InvalidValueException(ServerProperty.DATABASE_SHARDS.val());
+
+          db = sqliteDB;
+        } else {
+          // Each shard has its own files and writer
+          ServerDatabaseDriver[] shards = new ServerDatabaseDriver[shardCount];
+
+          for (int i = 0; i < shardCount; i++) {
+            ConnectionPool pool = ConnectionPool.fromProperties(properties, shardLocation(databaseLocation, i));
+            shards[i] = new ServerDatabaseDriver(pool, shardLocation(blobLocation, i), writeBatchSize, writeBatchDelay);
+
+            // Messages are found by id % shards, the count cannot change once it is used
+            if (!shards[i].checkShardLayout(i, shardCount))
+              throw new InvalidValueException(ServerProperty.DATABASE_SHARDS.val());
+          }
+
+          shardedDB = new ShardedStorage(shards);
+          db = shardedDB;
+        }
+      } else if (storageEngine.equals(STORAGE_MEMORY)) {
+        db = new MemoryStorage();
+      } else {
+        throw new InvalidValueException(ServerProperty.STORAGE_ENGINE.val());
+      }
 
       // Generate props (with new parameters if configured)
       ServerProperties props = new ServerProperties(properties, ksHelper, db, logger, sslContext);
       if (properties.getBool(ServerProperty.PARAMS_RESET))
         System.out.println("Parameters have been generated.");
 
+      props.METRICS.gauge("admission.admitted", admission::getAdmitted);
+      props.METRICS.gauge("admission.rejected", admission::getRejected);
+      props.METRICS.gauge("admission.queue_wait_avg_ms", admission::getAverageQueueWaitMillis);
+      props.METRICS.gauge("admission.queue_wait_max_ms", admission::getMaxQueueWaitMillis);
+
+      if (sqliteDB != null) {
+        props.METRICS.gauge("db.write_batches", sqliteDB::getWriteBatches);
+        props.METRICS.gauge("db.batched_writes", sqliteDB::getBatchedWrites);
+      }
+
+      if (shardedDB != null) {
+        props.METRICS.gauge("db.write_batches", shardedDB::getWriteBatches);
+        props.METRICS.gauge("db.batched_writes", shardedDB::getBatchedWrites);
+      }
+
+      if (logHandler != null)
+        props.METRICS.gauge("log.dropped", logHandler::getDropped);
+
+      // Non-blocking front end, workers only serve complete requests
+      if (frontEnd.equals(FRONT_END_NIO)) {
+        NioServer nioServer = new NioServer(props, sslContext, admission, enabledProtocols, enabledCipherSuites, mutualAuth);
+
+        logger.log(Level.INFO, "Started non-blocking server on port: " + port);
+        System.out.print("Started non-blocking server on port " + port + "\n");
+
+        nioServer.serve(port);
+        return;
+      }
+
+      // Create SSL Socket
+      SSLServerSocketFactory ssf = sslContext.getServerSocketFactory();
+      SSLServerSocket serverSocket = (SSLServerSocket) ssf.createServerSocket(port);
+
+      serverSocket.setEnabledProtocols(enabledProtocols);
+      serverSocket.setEnabledCipherSuites(enabledCipherSuites);
+      serverSocket.setNeedClientAuth(mutualAuth);
+
       logger.log(Level.INFO, "Started server on port: " + port);
       System.out.print("Started server on port " + port + "\n");
 
-      // Client serving loop
+      // Client serving loop, every connection holds an admission slot and its thread until it is closed.
+      // Kept alive connections give theirs back once idle for the keep alive timeout
       SSLSocket sslClient;
 
       while (true) {
         sslClient = (SSLSocket) serverSocket.accept();
-        executor.execute(new Thread(new ServerResources(sslClient, props)));
+
+        if (!admission.tryExecute(new ServerResources(sslClient, props, admission)))
+          rejectConnection(sslClient, admission, logger);
       }
     } catch (Exception e) {
       handleException(e, debugMode, logger);
@@ -127,11 +263,35 @@ final class Server {
       e.printStackTrace();
   }
 
+  // Closed before the handshake, answering would cost the overloaded workers a full TLS handshake
+  private static void rejectConnection(SSLSocket client, AdmissionController admission, Logger logger) {
+    try {
+      client.setSoLinger(true, 0);
+      client.close();
+    } catch (IOException e) {
+      // Already closed
+    }
+
+    logger.log(Level.FINE, "Rejected connection, work queue is full - " + admission);
+  }
+
   private static boolean isThreadCountValid(int threadCount) {
-    int totalThreads = Runtime.getRuntime().availableProcessors();
+    // Workers mostly wait on TLS, the DB and the PKI, so they are not bound by the CPU count
+    return threadCount > 0;
+  }
+
+  // Shard 0 keeps the configured location, the others get their number before the extension
+  private static String shardLocation(String location, int shard) {
+    if (shard == 0)
+      return location;
+
+    int dot = location.lastIndexOf('.');
+    int separator = Math.max(location.lastIndexOf('/'), location.lastIndexOf(File.separatorChar));
+
+    if (dot <= separator + 1)
+      return location + "." + shard;
 
-    // Keep threads between 0 < threads < CPUTOTAL
-    return totalThreads > threadCount && threadCount > 0;
+    return location.substring(0, dot) + "." + shard + location.substring(dot);
   }
 
   private static KSHelper getKeyStore(CustomProperties properties) throws PropertyException, GeneralSecurityException, IOException {
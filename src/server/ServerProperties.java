@@ -2,21 +2,34 @@ package server;
 
 import com.google.gson.Gson;
 import server.crypt.PKICommsManager;
-import server.db.ServerDatabaseDriver;
+import server.db.MailboxStorage;
 import shared.errors.db.FailedToInsertException;
 import shared.parameters.ServerParameterMap;
 import shared.parameters.ServerParameter;
 import server.props.ServerProperty;
+import server.request.ServerRequest;
 import shared.errors.db.CriticalDatabaseException;
 import shared.errors.db.DatabaseException;
+import shared.errors.properties.InvalidValueException;
 import shared.errors.properties.PropertyException;
 import shared.utils.GsonUtils;
 import shared.utils.crypto.*;
+import shared.utils.crypto.util.TLSSessionStats;
+import shared.utils.metrics.MetricsRegistry;
 import shared.utils.properties.CustomProperties;
 
 import javax.crypto.spec.DHParameterSpec;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.math.BigInteger;
 import java.security.*;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 final class ServerProperties {
@@ -28,17 +41,51 @@ final class ServerProperties {
   Logger logger;
   private final KSHelper ksHelper;
 
-  ServerDatabaseDriver DB;
+  MailboxStorage DB;
+
+  // Serializes the writes that are not group committed (messages and receipts are),
+  // without pinning virtual threads like synchronized would
+  final ReentrantLock DB_WRITE_LOCK;
+
+  // User directory, read through to the DB
+  final UserCache USERS;
+
+  // Serialized responses that only differ by their nonce
+  final ResponseCache RESPONSES;
 
   private String pubKeyName;
   private int pubKeySize;
 
   private int bufferSizeInMB;
 
+  boolean KEEP_ALIVE;
+  private int keepAliveTimeout;
+
+  private int batchMaxSize;
+
+  final MailboxNotifier NOTIFIER;
+  private int waitMaxTimeout;
+
+  // Wait requests of the blocking front end hold their worker, only this many at a time
+  final Semaphore BLOCKED_WAITS;
+
+  private int pageMaxSize;
+
+  // Attachments uploaded in chunks
+  final UploadStore UPLOADS;
+  private String hashAlg;
+
+  final TLSSessionStats TLS_STATS;
+  final MetricsRegistry METRICS;
+  private HashSet<BigInteger> statsAdmins;
+
+  boolean RATE_LIMIT_ENABLED;
+  RateLimiter RATE_LIMITER;
+
   boolean PKI_ENABLED;
   volatile PKICommsManager PKI_COMMS_MGR;
 
-  ServerProperties(CustomProperties properties, KSHelper ksHelper, ServerDatabaseDriver db, Logger logger, SSLContext sslContext) throws PropertyException, GeneralSecurityException, DatabaseException, CriticalDatabaseException {
+  ServerProperties(CustomProperties properties, KSHelper ksHelper, MailboxStorage db, Logger logger, SSLContext sslContext) throws PropertyException, GeneralSecurityException, DatabaseException, CriticalDatabaseException, IOException {
     this.ksHelper = ksHelper;
 
     // Set Debug mode
@@ -47,11 +94,103 @@ final class ServerProperties {
     // Max size of socket buffer
     bufferSizeInMB = properties.getInt(ServerProperty.BUFFER_SIZE_MB);
 
+    // Persistent connections and their idle timeout
+    KEEP_ALIVE = properties.getBool(ServerProperty.KEEP_ALIVE);
+    keepAliveTimeout = properties.getInt(ServerProperty.KEEP_ALIVE_TIMEOUT);
+
+    // Max sub-requests served in one batch
+    batchMaxSize = properties.getInt(ServerProperty.BATCH_MAX_SIZE);
+
+    // Wait requests woken by new messages and receipts
+    NOTIFIER = new MailboxNotifier();
+    waitMaxTimeout = properties.getInt(ServerProperty.WAIT_MAX_TIMEOUT);
+
+    if (waitMaxTimeout <= 0)
+      throw new InvalidValueException(ServerProperty.WAIT_MAX_TIMEOUT.val());
+
+    int waitMaxBlocked = properties.getInt(ServerProperty.WAIT_MAX_BLOCKED);
+
+    if (waitMaxBlocked < 0)
+      throw new InvalidValueException(ServerProperty.WAIT_MAX_BLOCKED.val());
+
+    BLOCKED_WAITS = new Semaphore(waitMaxBlocked);
+
+    // Listings are paged
+    pageMaxSize = properties.getInt(ServerProperty.PAGE_MAX_SIZE);
+
+    if (pageMaxSize <= 0)
+      throw new InvalidValueException(ServerProperty.PAGE_MAX_SIZE.val());
+
+    // Chunked uploads
+    int uploadMaxSizeInMB = properties.getInt(ServerProperty.UPLOAD_MAX_SIZE_MB);
+    int uploadExpiry = properties.getInt(ServerProperty.UPLOAD_EXPIRY);
+    hashAlg = properties.getString(ServerProperty.HASH_ALG);
+
+    if (uploadMaxSizeInMB <= 0 || uploadMaxSizeInMB >= 2048)
+      throw new InvalidValueException(ServerProperty.UPLOAD_MAX_SIZE_MB.val());
+
+    if (uploadExpiry <= 0)
+      throw new InvalidValueException(ServerProperty.UPLOAD_EXPIRY.val());
+
+    UPLOADS = new UploadStore(Paths.get(properties.getString(ServerProperty.UPLOAD_LOC)), uploadMaxSizeInMB * 1024L * 1024L, uploadExpiry, logger);
+
+    // Per client and route request budgets
+    RATE_LIMIT_ENABLED = properties.getBool(ServerProperty.RATE_LIMIT);
+    if (RATE_LIMIT_ENABLED)
+      RATE_LIMITER = buildRateLimiter(properties);
+
     b64Helper = new B64Helper();
     GSON = GsonUtils.buildGsonInstance();
     DB = db;
+    DB_WRITE_LOCK = new ReentrantLock();
+    TLS_STATS = new TLSSessionStats();
     this.logger = logger;
 
+    // Caches in front of the DB
+    int userCacheSize = properties.getInt(ServerProperty.USER_CACHE_SIZE);
+    int responseCacheSizeInMB = properties.getInt(ServerProperty.RESPONSE_CACHE_SIZE_MB);
+
+    if (userCacheSize <= 0)
+      throw new InvalidValueException(ServerProperty.USER_CACHE_SIZE.val());
+
+    if (responseCacheSizeInMB <= 0 || responseCacheSizeInMB >= 2048)
+      throw new InvalidValueException(ServerProperty.RESPONSE_CACHE_SIZE_MB.val());
+
+    USERS = new UserCache(db, userCacheSize);
+    RESPONSES = new ResponseCache(GSON, responseCacheSizeInMB);
+
+    // Runtime stats, read by admins through the stats route and dumped to a file
+    METRICS = new MetricsRegistry();
+    METRICS.gauge("tls.full_handshakes", TLS_STATS::getFullHandshakes);
+    METRICS.gauge("tls.resumed_handshakes", TLS_STATS::getResumedHandshakes);
+    METRICS.gauge("user_cache.hits", USERS::getHits);
+    METRICS.gauge("user_cache.misses", USERS::getMisses);
+    METRICS.gauge("user_cache.size", USERS::getSize);
+    METRICS.gauge("response_cache.hits", RESPONSES::getHits);
+    METRICS.gauge("response_cache.misses", RESPONSES::getMisses);
+    METRICS.gauge("response_cache.bytes", RESPONSES::getBytes);
+    METRICS.gauge("wait.waiting", NOTIFIER::getWaiting);
+
+    statsAdmins = new HashSet<>();
+    for (String serial : properties.getStringArr(ServerProperty.STATS_ADMINS)) {
+      if (serial.trim().isEmpty())
+        continue;
+
+      try {
+        statsAdmins.add(new BigInteger(serial.trim()));
+      } catch (NumberFormatException e) {
+        throw new InvalidValueException(ServerProperty.STATS_ADMINS.val());
+      }
+    }
+
+    int statsDumpInterval = properties.getInt(ServerProperty.STATS_DUMP_INTERVAL);
+
+    if (statsDumpInterval < 0)
+      throw new InvalidValueException(ServerProperty.STATS_DUMP_INTERVAL.val());
+
+    if (statsDumpInterval > 0)
+      METRICS.startDump(Paths.get(properties.getString(ServerProperty.STATS_DUMP_LOC)), statsDumpInterval, GSON, logger);
+
     // Initialize AEA params
     String pubKeyAlg = properties.getString(ServerProperty.PUB_KEY_ALG);
     String certSignAlg = properties.getString(ServerProperty.CERT_SIGN_ALG);
@@ -63,8 +202,8 @@ final class ServerProperties {
 
 
 
-    // check if supposed to reset server params and reset them if so
-    if (properties.getBool(ServerProperty.PARAMS_RESET))
+    // check if supposed to reset server params and reset them if so (an in-memory engine starts without any)
+    if (properties.getBool(ServerProperty.PARAMS_RESET) || DB.getAllParameters().isEmpty())
       resetParams(properties);
 
     // Configure PKI Comms manager if pki enabled
@@ -101,6 +240,9 @@ final class ServerProperties {
     insertParameter(params, ServerParameter.DH_KEYSIZE, String.valueOf(dhKeySize)); // int
     insertParameter(params, ServerParameter.DH_HASH_ALG,  props.getString(ServerProperty.DH_KEY_HASH_ALG));
 
+    // Insert the hash used to check attachment chunks
+    insertParameter(params, ServerParameter.HASH_ALG, props.getString(ServerProperty.HASH_ALG));
+
     // Join all parameters, sign them, encode them and insert them in DB
     byte[] paramBytes = params.getAllParametersBytes();
     byte[] paramSigBytes = aeaHelper.sign(privateKey(), paramBytes);
@@ -108,10 +250,42 @@ final class ServerProperties {
     insertParameter(params, ServerParameter.PARAM_SIG, b64Helper.encode(paramSigBytes));
   }
 
+  void recordHandshake(SSLSession session, long handshakeStart) {
+    boolean resumed = TLS_STATS.record(session, handshakeStart);
+
+    logger.log(Level.FINE, "TLS handshake " + (resumed ? "resumed" : "full") + " - " + TLS_STATS);
+  }
+
+  boolean isStatsAdmin(BigInteger serial) {
+    return statsAdmins.contains(serial);
+  }
+
   public int getBufferSizeInMB() {
     return bufferSizeInMB;
   }
 
+  // In milliseconds
+  public int getKeepAliveTimeout() {
+    return keepAliveTimeout * 1000;
+  }
+
+  public int getBatchMaxSize() {
+    return batchMaxSize;
+  }
+
+  // In milliseconds
+  public int getWaitMaxTimeout() {
+    return waitMaxTimeout * 1000;
+  }
+
+  public int getPageMaxSize() {
+    return pageMaxSize;
+  }
+
+  public String getHashAlg() {
+    return hashAlg;
+  }
+
   public int getPubKeySize() {
     return pubKeySize;
   }
@@ -119,6 +293,37 @@ final class ServerProperties {
   /*
       Utils
     */
+  private static RateLimiter buildRateLimiter(CustomProperties properties) throws PropertyException {
+    RateLimiter.Limit defaultLimit = RateLimiter.Limit.parse(properties.getString(ServerProperty.RATE_LIMIT_DEFAULT));
+
+    if (defaultLimit == null)
+      throw new InvalidValueException(ServerProperty.RATE_LIMIT_DEFAULT.val());
+
+    EnumMap<ServerRequest, RateLimiter.Limit> limits = new EnumMap<>(ServerRequest.class);
+
+    for (String routeLimit : properties.getStringArr(ServerProperty.RATE_LIMIT_ROUTES)) {
+      int separator = routeLimit.indexOf(':');
+
+      if (separator == -1)
+        throw new InvalidValueException(ServerProperty.RATE_LIMIT_ROUTES.val());
+
+      ServerRequest route = ServerRequest.fromString(routeLimit.substring(0, separator));
+      RateLimiter.Limit limit = RateLimiter.Limit.parse(routeLimit.substring(separator + 1));
+
+      if (route == null || limit == null)
+        throw new InvalidValueException(ServerProperty.RATE_LIMIT_ROUTES.val());
+
+      limits.put(route, limit);
+    }
+
+    int idleTimeout = properties.getInt(ServerProperty.RATE_LIMIT_IDLE_TIMEOUT);
+
+    if (idleTimeout <= 0)
+      throw new InvalidValueException(ServerProperty.RATE_LIMIT_IDLE_TIMEOUT.val());
+
+    return new RateLimiter(defaultLimit, limits, idleTimeout);
+  }
+
   private void insertParameter(ServerParameterMap params, ServerParameter type, String value) throws CriticalDatabaseException, FailedToInsertException {
     params.put(type, value);
     DB.insertParameter(type, value);
@@ -1,88 +1,339 @@
 package server;
 
 import com.google.gson.*;
-import com.google.gson.stream.JsonReader;
 import shared.errors.ClientDisconnectedException;
 import shared.wrappers.Message;
 import shared.wrappers.Receipt;
 import shared.parameters.ServerParameterMap;
+import shared.parameters.ServerParameter;
 import shared.wrappers.User;
 import shared.Pair;
+import server.db.MailboxStorage;
 import server.request.ServerRequest;
+import server.request.StreamingRequestParser;
 import shared.errors.IHTTPStatusException;
 import shared.errors.db.*;
 import shared.errors.request.*;
 import shared.http.HTTPStatus;
 import shared.response.*;
 import shared.response.server.*;
+import shared.utils.AdmissionController;
+import shared.utils.BinaryProtocol;
 import shared.utils.GsonUtils;
 import shared.utils.SafeInputStreamReader;
+import shared.utils.crypto.HashHelper;
 
 import javax.net.ssl.SSLSocket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.security.cert.X509Certificate;
 import java.security.*;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 
 final class ServerResources implements Runnable {
+  // Decoded to a file while it is read instead of being kept in memory
+  private static final String ATTACHMENTS_FIELD = "attachments";
+
+  private static final long MEGA_BYTE = 1024L * 1024L; // 1 MB
+
+  // Metric names
+  private static final String ROUTE_METRIC = "route.";
+  private static final String STATUS_METRIC = "status.";
+  private static final String PKI_CHECK_PHASE = "phase.pki_check";
+  private static final String DB_PHASE = "phase.db";
+  private static final String SERIALIZATION_PHASE = "phase.serialization";
+
+  private static final String PARAMS_CACHE_KEY = "params";
+
   private final SSLSocket client;
-  private JsonReader input;
+  private final AdmissionController admission;
+  private PushbackInputStream rawInput;
+  private SafeInputStreamReader reader;
+  private StreamingRequestParser parser;
   private OutputStream output;
 
+  // Set when the client negotiated binary frames instead of JSON
+  private boolean binary;
+
+  // Wait request waiting for the notifier without holding a worker
+  private CompletableFuture<MailboxNotifier.Change> parkedWait;
+  private int parkedUserId;
+  private String parkedNonce;
+
   private final ServerProperties props;
   private X509Certificate clientCert;
 
-  ServerResources(SSLSocket client, ServerProperties props) {
+  ServerResources(SSLSocket client, ServerProperties props, AdmissionController admission) {
     this.client = client;
     this.props = props;
+    this.admission = admission;
 
     try {
-      input = new JsonReader(new SafeInputStreamReader(client.getInputStream(), props.getBufferSizeInMB()));
+      rawInput = new PushbackInputStream(client.getInputStream(), 1);
+      reader = new SafeInputStreamReader(rawInput, props.getBufferSizeInMB());
+      parser = new StreamingRequestParser(reader, ATTACHMENTS_FIELD);
       output = client.getOutputStream();
+
+      // Keep-alive connections carry several requests and are closed when idle
+      if (props.KEEP_ALIVE)
+        client.setSoTimeout(props.getKeepAliveTimeout());
     } catch (Exception e) {
       handleException(e);
     }
   }
 
+  // Used by the non-blocking front end, which reads and decrypts requests itself
+  ServerResources(X509Certificate clientCert, OutputStream output, ServerProperties props, AdmissionController admission, boolean binary) {
+    this.client = null;
+    this.admission = admission;
+    this.clientCert = clientCert;
+    this.output = output;
+    this.props = props;
+    this.binary = binary;
+  }
+
   public void run() {
     try {
+      // The handshake runs when the session is first requested
+      long handshakeStart = System.currentTimeMillis();
       clientCert = props.aeaHelper.getCertFromSession(client);
+      props.recordHandshake(client.getSession(), handshakeStart);
 
-      // Verify client certificate validity in PKI (like OCSP)
-      if (props.PKI_ENABLED) {
-        SSLSocket pkiSocket = props.PKI_COMMS_MGR.getSocket();
+      verifyClientCertificate();
 
-        // Check certificate validity in PKI
-        props.PKI_COMMS_MGR.checkClientCertificateRevoked(clientCert, pkiSocket);
-      }
+      // Clients that want binary frames say so before their first request
+      binary = BinaryProtocol.readPreamble(rawInput);
+
+      // Serve client requests, only one unless the connection is kept alive
+      do {
+        try {
+          handleRequest(binary ? parseBinaryRequest() : parseRequest());
 
-      // Serve client request
-      JsonObject parsedRequest = parseRequest(input);
+          // The connection already holds its thread, it waits for the notifier itself
+          if (parkedWait != null)
+            send(resumeWait());
+        } catch (RequestException e) {
+          // A failed request does not invalidate a persistent connection
+          if (!props.KEEP_ALIVE)
+            throw e;
 
-      handleRequest(parsedRequest);
+          props.logger.log(Level.WARNING, e.getMessage());
+          send(e.status().buildErrorResponse(e.getMessage()));
+        } finally {
+          parser.deleteSpool();
+        }
 
-      input.close();
+        reader.resetBytesRead();
+      } while (props.KEEP_ALIVE);
+
+      reader.close();
       output.close();
       client.close();
+    } catch (SocketTimeoutException e) {
+      props.logger.log(Level.INFO, "Closed idle connection of " + clientCert.getSerialNumber() + ".");
+      closeClient();
     } catch (Exception e) {
       handleException(e);
     }
   }
 
+  // Serves one complete request read by the non-blocking front end. The completion is told if the
+  // connection stays open once the response is written, which for a parked wait request is later
+  void serve(byte[] request, boolean verifyCertificate, Consumer<Boolean> completion) {
+    boolean keepOpen = serveRequest(request, verifyCertificate);
+
+    if (parkedWait == null) {
+      completion.accept(keepOpen);
+      return;
+    }
+
+    // No worker is held while parked, one answers the request once the notifier calls back
+    parkedWait.whenCompleteAsync((change, e) -> completion.accept(sendParkedWait()), admission::execute);
+  }
+
+  // Returns false if the connection should be closed after the response
+  private boolean serveRequest(byte[] request, boolean verifyCertificate) {
+    try {
+      if (verifyCertificate)
+        verifyClientCertificate();
+    } catch (Exception e) {
+      handleException(e);
+      return false;
+    }
+
+    try {
+      JsonElement data;
+
+      if (binary)
+        data = BinaryProtocol.decode(request);
+      else
+        data = new JsonParser().parse(new String(request, StandardCharsets.UTF_8));
+
+      if (!data.isJsonObject())
+        throw new InvalidFormatException();
+
+      handleRequest(data.getAsJsonObject());
+
+      return true;
+    } catch (RequestException e) {
+      // A failed request does not invalidate the connection
+      props.logger.log(Level.WARNING, e.getMessage());
+
+      try {
+        send(e.status().buildErrorResponse(e.getMessage()));
+        return true;
+      } catch (IOException ex) {
+        return false;
+      }
+    } catch (Exception e) {
+      handleException(e);
+      return false;
+    }
+  }
+
+  private boolean sendParkedWait() {
+    try {
+      send(resumeWait());
+      return true;
+    } catch (Exception e) {
+      handleException(e);
+      return false;
+    }
+  }
+
+  // Answers a request that was turned away without serving it
+  void reject(HTTPStatus status) {
+    try {
+      send(status.buildErrorResponse());
+    } catch (IOException e) {
+      // Only written to memory by the non-blocking front end, a blocking client that left is closed next
+    }
+  }
+
+  private void verifyClientCertificate() throws IOException, CustomRequestException {
+    // Verify client certificate validity in PKI (like OCSP)
+    if (props.PKI_ENABLED) {
+      long start = System.nanoTime();
+      SSLSocket pkiSocket = props.PKI_COMMS_MGR.getSocket();
+
+      // Check certificate validity in PKI
+      props.PKI_COMMS_MGR.checkClientCertificateRevoked(clientCert, pkiSocket);
+      props.METRICS.recordSince(PKI_CHECK_PHASE, start);
+    }
+  }
+
   private void handleRequest(JsonObject requestData) throws RequestException, IOException, CriticalDatabaseException {
+    ServerRequest request = getRoute(requestData);
+    GsonResponse response;
+
+    if (request == ServerRequest.BATCH) {
+      long start = System.nanoTime();
+
+      checkRateLimit(request);
+      response = executeBatch(requestData);
+
+      props.METRICS.increment(ROUTE_METRIC + request.val());
+      props.METRICS.recordSince(ROUTE_METRIC + request.val(), start);
+    } else {
+      response = executeRequest(request, requestData);
+    }
+
+    // Receipts are acknowledged too, the client waits for it whether or not the connection is kept alive.
+    // Only a parked wait request has no response yet
+    if (response != null)
+      send(response);
+  }
+
+  // Runs every sub-request of a batch, a failed item does not stop the ones after it
+  private BatchResponse executeBatch(JsonObject requestData) throws RequestException, CriticalDatabaseException {
+    JsonArray items = GsonUtils.getArray(requestData, "requests");
+
+    if (items.size() > props.getBatchMaxSize())
+      throw new CustomRequestException("Batch has more than " + props.getBatchMaxSize() + " requests.", HTTPStatus.BAD_REQUEST);
+
+    ArrayList<JsonElement> responses = new ArrayList<>(items.size());
+
+    for (JsonElement item : items) {
+      try {
+        if (!item.isJsonObject())
+          throw new InvalidFormatException();
+
+        JsonObject itemData = item.getAsJsonObject();
+        ServerRequest request = getRoute(itemData);
+
+        // Batches can not be nested
+        if (request == ServerRequest.BATCH)
+          throw new CustomRequestException("Batches can not be nested.", HTTPStatus.BAD_REQUEST);
+
+        // A wait would hold back every item after it
+        if (request == ServerRequest.WAIT)
+          throw new CustomRequestException("Wait requests can not be batched.", HTTPStatus.BAD_REQUEST);
+
+        GsonResponse response = executeRequest(request, itemData);
+
+        // Serialized with the rest of the batch
+        if (response instanceof ResponseCache.CachedResponse)
+          responses.add(((ResponseCache.CachedResponse) response).toJsonTree());
+        else if (response instanceof StreamedMessageResponse)
+          responses.add(((StreamedMessageResponse) response).toJsonTree(props.GSON));
+        else
+          responses.add(props.GSON.toJsonTree(response));
+      } catch (RequestException e) {
+        props.logger.log(Level.WARNING, e.getMessage());
+        props.METRICS.increment(STATUS_METRIC + e.status().code());
+        responses.add(props.GSON.toJsonTree(e.status().buildErrorResponse(e.getMessage())));
+      } catch (IOException e) {
+        props.logger.log(Level.SEVERE, e.getMessage());
+        props.METRICS.increment(STATUS_METRIC + HTTPStatus.INTERNAL_SERVER_ERROR.code());
+        responses.add(props.GSON.toJsonTree(HTTPStatus.INTERNAL_SERVER_ERROR.buildErrorResponse("Failed to serialize response.")));
+      }
+    }
+
+    return new BatchResponse(responses);
+  }
+
+  private void checkRateLimit(ServerRequest request) throws CustomRequestException {
+    if (props.RATE_LIMIT_ENABLED && !props.RATE_LIMITER.tryAcquire(clientCert.getSerialNumber(), request))
+      throw new CustomRequestException("Too many " + request.val() + " requests.", HTTPStatus.TOO_MANY_REQUESTS);
+  }
+
+  private ServerRequest getRoute(JsonObject requestData) throws RequestException {
     try {
-      String requestName = GsonUtils.getString(requestData, "type");
-      ServerRequest request = ServerRequest.fromString(requestName);
-      String nonce = null;
+      ServerRequest request = ServerRequest.fromString(GsonUtils.getString(requestData, "type"));
 
       // Check route is valid
       if (request == null)
         throw new InvalidRouteException();
 
+      return request;
+    } catch (ClassCastException | IllegalStateException e) {
+      throw new InvalidRouteException();
+    }
+  }
+
+  private GsonResponse executeRequest(ServerRequest request, JsonObject requestData) throws RequestException, CriticalDatabaseException {
+    long start = System.nanoTime();
+    props.METRICS.increment(ROUTE_METRIC + request.val());
+
+    try {
+      String nonce = null;
+
       // Get nonce if supposed to for the requested route
       if (request.needsNonce())
         nonce = GsonUtils.getString(requestData, "nonce");
@@ -90,48 +341,53 @@ final class ServerResources implements Runnable {
       // Log client request without any specific info.
       // Certificates emitted by CA should have unique serial numbers
       // This way, we can identify the principal if a DOS or other similar attack occurs
-      props.logger.log(Level.WARNING, "Request: " + requestName + " made by " + clientCert.getSerialNumber() + ".");
+      props.logger.log(Level.WARNING, "Request: " + request.val() + " made by " + clientCert.getSerialNumber() + ".");
+
+      // Batch items are charged to their own routes
+      checkRateLimit(request);
 
       switch (request) {
         case CREATE:
-          insertUser(requestData, nonce);
-          break;
+          return insertUser(requestData, nonce);
         case LIST:
-          listUsers(requestData, nonce);
-          break;
+          return listUsers(requestData, nonce);
         case NEW:
-          listNewMessages(requestData, nonce);
-          break;
+          return listNewMessages(requestData, nonce);
         case ALL:
-          listMessages(requestData, nonce);
-          break;
+          return listMessages(requestData, nonce);
         case SEND:
-          insertMessage(requestData, nonce);
-          break;
+          return insertMessage(requestData, nonce);
         case RECEIVE:
-          getMessage(requestData, nonce);
-          break;
+          return getMessage(requestData, nonce);
         case RECEIPT:
-          insertReceipt(requestData);
-          break;
+          return insertReceipt(requestData);
         case LOGIN:
-          searchUser(requestData, nonce);
-          break;
+          return searchUser(requestData, nonce);
         case STATUS:
-          getReceipts(requestData, nonce);
-          break;
+          return getReceipts(requestData, nonce);
         case PARAMS:
-          params(nonce);
-          break;
+          return params(requestData, nonce);
+        case UPLOAD:
+          return uploadChunk(requestData, nonce);
+        case DOWNLOAD:
+          return downloadChunk(requestData, nonce);
+        case STATS:
+          return stats(nonce);
+        case WAIT:
+          return waitForMail(requestData, nonce);
+        default:
+          throw new InvalidRouteException();
       }
     } catch (ClassCastException | IllegalStateException e) {
       throw new InvalidRouteException();
+    } finally {
+      props.METRICS.recordSince(ROUTE_METRIC + request.val(), start);
     }
   }
 
 
   // Create user message box
-  private synchronized void insertUser(JsonObject requestData, String nonce) throws RequestException, IOException, CriticalDatabaseException {
+  private GsonResponse insertUser(JsonObject requestData, String nonce) throws RequestException, CriticalDatabaseException {
     // Get public key and certificate from user
     PublicKey publicKey = clientCert.getPublicKey();
     String publicKeyEncoded = props.b64Helper.encode(publicKey.getEncoded());
@@ -159,17 +415,24 @@ final class ServerResources implements Runnable {
     );
 
     // Insert user and send response
-    try {
-      int userId = props.DB.insertUser(user);
+    int userId;
 
-      send(new CreateUserResponse(nonce, userId));
+    long dbStart = System.nanoTime();
+    props.DB_WRITE_LOCK.lock();
+    try {
+      userId = props.USERS.insertUser(user);
     } catch (DuplicateEntryException e) {
       throw new CustomRequestException("User ID already registered.", HTTPStatus.BAD_REQUEST);
+    } finally {
+      props.DB_WRITE_LOCK.unlock();
+      props.METRICS.recordSince(DB_PHASE, dbStart);
     }
+
+    return new CreateUserResponse(nonce, userId);
   }
 
-  // List users details
-  private void listUsers(JsonObject requestData, String nonce) throws RequestException, IOException, CriticalDatabaseException {
+  // List users details, all of them are listed in pages of ids after the cursor
+  private GsonResponse listUsers(JsonObject requestData, String nonce) throws RequestException, CriticalDatabaseException {
     // Get intended user id or none if supposed to get all users
     int userId;
 
@@ -181,46 +444,105 @@ final class ServerResources implements Runnable {
     }
 
     ArrayList<User> users = new ArrayList<>();
+    int after = getCursor(requestData);
+    int limit = getPageSize(requestData);
+
+    long dbStart = System.nanoTime();
 
     try {
       // Detect if supposed to get 1 or multiple users
       if (userId >= 0)
-        users.add(props.DB.getUserById(userId));
+        users.add(props.USERS.getUserById(userId));
       else
-        users = props.DB.getAllUsers();
+        users = props.USERS.getAllUsers(after, limit + 1);
+
+      props.METRICS.recordSince(DB_PHASE, dbStart);
     } catch (EntryNotFoundException e) {
       throw new CustomRequestException("User not found", HTTPStatus.NOT_FOUND);
     }
+
+    // One more user than the page was read to know if there is another page
+    boolean hasMore = users.size() > limit;
+    if (hasMore)
+      users.remove(limit);
+
+    int nextCursor = users.isEmpty() ? after : users.get(users.size() - 1).getId();
+
+    // Users never change, the page changes with the users in it
+    ArrayList<String> versionParts = new ArrayList<>();
+    for (User user : users)
+      versionParts.add(user.getId() + ":" + user.getSecDataSignature());
+
+    versionParts.add(nextCursor + ":" + hasMore);
+    String version = version(versionParts.toArray(new String[0]));
+
+    if (notModified(requestData, version))
+      return new NotModifiedResponse(nonce, version);
+
     // Send user list
-    send(new ListUsersResponse(nonce, users));
+    return new ListUsersResponse(nonce, users, nextCursor, hasMore, version);
   }
 
   // List new messages
-  private void listNewMessages(JsonObject requestData, String nonce) throws RequestException, IOException, CriticalDatabaseException {
+  private GsonResponse listNewMessages(JsonObject requestData, String nonce) throws RequestException, CriticalDatabaseException {
     // Get intended user id or none if supposed to get all users
     int userId = GsonUtils.getInt(requestData, "userId");
+    int after = getCursor(requestData);
+    int limit = getPageSize(requestData);
 
     // Get unread messages and create response object
-    ArrayList<Integer> newMessageIds = props.DB.getUnreadMessages(userId);
-    send(new ListNewMessagesResponse(nonce, newMessageIds));
+    long dbStart = System.nanoTime();
+    ArrayList<Integer> newMessageIds = props.DB.getUnreadMessages(userId, after, limit + 1);
+    props.METRICS.recordSince(DB_PHASE, dbStart);
+
+    boolean hasMore = newMessageIds.size() > limit;
+    if (hasMore)
+      newMessageIds.remove(limit);
+
+    int nextCursor = newMessageIds.isEmpty() ? after : newMessageIds.get(newMessageIds.size() - 1);
+
+    return new ListNewMessagesResponse(nonce, newMessageIds, nextCursor, hasMore);
   }
 
   // List all messages
-  private void listMessages(JsonObject requestData, String nonce) throws RequestException, IOException, CriticalDatabaseException {
+  private GsonResponse listMessages(JsonObject requestData, String nonce) throws RequestException, CriticalDatabaseException {
     // Get intended user id messages
     int userId = GsonUtils.getInt(requestData, "userId");
+    int after = getCursor(requestData);
+    int limit = getPageSize(requestData);
 
     // Get all messages, split between received/sent and create response object
-    Pair<ArrayList<String>, ArrayList<Integer>> messages = props.DB.getAllMessages(userId);
+    long dbStart = System.nanoTime();
+    Pair<ArrayList<String>, ArrayList<Integer>> messages = props.DB.getAllMessages(userId, after, limit + 1);
+    props.METRICS.recordSince(DB_PHASE, dbStart);
 
     ArrayList<String> receivedMessageIds = messages.getA();
     ArrayList<Integer> sentMessagesIds = messages.getB();
 
-    send(new ListMessagesResponse(nonce, receivedMessageIds, sentMessagesIds));
+    // Messages sent to oneself are in both lists
+    TreeSet<Integer> messageIds = new TreeSet<>(sentMessagesIds);
+    for (String receivedMessageId : receivedMessageIds)
+      messageIds.add(Integer.parseInt(receivedMessageId.replace("_", "")));
+
+    // The extra message has the highest id so it is the last of its lists
+    boolean hasMore = messageIds.size() > limit;
+    if (hasMore) {
+      int extraId = messageIds.pollLast();
+
+      if (!sentMessagesIds.isEmpty() && sentMessagesIds.get(sentMessagesIds.size() - 1) == extraId)
+        sentMessagesIds.remove(sentMessagesIds.size() - 1);
+
+      if (!receivedMessageIds.isEmpty() && receivedMessageIds.get(receivedMessageIds.size() - 1).replace("_", "").equals(String.valueOf(extraId)))
+        receivedMessageIds.remove(receivedMessageIds.size() - 1);
+    }
+
+    int nextCursor = messageIds.isEmpty() ? after : messageIds.last();
+
+    return new ListMessagesResponse(nonce, receivedMessageIds, sentMessagesIds, nextCursor, hasMore);
   }
 
   // Is Revoked
-  private synchronized void insertMessage(JsonObject requestData, String nonce) throws RequestException, IOException, CriticalDatabaseException {
+  private GsonResponse insertMessage(JsonObject requestData, String nonce) throws RequestException, CriticalDatabaseException {
     // Get sender and receiver ids
     int senderId = GsonUtils.getInt(requestData, "senderId");
     int receiverId = GsonUtils.getInt(requestData, "receiverId");
@@ -231,10 +553,19 @@ final class ServerResources implements Runnable {
     String attachments = "";
     String attachmentData = "";
 
+    // Attachments already decoded to a file while the request was read or uploaded in chunks before
+    Path attachmentsFile = parser == null ? null : parser.getSpool();
+    Path upload = null;
+
+    if (requestData.has("uploadId"))
+      upload = props.UPLOADS.get(clientCert.getSerialNumber(), GsonUtils.getString(requestData, "uploadId"));
+
     // Check if attachment was sent
     try {
       attachmentData = GsonUtils.getString(requestData, "attachmentData");
-      attachments = GsonUtils.getString(requestData, "attachments");
+
+      if (attachmentsFile == null)
+        attachments = GsonUtils.getString(requestData, ATTACHMENTS_FIELD);
     } catch (MissingValueException e) {
       // Message has no attachments
     }
@@ -260,31 +591,120 @@ final class ServerResources implements Runnable {
         senderSignature
     );
 
-    // Try to insert message in db
+    // No chunk is appended to a claimed upload, so the file hashed is the file stored
+    if (upload != null) {
+      try {
+        attachmentsFile = props.UPLOADS.claim(upload);
+      } catch (NoSuchFileException e) {
+        throw new CustomRequestException("Upload not found.", HTTPStatus.NOT_FOUND);
+      } catch (IOException e) {
+        throw new CustomRequestException("Failed to read upload.", HTTPStatus.INTERNAL_SERVER_ERROR);
+      }
+    }
+
+    // Hash the attachments before queuing the write
+    MailboxStorage.StagedAttachments staged = null;
+    boolean inserted = false;
+
     try {
-      int insertedMessageId = props.DB.insertMessage(message);
+      if (attachmentsFile != null)
+        staged = props.DB.stageAttachments(attachmentsFile);
+      else if (!attachments.isEmpty())
+        staged = props.DB.stageAttachments(new ByteArrayInputStream(Base64.getDecoder().decode(attachments)));
+
+      // Try to insert message in db
+      int insertedMessageId;
+
+      // Not under the write lock, concurrent sends share a commit
+      long dbStart = System.nanoTime();
+
+      try {
+        insertedMessageId = props.DB.insertMessage(message, staged);
+        inserted = true;
+      } catch (FailedToInsertException e) {
+        throw new CustomRequestException("User id not found", HTTPStatus.NOT_FOUND);
+      } catch (WriteTimeoutException e) {
+        // Never written, the client can send it again
+        throw new CustomRequestException(e.getMessage(), e.status());
+      } finally {
+        props.METRICS.recordSince(DB_PHASE, dbStart);
+      }
 
-      send(new SendMessageResponse(nonce, insertedMessageId));
-    } catch (FailedToInsertException e) {
-      throw new CustomRequestException("User id not found", HTTPStatus.NOT_FOUND);
+      props.NOTIFIER.messageArrived(receiverId);
+
+      return new SendMessageResponse(nonce, insertedMessageId);
+    } catch (IllegalArgumentException e) {
+      throw new InvalidFormatException();
+    } finally {
+      // Staged files of a message that was not written are not kept
+      if (!inserted && staged != null)
+        props.DB.discardAttachments(staged);
+
+      // The upload now lives in the message, or goes back to its client to send again
+      if (upload != null) {
+        if (inserted)
+          props.UPLOADS.delete(attachmentsFile);
+        else
+          props.UPLOADS.unclaim(upload);
+      }
     }
   }
 
-  private void getMessage(JsonObject requestData, String nonce) throws RequestException, IOException, CriticalDatabaseException {
+  private GsonResponse getMessage(JsonObject requestData, String nonce) throws RequestException, CriticalDatabaseException {
     // Get intended message id
     int messageId = GsonUtils.getInt(requestData, "messageId");
 
+    // Clients that download attachments in chunks only get their size
+    boolean chunked = requestData.has("chunked") && GsonUtils.getBool(requestData, "chunked");
+
+    // Messages never change, repeated fetches are served serialized
+    String cacheKey = "message:" + messageId + (chunked ? ":chunked" : "");
+    ResponseCache.CachedResponse cached = props.RESPONSES.get(cacheKey, binary, nonce);
+
+    if (cached != null)
+      return notModified(requestData, cached.getVersion()) ? new NotModifiedResponse(nonce, cached.getVersion()) : cached;
+
     // Get specific message and create response object
+    long dbStart = System.nanoTime();
+
     try {
-      Message message = props.DB.getMessage(messageId);
+      if (chunked) {
+        Pair<Message, Integer> message = props.DB.getMessageWithoutAttachments(messageId);
+        props.METRICS.recordSince(DB_PHASE, dbStart);
+
+        // The sender signature covers the whole message
+        String version = version(message.getA().getSenderSignature());
+        cached = props.RESPONSES.put(cacheKey, binary, version, nonce, n -> new ReceiveMessageResponse(n, message.getA(), message.getB(), version));
+      } else {
+        Pair<Message, Integer> message = props.DB.getMessageWithoutAttachments(messageId);
+        String version = version(message.getA().getSenderSignature());
+
+        // Attachments are copied from storage as the response is sent, they are never cached
+        if (message.getB() > 0) {
+          if (notModified(requestData, version)) {
+            props.METRICS.recordSince(DB_PHASE, dbStart);
+            return new NotModifiedResponse(nonce, version);
+          }
+
+          InputStream attachments = props.DB.getAttachments(messageId);
+          props.METRICS.recordSince(DB_PHASE, dbStart);
+
+          return new StreamedMessageResponse(new ReceiveMessageResponse(nonce, message.getA(), version), attachments, message.getB());
+        }
+
+        props.METRICS.recordSince(DB_PHASE, dbStart);
+        cached = props.RESPONSES.put(cacheKey, binary, version, nonce, n -> new ReceiveMessageResponse(n, message.getA(), version));
+      }
 
-      send(new ReceiveMessageResponse(nonce, message));
+      return notModified(requestData, cached.getVersion()) ? new NotModifiedResponse(nonce, cached.getVersion()) : cached;
     } catch (EntryNotFoundException e) {
       throw new CustomRequestException("Message id not found", HTTPStatus.NOT_FOUND);
+    } catch (IOException e) {
+      throw new CustomRequestException("Failed to serialize message.", HTTPStatus.INTERNAL_SERVER_ERROR);
     }
   }
 
-  private synchronized void insertReceipt(JsonObject requestData) throws RequestException, CriticalDatabaseException {
+  private GsonResponse insertReceipt(JsonObject requestData) throws RequestException, CriticalDatabaseException {
     // Get read message id
     int messageId = GsonUtils.getInt(requestData, "messageId");
     int senderId = GsonUtils.getInt(requestData, "senderId");
@@ -295,64 +715,322 @@ final class ServerResources implements Runnable {
     // Get signature date
     String date = GsonUtils.getString(requestData, "date");
 
-    try {
-      // Insert message receipt
-      props.DB.insertReceipt(new Receipt(messageId, senderId, date, receiverSignature));
+    int messageSenderId;
 
-      // Set message as read
-      props.DB.setMessageAsRead(messageId);
+    long dbStart = System.nanoTime();
+    try {
+      // Insert message receipt and set message as read
+      messageSenderId = props.DB.insertReceipt(new Receipt(messageId, senderId, date, receiverSignature));
     } catch (FailedToInsertException | EntryNotFoundException e) {
       throw new CustomRequestException("Message or user id not found", HTTPStatus.NOT_FOUND);
+    } catch (WriteTimeoutException e) {
+      throw new CustomRequestException(e.getMessage(), e.status());
+    } finally {
+      props.METRICS.recordSince(DB_PHASE, dbStart);
     }
+
+    // Tell the message sender it was read
+    props.NOTIFIER.receiptArrived(messageSenderId, messageId);
+
+    return new OKResponse();
   }
 
-  private void getReceipts(JsonObject requestData, String nonce) throws RequestException, CriticalDatabaseException, IOException {
+  private GsonResponse getReceipts(JsonObject requestData, String nonce) throws RequestException, CriticalDatabaseException {
     // Get intended message id
     int messageId = GsonUtils.getInt(requestData, "messageId");
 
+    long dbStart = System.nanoTime();
+
     try {
-      // Get the message and its respective receipts
+      // Get the message and its respective receipts, the sender downloads the attachments in chunks if it needs them
       ArrayList<Receipt> receipts = props.DB.getReceipts(messageId);
-      Message message = props.DB.getMessage(messageId);
+      Pair<Message, Integer> message = props.DB.getMessageWithoutAttachments(messageId);
+      Message header = message.getA();
+
+      // Receipts are only ever added
+      ArrayList<String> versionParts = new ArrayList<>();
+      versionParts.add(header.getSenderSignature());
+
+      for (Receipt receipt : receipts)
+        versionParts.add(receipt.getSenderId() + ":" + receipt.getDate() + ":" + receipt.getReceiverSignature());
+
+      String version = version(versionParts.toArray(new String[0]));
+
+      if (notModified(requestData, version)) {
+        props.METRICS.recordSince(DB_PHASE, dbStart);
+        return new NotModifiedResponse(nonce, version);
+      }
+
+      props.METRICS.recordSince(DB_PHASE, dbStart);
 
       // Create response and send
-      send(new MessageReceiptsResponse(nonce, message, receipts));
+      return new MessageReceiptsResponse(nonce, header, message.getB(), receipts, version);
     } catch (EntryNotFoundException e) {
       throw new CustomRequestException("Message id not found", HTTPStatus.NOT_FOUND);
     }
   }
 
   // Get a user details by uuid
-  private void searchUser(JsonObject requestData, String nonce) throws RequestException, IOException, CriticalDatabaseException {
+  private GsonResponse searchUser(JsonObject requestData, String nonce) throws RequestException, CriticalDatabaseException {
     // Get intended user from uuid
     String uuid = GsonUtils.getString(requestData, "uuid");
 
     User user;
+    long dbStart = System.nanoTime();
+
     try {
-      user = props.DB.getUserByUUID(uuid);
+      user = props.USERS.getUserByUUID(uuid);
+      props.METRICS.recordSince(DB_PHASE, dbStart);
 
       // Send requested user details
-      send(new LoginResponse(nonce, user));
+      return new LoginResponse(nonce, user);
     } catch (EntryNotFoundException e) {
       throw new CustomRequestException("User not found with this uuid.", HTTPStatus.NOT_FOUND);
     }
   }
 
   // Get all server params
-  private void params(String nonce) throws CriticalDatabaseException, IOException {
-    // Get params and send to user
-    ServerParameterMap params = props.DB.getAllParameters();
+  private GsonResponse params(JsonObject requestData, String nonce) throws RequestException, CriticalDatabaseException {
+    // Params are only generated at startup
+    ResponseCache.CachedResponse cached = props.RESPONSES.get(PARAMS_CACHE_KEY, binary, nonce);
+
+    if (cached == null) {
+      // Get params and send to user
+      long dbStart = System.nanoTime();
+      ServerParameterMap params = props.DB.getAllParameters();
+      props.METRICS.recordSince(DB_PHASE, dbStart);
+
+      // The signature covers every parameter
+      String version = version(params.getParameter(ServerParameter.PARAM_SIG));
+
+      try {
+        cached = props.RESPONSES.put(PARAMS_CACHE_KEY, binary, version, nonce, n -> new ParametersResponse(n, params, version));
+      } catch (IOException e) {
+        throw new CustomRequestException("Failed to serialize parameters.", HTTPStatus.INTERNAL_SERVER_ERROR);
+      }
+    }
 
-    send(new ParametersResponse(nonce, params));
+    return notModified(requestData, cached.getVersion()) ? new NotModifiedResponse(nonce, cached.getVersion()) : cached;
+  }
+
+  // Parked until a message or receipt for the user arrives after the given version, or the timeout.
+  // Returns null while parked, the response is sent once the notifier calls back
+  private GsonResponse waitForMail(JsonObject requestData, String nonce) throws RequestException, CriticalDatabaseException {
+    int userId = GsonUtils.getInt(requestData, "userId");
+
+    // Only known users are watched
+    try {
+      props.USERS.getUserById(userId);
+    } catch (EntryNotFoundException e) {
+      throw new CustomRequestException("User id not found", HTTPStatus.NOT_FOUND);
+    }
+
+    // Without a version only what happens from now on counts
+    long version = requestData.has("version") ? GsonUtils.getLong(requestData, "version") : props.NOTIFIER.getVersion();
+
+    // In milliseconds, clamped in seconds first so it can not overflow
+    int timeout = props.getWaitMaxTimeout();
+    if (requestData.has("timeout")) {
+      int requested = GsonUtils.getInt(requestData, "timeout");
+
+      if (requested <= 0)
+        throw new CustomRequestException("Invalid wait timeout.", HTTPStatus.BAD_REQUEST);
+
+      timeout = Math.min(timeout / 1000, requested) * 1000;
+    }
+
+    // The blocking front end holds this worker until the wait is answered
+    boolean blocking = client != null;
+
+    if (blocking && !props.BLOCKED_WAITS.tryAcquire())
+      throw new CustomRequestException("Too many wait requests.", HTTPStatus.SERVICE_UNAVAILABLE);
+
+    CompletableFuture<MailboxNotifier.Change> change = new CompletableFuture<>();
+    props.NOTIFIER.watch(userId, version, timeout, change::complete);
+
+    // Something already happened
+    if (change.isDone()) {
+      if (blocking)
+        props.BLOCKED_WAITS.release();
+
+      return waitResponse(userId, nonce, change.join());
+    }
+
+    parkedWait = change;
+    parkedUserId = userId;
+    parkedNonce = nonce;
+
+    return null;
+  }
+
+  // Answers the parked wait request, the notifier already called back
+  private GsonResponse resumeWait() throws CriticalDatabaseException {
+    MailboxNotifier.Change change;
+
+    try {
+      change = parkedWait.join();
+    } finally {
+      if (client != null)
+        props.BLOCKED_WAITS.release();
+    }
+
+    parkedWait = null;
+
+    return waitResponse(parkedUserId, parkedNonce, change);
+  }
+
+  private GsonResponse waitResponse(int userId, String nonce, MailboxNotifier.Change change) throws CriticalDatabaseException {
+    long dbStart = System.nanoTime();
+    // Only the first page, a list request gets the rest
+    ArrayList<Integer> newMessageIds = props.DB.getUnreadMessages(userId, 0, props.getPageMaxSize());
+    props.METRICS.recordSince(DB_PHASE, dbStart);
+
+    return new WaitResponse(nonce, change.getVersion(), newMessageIds, change.getReadMessageIds());
+  }
+
+  // Only certificates listed as admins can read the stats
+  private GsonResponse stats(String nonce) throws CustomRequestException {
+    if (!props.isStatsAdmin(clientCert.getSerialNumber()))
+      throw new CustomRequestException("Not allowed to read the server stats.", HTTPStatus.FORBIDDEN);
+
+    return new StatsResponse(nonce, props.METRICS.snapshot());
+  }
+
+  // Appends a chunk of attachments to an upload, without a chunk only reports the offset to resume from
+  private GsonResponse uploadChunk(JsonObject requestData, String nonce) throws RequestException {
+    props.UPLOADS.sweep();
+
+    try {
+      BigInteger owner = clientCert.getSerialNumber();
+      String uploadId = null;
+      Path upload = null;
+      long size = 0;
+
+      // Uploads only continue for the client that started them
+      if (requestData.has("uploadId")) {
+        uploadId = GsonUtils.getString(requestData, "uploadId");
+        upload = props.UPLOADS.get(owner, uploadId);
+        size = Files.size(upload);
+      }
+
+      if (!requestData.has("chunk")) {
+        if (upload == null)
+          throw new CustomRequestException("Upload starts with a chunk.", HTTPStatus.BAD_REQUEST);
+
+        // Never past the max size, which fits an int
+        return new UploadResponse(nonce, uploadId, (int) size);
+      }
+
+      // Chunks must continue where the last stored one ended
+      int offset = GsonUtils.getInt(requestData, "offset");
+
+      if (offset != size)
+        throw new CustomRequestException("Upload continues at offset " + size + ".", HTTPStatus.CONFLICT);
+
+      byte[] chunk = props.b64Helper.decode(GsonUtils.getString(requestData, "chunk"));
+      byte[] chunkHash = props.b64Helper.decode(GsonUtils.getString(requestData, "chunkHash"));
+
+      if (!new HashHelper(props.getHashAlg()).verifyHash(chunk, chunkHash))
+        throw new CustomRequestException("Chunk does not match its hash.", HTTPStatus.BAD_REQUEST);
+
+      if (size + chunk.length > props.UPLOADS.getMaxSize())
+        throw new CustomRequestException("Upload is too large.", HTTPStatus.BAD_REQUEST);
+
+      // The first chunk starts a new upload
+      if (upload == null) {
+        uploadId = props.UPLOADS.newId();
+        props.UPLOADS.create(owner, uploadId, chunk);
+      } else {
+        props.UPLOADS.append(upload, chunk);
+      }
+
+      return new UploadResponse(nonce, uploadId, (int) (size + chunk.length));
+    } catch (IllegalArgumentException e) {
+      throw new CustomRequestException("Chunk is not valid Base64.", HTTPStatus.BAD_REQUEST);
+    } catch (NoSuchFileException e) {
+      // Claimed by a message sent since it was found
+      throw new CustomRequestException("Upload not found.", HTTPStatus.NOT_FOUND);
+    } catch (IOException | GeneralSecurityException e) {
+      throw new CustomRequestException("Failed to store chunk.", HTTPStatus.INTERNAL_SERVER_ERROR);
+    }
+  }
+
+  private GsonResponse downloadChunk(JsonObject requestData, String nonce) throws RequestException, CriticalDatabaseException {
+    int messageId = GsonUtils.getInt(requestData, "messageId");
+    int offset = GsonUtils.getInt(requestData, "offset");
+    int length = GsonUtils.getInt(requestData, "length");
+
+    if (offset < 0 || length <= 0 || length > MEGA_BYTE * props.getBufferSizeInMB())
+      throw new CustomRequestException("Invalid chunk offset or length.", HTTPStatus.BAD_REQUEST);
+
+    long dbStart = System.nanoTime();
+
+    try {
+      Pair<byte[], Integer> chunk = props.DB.getAttachmentsChunk(messageId, offset, length);
+      props.METRICS.recordSince(DB_PHASE, dbStart);
+
+      String chunkHash = new HashHelper(props.getHashAlg()).hashAndEncode(chunk.getA());
+
+      return new DownloadResponse(nonce, props.b64Helper.encode(chunk.getA()), chunkHash, chunk.getB());
+    } catch (EntryNotFoundException e) {
+      throw new CustomRequestException("Message id not found", HTTPStatus.NOT_FOUND);
+    } catch (GeneralSecurityException e) {
+      throw new CustomRequestException("Failed to hash chunk.", HTTPStatus.INTERNAL_SERVER_ERROR);
+    }
   }
 
   /*
     UTILS
   */
-  private JsonObject parseRequest(JsonReader reader) throws InvalidFormatException, ClientDisconnectedException {
-    JsonElement data = new JsonParser().parse(reader);
+  // Listings start after this id, from the beginning if none is given
+  private int getCursor(JsonObject requestData) throws RequestException {
+    if (!requestData.has("after"))
+      return 0;
+
+    return GsonUtils.getInt(requestData, "after");
+  }
+
+  // Hash of what a response holds, clients send it back as ifNoneMatch
+  private String version(String... parts) throws CustomRequestException {
+    try {
+      return new HashHelper(props.getHashAlg()).hashAndEncode(String.join("\n", parts).getBytes(StandardCharsets.UTF_8));
+    } catch (GeneralSecurityException e) {
+      throw new CustomRequestException("Failed to hash response version.", HTTPStatus.INTERNAL_SERVER_ERROR);
+    }
+  }
+
+  // The client already holds this version of the response
+  private boolean notModified(JsonObject requestData, String version) throws RequestException {
+    return requestData.has("ifNoneMatch") && GsonUtils.getString(requestData, "ifNoneMatch").equals(version);
+  }
+
+  // Page size asked by the client, never more than the server allows
+  private int getPageSize(JsonObject requestData) throws RequestException {
+    if (!requestData.has("limit"))
+      return props.getPageMaxSize();
+
+    int limit = GsonUtils.getInt(requestData, "limit");
+
+    if (limit <= 0)
+      throw new CustomRequestException("Invalid page size.", HTTPStatus.BAD_REQUEST);
+
+    return Math.min(limit, props.getPageMaxSize());
+  }
+
+  private JsonObject parseRequest() throws InvalidFormatException, ClientDisconnectedException, IOException {
+    // The stream ends either before any request or right after the previous one
+    JsonObject data = parser.next();
+
+    if (data == null)
+      throw new ClientDisconnectedException();
+
+    return data;
+  }
 
-    if (data instanceof JsonNull)
+  private JsonObject parseBinaryRequest() throws InvalidFormatException, ClientDisconnectedException, IOException {
+    JsonElement data = BinaryProtocol.readFrame(new DataInputStream(rawInput), props.getBufferSizeInMB());
+
+    if (data == null)
       throw new ClientDisconnectedException();
 
     if (!data.isJsonObject())
@@ -366,6 +1044,7 @@ final class ServerResources implements Runnable {
 
     if (exception instanceof ClientDisconnectedException) {
       props.logger.log(Level.WARNING, exception.getMessage());
+      closeClient();
       return;
     }
 
@@ -398,6 +1077,16 @@ final class ServerResources implements Runnable {
       }
     }
 
+    closeClient();
+  }
+
+  private void closeClient() {
+    if (parser != null)
+      parser.deleteSpool();
+
+    if (client == null)
+      return;
+
     try {
       client.close();
     } catch (Exception e) {
@@ -406,6 +1095,30 @@ final class ServerResources implements Runnable {
   }
 
   private void send(GsonResponse response) throws IOException {
-    output.write(response.json(props.GSON).getBytes(StandardCharsets.UTF_8));
+    if (response instanceof ErrorResponse)
+      props.METRICS.increment(STATUS_METRIC + response.getStatus().getCode());
+
+    long start = System.nanoTime();
+
+    // Written while it is serialized, not in a single write
+    if (response instanceof StreamedMessageResponse) {
+      ((StreamedMessageResponse) response).writeTo(output, props.GSON, binary);
+      props.METRICS.recordSince(SERIALIZATION_PHASE, start);
+      return;
+    }
+
+    byte[] bytes;
+
+    if (response instanceof ResponseCache.CachedResponse)
+      bytes = ((ResponseCache.CachedResponse) response).serialize(binary);
+    else if (binary)
+      bytes = BinaryProtocol.encodeFrame(props.GSON.toJsonTree(response));
+    else
+      bytes = response.json(props.GSON).getBytes(StandardCharsets.UTF_8);
+
+    props.METRICS.recordSince(SERIALIZATION_PHASE, start);
+
+    // Single write so the response goes out in as few TLS records as possible
+    output.write(bytes);
   }
 }
@@ -0,0 +1,108 @@
+package server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import shared.http.HTTPStatus;
+import shared.response.GsonResponse;
+import shared.response.server.ReceiveMessageResponse;
+import shared.utils.BinaryProtocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+// Message response whose attachments are written from storage while it is sent, so they are never
+// held in memory whole. The message goes last in the body and its attachments last in the message,
+// everything before them is serialized as usual and the attachments are copied after it.
+final class StreamedMessageResponse extends GsonResponse {
+  private static final String MESSAGE_FIELD = "message";
+  private static final String ATTACHMENTS_FIELD = "attachments";
+
+  // Multiple of 3, so chunks encode to Base64 without padding and can be written one after the other
+  private static final int CHUNK_SIZE = 48 * 1024;
+
+  private final transient ReceiveMessageResponse response;
+  private final transient InputStream attachments;
+  private final transient int size;
+
+  // The response message has no attachments, the stream has the size bytes to send in their place
+  StreamedMessageResponse(ReceiveMessageResponse response, InputStream attachments, int size) {
+    super(HTTPStatus.OK);
+
+    this.response = response;
+    this.attachments = attachments;
+    this.size = size;
+  }
+
+  // Read whole, for batches that are serialized together
+  JsonElement toJsonTree(Gson gson) throws IOException {
+    JsonObject tree = gson.toJsonTree(response).getAsJsonObject();
+
+    try (InputStream input = attachments) {
+      byte[] data = input.readNBytes(size);
+
+      if (data.length != size)
+        throw new IOException("Attachments are shorter than their size.");
+
+      tree.getAsJsonObject(MESSAGE_FIELD).addProperty(ATTACHMENTS_FIELD, Base64.getEncoder().encodeToString(data));
+    }
+
+    return tree;
+  }
+
+  void writeTo(OutputStream output, Gson gson, boolean binary) throws IOException {
+    JsonObject tree = gson.toJsonTree(response).getAsJsonObject();
+    JsonObject message = tree.remove(MESSAGE_FIELD).getAsJsonObject();
+    message.remove(ATTACHMENTS_FIELD);
+
+    try (InputStream input = attachments) {
+      if (binary) {
+        byte[] head = BinaryProtocol.encodeObjectStart(tree, MESSAGE_FIELD);
+        byte[] messageHead = BinaryProtocol.encodeObjectStart(message, ATTACHMENTS_FIELD);
+        byte[] attachmentsHead = BinaryProtocol.encodeBytesStart(size);
+
+        output.write(BinaryProtocol.encodeFrameStart(size, head, messageHead, attachmentsHead));
+        copy(input, output, false);
+      } else {
+        // Both objects have fields, only their closing braces are left for after the attachments
+        String head = withoutClosingBrace(gson.toJson(tree)) + ",\"" + MESSAGE_FIELD + "\":" +
+            withoutClosingBrace(gson.toJson(message)) + ",\"" + ATTACHMENTS_FIELD + "\":\"";
+
+        output.write(head.getBytes(StandardCharsets.UTF_8));
+        copy(input, output, true);
+        output.write("\"}}".getBytes(StandardCharsets.UTF_8));
+      }
+    }
+  }
+
+  /*
+    UTILS
+  */
+  // Exactly size bytes, the binary frame length already counts them
+  private void copy(InputStream input, OutputStream output, boolean encode) throws IOException {
+    byte[] chunk = new byte[CHUNK_SIZE];
+    Base64.Encoder encoder = Base64.getEncoder();
+
+    for (int left = size; left > 0; ) {
+      int read = input.readNBytes(chunk, 0, Math.min(left, CHUNK_SIZE));
+
+      if (read == 0)
+        throw new IOException("Attachments are shorter than their size.");
+
+      if (encode)
+        output.write(encoder.encode(read == CHUNK_SIZE ? chunk : Arrays.copyOf(chunk, read)));
+      else
+        output.write(chunk, 0, read);
+
+      left -= read;
+    }
+  }
+
+  private static String withoutClosingBrace(String json) {
+    return json.substring(0, json.lastIndexOf('}'));
+  }
+}
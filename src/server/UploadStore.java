@@ -0,0 +1,209 @@
+package server;
+
+import shared.errors.request.CustomRequestException;
+import shared.http.HTTPStatus;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Attachments uploaded in chunks, assembled in files until their message is sent.
+// A file is named after the certificate serial of the client that started the upload,
+// so no other client can find it. Uploads not written to for the expiry time are deleted.
+// A message is sent from a claimed upload, which no chunk can be appended to anymore.
+final class UploadStore {
+  // Hex encoded 128 bit random ids, nothing else may reach the file system
+  private static final String ID_PATTERN = "[0-9a-f]{32}";
+  private static final int ID_SIZE = 16;
+
+  // Never matched by an upload id
+  private static final String CLAIMED_SUFFIX = ".claimed";
+
+  // Appends and claims of the same upload never overlap.
+  // Locks instead of monitors so virtual threads never pin their carrier while the file is written
+  private static final int LOCK_STRIPES = 64;
+
+  private final Path dir;
+  private final long maxSize;
+  private final long expiry;
+
+  private final AtomicLong nextSweep;
+  private final SecureRandom random;
+  private final Logger logger;
+  private final ReentrantLock[] locks;
+
+  UploadStore(Path dir, long maxSize, int expiryInMinutes, Logger logger) throws IOException {
+    this.dir = dir;
+    this.maxSize = maxSize;
+    this.logger = logger;
+
+    expiry = expiryInMinutes * 60 * 1000L;
+    nextSweep = new AtomicLong(System.currentTimeMillis());
+    random = new SecureRandom();
+
+    locks = new ReentrantLock[LOCK_STRIPES];
+    for (int i = 0; i < LOCK_STRIPES; i++)
+      locks[i] = new ReentrantLock();
+
+    Files.createDirectories(dir);
+    giveBackClaims();
+  }
+
+  // In bytes
+  long getMaxSize() {
+    return maxSize;
+  }
+
+  String newId() {
+    byte[] id = new byte[ID_SIZE];
+    random.nextBytes(id);
+
+    StringBuilder hex = new StringBuilder();
+    for (byte b : id)
+      hex.append(String.format("%02x", b));
+
+    return hex.toString();
+  }
+
+  // Uploads of other clients are not found either
+  Path get(BigInteger owner, String uploadId) throws CustomRequestException {
+    if (!uploadId.matches(ID_PATTERN))
+      throw new CustomRequestException("Invalid upload id.", HTTPStatus.BAD_REQUEST);
+
+    Path upload = path(owner, uploadId);
+
+    if (!Files.exists(upload))
+      throw new CustomRequestException("Upload not found.", HTTPStatus.NOT_FOUND);
+
+    return upload;
+  }
+
+  // Only created with its first chunk, asking for an offset never leaves a file behind
+  Path create(BigInteger owner, String uploadId, byte[] chunk) throws IOException {
+    Path upload = path(owner, uploadId);
+    Files.write(upload, chunk, StandardOpenOption.CREATE_NEW);
+
+    return upload;
+  }
+
+  // Fails with NoSuchFileException once the upload was claimed
+  void append(Path upload, byte[] chunk) throws IOException {
+    ReentrantLock lock = lock(upload);
+
+    lock.lock();
+    try {
+      Files.write(upload, chunk, StandardOpenOption.APPEND);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Takes the upload away from further chunks, returns the file it can be read from without changing.
+  // Fails with NoSuchFileException if another request claimed it first
+  Path claim(Path upload) throws IOException {
+    ReentrantLock lock = lock(upload);
+
+    lock.lock();
+    try {
+      Path claimed = Files.move(upload, claimed(upload), StandardCopyOption.ATOMIC_MOVE);
+
+      // Expiry starts over, for when the claim is given back
+      Files.setLastModifiedTime(claimed, FileTime.fromMillis(System.currentTimeMillis()));
+
+      return claimed;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Gives a claimed upload back to its client, whose message was not sent
+  void unclaim(Path upload) {
+    ReentrantLock lock = lock(upload);
+
+    lock.lock();
+    try {
+      try {
+        Files.move(claimed(upload), upload, StandardCopyOption.ATOMIC_MOVE);
+      } catch (NoSuchFileException e) {
+        // Already moved to the blob store by an insert that failed after it
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to restore upload " + upload.getFileName() + ".");
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  void delete(Path upload) {
+    try {
+      Files.deleteIfExists(upload);
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to delete upload " + upload.getFileName() + ".");
+    }
+  }
+
+  // Deletes the abandoned uploads, run by at most one request a quarter of the expiry time
+  void sweep() {
+    long now = System.currentTimeMillis();
+    long scheduled = nextSweep.get();
+
+    if (now < scheduled || !nextSweep.compareAndSet(scheduled, now + expiry / 4))
+      return;
+
+    try (DirectoryStream<Path> uploads = Files.newDirectoryStream(dir)) {
+      for (Path upload : uploads) {
+        // The request sending its message deletes it or gives it back
+        if (upload.getFileName().toString().endsWith(CLAIMED_SUFFIX))
+          continue;
+
+        try {
+          if (now - Files.getLastModifiedTime(upload).toMillis() > expiry)
+            delete(upload);
+        } catch (IOException e) {
+          // Deleted since it was listed
+        }
+      }
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Failed to sweep expired uploads: " + e.getMessage());
+    }
+  }
+
+  /*
+    UTILS
+  */
+  // Claims of a stopped server, whose messages were never sent
+  private void giveBackClaims() throws IOException {
+    try (DirectoryStream<Path> claims = Files.newDirectoryStream(dir, "*" + CLAIMED_SUFFIX)) {
+      for (Path claimed : claims) {
+        String name = claimed.getFileName().toString();
+        Path upload = claimed.resolveSibling(name.substring(0, name.length() - CLAIMED_SUFFIX.length()));
+
+        Files.move(claimed, upload, StandardCopyOption.ATOMIC_MOVE);
+        Files.setLastModifiedTime(upload, FileTime.fromMillis(System.currentTimeMillis()));
+      }
+    }
+  }
+
+  private Path path(BigInteger owner, String uploadId) {
+    return dir.resolve(owner.toString(16) + "-" + uploadId);
+  }
+
+  private static Path claimed(Path upload) {
+    return upload.resolveSibling(upload.getFileName() + CLAIMED_SUFFIX);
+  }
+
+  private ReentrantLock lock(Path upload) {
+    return locks[Math.floorMod(upload.hashCode(), LOCK_STRIPES)];
+  }
+}
@@ -0,0 +1,184 @@
+package server;
+
+import server.db.MailboxStorage;
+import shared.errors.db.CriticalDatabaseException;
+import shared.errors.db.DuplicateEntryException;
+import shared.errors.db.EntryNotFoundException;
+import shared.wrappers.User;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Read-through cache of the user directory, by id and by uuid, plus the pages of the user listing.
+// Users never change once registered, so only a new user invalidates anything (the listing pages).
+// Past the maximum size, entries not used since the last eviction pass are dropped first.
+final class UserCache {
+  // Listing pages are few and large, they are kept apart from the users
+  private static final int MAX_PAGES = 64;
+
+  private final MailboxStorage db;
+  private final int maxSize;
+
+  private final ConcurrentHashMap<Integer, Entry> usersById;
+  private final ConcurrentHashMap<String, Integer> idsByUUID;
+  private final ConcurrentHashMap<Long, ArrayList<User>> pages;
+
+  // Bumped by every insert, a page read before it is not cached
+  private final AtomicLong generation;
+
+  private final LongAdder hits;
+  private final LongAdder misses;
+
+  UserCache(MailboxStorage db, int maxSize) {
+    this.db = db;
+    this.maxSize = maxSize;
+
+    usersById = new ConcurrentHashMap<>();
+    idsByUUID = new ConcurrentHashMap<>();
+    pages = new ConcurrentHashMap<>();
+    generation = new AtomicLong();
+
+    hits = new LongAdder();
+    misses = new LongAdder();
+  }
+
+  int insertUser(User user) throws CriticalDatabaseException, DuplicateEntryException {
+    try {
+      return db.insertUser(user);
+    } finally {
+      generation.incrementAndGet();
+      pages.clear();
+      idsByUUID.remove(user.getUuid());
+    }
+  }
+
+  User getUserById(int id) throws CriticalDatabaseException, EntryNotFoundException {
+    Entry entry = usersById.get(id);
+
+    if (entry != null) {
+      entry.used = true;
+      hits.increment();
+      return entry.user;
+    }
+
+    misses.increment();
+
+    // Users not found are not cached, they may register later
+    User user = db.getUserById(id);
+    cache(user);
+
+    return user;
+  }
+
+  User getUserByUUID(String uuid) throws CriticalDatabaseException, EntryNotFoundException {
+    Integer id = idsByUUID.get(uuid);
+    Entry entry = id == null ? null : usersById.get(id);
+
+    if (entry != null) {
+      entry.used = true;
+      hits.increment();
+      return entry.user;
+    }
+
+    misses.increment();
+
+    User user = db.getUserByUUID(uuid);
+
+    // Rows have no uuid, it is kept with the entry to be dropped with it
+    cache(user).uuid = uuid;
+    idsByUUID.put(uuid, user.getId());
+
+    return user;
+  }
+
+  // Callers get their own copy of the page
+  ArrayList<User> getAllUsers(int afterId, int limit) throws CriticalDatabaseException {
+    long key = ((long) afterId << 32) | (limit & 0xffffffffL);
+    ArrayList<User> page = pages.get(key);
+
+    if (page != null) {
+      hits.increment();
+      return new ArrayList<>(page);
+    }
+
+    misses.increment();
+
+    long pageGeneration = generation.get();
+    page = db.getAllUsers(afterId, limit);
+
+    for (User user : page)
+      cache(user);
+
+    if (pages.size() >= MAX_PAGES)
+      pages.clear();
+
+    // Dropped again if a user registered while it was read
+    pages.put(key, page);
+    if (generation.get() != pageGeneration)
+      pages.remove(key);
+
+    return new ArrayList<>(page);
+  }
+
+  long getHits() {
+    return hits.sum();
+  }
+
+  long getMisses() {
+    return misses.sum();
+  }
+
+  int getSize() {
+    return usersById.size();
+  }
+
+  /*
+    UTILS
+  */
+  private Entry cache(User user) {
+    Entry entry = new Entry(user);
+    Entry cached = usersById.putIfAbsent(user.getId(), entry);
+
+    if (cached != null)
+      return cached;
+
+    if (usersById.size() > maxSize)
+      evict();
+
+    return entry;
+  }
+
+  // Second chance, used entries are spared once so two passes always free enough
+  private void evict() {
+    for (int pass = 0; pass < 2 && usersById.size() > maxSize; pass++) {
+      Iterator<Entry> entries = usersById.values().iterator();
+
+      while (entries.hasNext() && usersById.size() > maxSize) {
+        Entry entry = entries.next();
+
+        if (entry.used) {
+          entry.used = false;
+          continue;
+        }
+
+        entries.remove();
+
+        if (entry.uuid != null)
+          idsByUUID.remove(entry.uuid);
+      }
+    }
+  }
+
+  private static final class Entry {
+    private final User user;
+    private volatile String uuid;
+    private volatile boolean used;
+
+    private Entry(User user) {
+      this.user = user;
+    }
+  }
+}
@@ -11,6 +11,7 @@ import shared.errors.request.CustomRequestException;
 import shared.errors.request.InvalidFormatException;
 import shared.errors.request.RequestException;
 import shared.http.HTTPStatus;
+import shared.utils.BinaryProtocol;
 import shared.utils.GsonUtils;
 import shared.utils.crypto.B64Helper;
 import shared.utils.crypto.util.CertificateEntry;
@@ -19,6 +20,7 @@ import shared.utils.properties.CustomProperties;
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
@@ -28,7 +30,7 @@ import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateExpiredException;
 import java.security.cert.CertificateNotYetValidException;
 import java.security.cert.X509Certificate;
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -41,6 +43,7 @@ public final class PKICommsManager {
 
   private final Gson gson;
   private final B64Helper b64Helper;
+  private final boolean binaryProtocol;
 
   private String[] enabledProtocols;
   private String[] enabledCipherSuites;
@@ -51,15 +54,16 @@ public final class PKICommsManager {
   private int pkiTimeout;
   private int pkiCheckValidity;
 
-  private HashMap<String, CertificateEntry> certCache;
+  private final ConcurrentHashMap<String, CertificateEntry> certCache;
 
   public PKICommsManager(CustomProperties properties, SSLContext sslContext, Logger logger) throws PropertyException {
     this.logger = logger;
     this.b64Helper = new B64Helper();
     this.gson = GsonUtils.buildGsonInstance();
 
-    certCache = new HashMap<>();
+    certCache = new ConcurrentHashMap<>();
     debug = properties.getBool(ServerProperty.DEBUG);
+    binaryProtocol = properties.getBool(ServerProperty.BINARY_PROTOCOL);
 
     // Get socket config
     socketFactory = sslContext.getSocketFactory();
@@ -90,8 +94,9 @@ public final class PKICommsManager {
 
     try {
       // Certificate found in cache
-      if (certCache.containsKey(certSN)) {
-        CertificateEntry certificate = certCache.get(certSN);
+      CertificateEntry certificate = certCache.get(certSN);
+
+      if (certificate != null) {
 
         // Check if certificate validity is over
         try {
@@ -126,15 +131,24 @@ public final class PKICommsManager {
       ValidateCertificateRequest request = new ValidateCertificateRequest(certEncoded);
 
       OutputStream output = socket.getOutputStream();
-      JsonReader input = new JsonReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+      JsonElement data;
+
+      // Send request and get response object
+      if (binaryProtocol) {
+        BinaryProtocol.writePreamble(output);
+        BinaryProtocol.writeFrame(output, gson.toJsonTree(request));
 
-      String message = request.json(gson);
-      output.write(message.getBytes(StandardCharsets.UTF_8));
+        data = BinaryProtocol.readFrame(new DataInputStream(socket.getInputStream()), 1);
+      } else {
+        JsonReader input = new JsonReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
 
-      // Get response object
-      JsonElement data = new JsonParser().parse(input);
+        String message = request.json(gson);
+        output.write(message.getBytes(StandardCharsets.UTF_8));
+
+        data = new JsonParser().parse(input);
+      }
 
-      if (!data.isJsonObject())
+      if (data == null || !data.isJsonObject())
         throw new CustomRequestException("Failed to verify Certificate due to PKI response corruption.", HTTPStatus.UNAUTHORIZED);
 
       // Verify validity in response object
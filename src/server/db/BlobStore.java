@@ -0,0 +1,187 @@
+package server.db;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// Attachment ciphertexts kept in files named by their hash, so identical payloads are stored once.
+// Files are staged (hashed) without any lock and only placed when the referencing row is written.
+// Given files must no longer change, uploads are claimed before they are staged.
+public final class BlobStore {
+  private static final String HASH_ALG = "SHA-256";
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  private final Path root;
+
+  public BlobStore(String location) throws IOException {
+    root = Paths.get(location);
+
+    Files.createDirectories(root);
+
+    // Staged files left behind by requests that never finished
+    try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(root, "*.tmp")) {
+      for (Path leftover : leftovers)
+        Files.deleteIfExists(leftover);
+    }
+  }
+
+  // Copies the data to a temporary file while hashing it
+  public StagedBlob stage(InputStream data) throws IOException {
+    Path file = Files.createTempFile(root, "blob", ".tmp");
+    String hash;
+
+    try (OutputStream output = Files.newOutputStream(file)) {
+      hash = hash(data, output);
+    } catch (IOException e) {
+      Files.deleteIfExists(file);
+      throw e;
+    }
+
+    return new StagedBlob(file, hash, Files.size(file), true);
+  }
+
+  // Hashes an existing file, which is moved into the store instead of copied
+  public StagedBlob stage(Path file) throws IOException {
+    try (InputStream data = Files.newInputStream(file)) {
+      return new StagedBlob(file, hash(data, null), Files.size(file), false);
+    }
+  }
+
+  // Returns true if the blob was not stored yet
+  boolean place(StagedBlob blob) throws IOException {
+    Path target = path(blob.getHash());
+
+    if (Files.exists(target)) {
+      discard(blob);
+      return false;
+    }
+
+    Files.createDirectories(target.getParent());
+
+    try {
+      Files.move(blob.file, target, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      // Given files can be on another file system
+      Files.move(blob.file, target);
+    }
+
+    return true;
+  }
+
+  // Only files created by the store are deleted, given files stay with their owner
+  public void discard(StagedBlob blob) {
+    if (!blob.temporary)
+      return;
+
+    try {
+      Files.deleteIfExists(blob.file);
+    } catch (IOException e) {
+      // Removed with the other leftovers on the next start
+    }
+  }
+
+  public InputStream open(String hash) throws IOException {
+    return Files.newInputStream(path(hash));
+  }
+
+  public byte[] read(String hash, long offset, int length) throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(path(hash).toFile(), "r")) {
+      long available = Math.max(0, file.length() - offset);
+      byte[] chunk = new byte[(int) Math.min(length, available)];
+
+      file.seek(offset);
+      file.readFully(chunk);
+
+      return chunk;
+    }
+  }
+
+  void delete(String hash) throws IOException {
+    Files.deleteIfExists(path(hash));
+  }
+
+  // Moves a blob out of the store, it is only deleted once no committed row references it.
+  // Returns null if the blob is not stored
+  Path remove(String hash) throws IOException {
+    Path removed = Files.createTempFile(root, "blob", ".tmp");
+
+    try {
+      Files.move(path(hash), removed, StandardCopyOption.ATOMIC_MOVE);
+    } catch (NoSuchFileException e) {
+      Files.deleteIfExists(removed);
+      return null;
+    }
+
+    return removed;
+  }
+
+  // Puts back a blob removed by a write that was rolled back
+  void restore(String hash, Path removed) throws IOException {
+    Files.move(removed, path(hash), StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /*
+    UTILS
+  */
+  private Path path(String hash) {
+    // Two level layout keeps directories small
+    return root.resolve(hash.substring(0, 2)).resolve(hash);
+  }
+
+  private static String hash(InputStream data, OutputStream copy) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance(HASH_ALG);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+
+    DigestInputStream input = new DigestInputStream(data, digest);
+    byte[] buffer = new byte[BUFFER_SIZE];
+    int read;
+
+    while ((read = input.read(buffer)) != -1) {
+      if (copy != null)
+        copy.write(buffer, 0, read);
+    }
+
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest())
+      hex.append(String.format("%02x", b));
+
+    return hex.toString();
+  }
+
+  public static final class StagedBlob implements MailboxStorage.StagedAttachments {
+    private final Path file;
+    private final String hash;
+    private final long size;
+    private final boolean temporary;
+
+    private StagedBlob(Path file, String hash, long size, boolean temporary) {
+      this.file = file;
+      this.hash = hash;
+      this.size = size;
+      this.temporary = temporary;
+    }
+
+    public String getHash() {
+      return hash;
+    }
+
+    public long getSize() {
+      return size;
+    }
+  }
+}
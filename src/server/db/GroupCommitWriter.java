@@ -0,0 +1,238 @@
+package server.db;
+
+import shared.errors.db.WriteTimeoutException;
+import shared.utils.db.ConnectionPool;
+import shared.utils.db.PooledConnection;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Single writer thread that commits the writes of concurrent requests together.
+// Each write runs in its own savepoint so a failed one does not undo the others, and every
+// caller only gets its result once the transaction holding its write is committed.
+final class GroupCommitWriter {
+  // In milliseconds, longest a write waits in the queue for a batch
+  private static final long WRITE_TIMEOUT = 30 * 1000;
+
+  private final ConnectionPool pool;
+  private final LinkedBlockingQueue<PendingWrite<?>> queue;
+  private final int batchSize;
+  private final long batchDelay;
+  private final long writeTimeout;
+
+  private final AtomicLong batches;
+  private final AtomicLong writes;
+
+  // Batch delay in milliseconds, how long the first write of a batch waits for others to join
+  GroupCommitWriter(ConnectionPool pool, int batchSize, int batchDelay) {
+    this(pool, batchSize, batchDelay, WRITE_TIMEOUT);
+  }
+
+  // Write timeout in milliseconds
+  GroupCommitWriter(ConnectionPool pool, int batchSize, int batchDelay, long writeTimeout) {
+    this.pool = pool;
+    this.batchSize = batchSize;
+    this.batchDelay = TimeUnit.MILLISECONDS.toNanos(batchDelay);
+    this.writeTimeout = writeTimeout;
+
+    queue = new LinkedBlockingQueue<>();
+    batches = new AtomicLong();
+    writes = new AtomicLong();
+
+    Thread writerThread = new Thread(this::writeLoop, "db-writer");
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  // Blocks until the write is committed or failed. Undo runs on the writer thread if it is rolled back.
+  // Only a write still queued after the timeout is given up, so a timeout always means nothing was written
+  <T> T write(Write<T> write, Runnable undo) throws SQLException, IOException, WriteTimeoutException {
+    PendingWrite<T> pending = new PendingWrite<>(write, undo);
+    queue.add(pending);
+
+    boolean interrupted = false;
+
+    try {
+      try {
+        return pending.result.get(writeTimeout, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException | InterruptedException e) {
+        interrupted = e instanceof InterruptedException;
+
+        // Taken out before the writer thread gets it, it never runs
+        if (queue.remove(pending))
+          throw new WriteTimeoutException();
+
+        // Already in a batch, its caller gets the outcome of that batch
+        while (true) {
+          try {
+            return pending.result.get();
+          } catch (InterruptedException again) {
+            interrupted = true;
+          }
+        }
+      }
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof SQLException)
+        throw (SQLException) e.getCause();
+
+      if (e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      if (interrupted)
+        Thread.currentThread().interrupt();
+    }
+  }
+
+  long getBatches() {
+    return batches.get();
+  }
+
+  long getWrites() {
+    return writes.get();
+  }
+
+  /*
+    UTILS
+  */
+  private void writeLoop() {
+    ArrayList<PendingWrite<?>> batch = new ArrayList<>(batchSize);
+
+    while (true) {
+      try {
+        batch.add(queue.take());
+
+        // Writes that arrive while the first one waits share its commit
+        long deadline = System.nanoTime() + batchDelay;
+
+        while (batch.size() < batchSize) {
+          PendingWrite<?> next = queue.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+
+          if (next == null)
+            break;
+
+          batch.add(next);
+        }
+
+        commit(batch);
+      } catch (InterruptedException e) {
+        // Daemon thread, only stops with the server
+      } catch (Throwable e) {
+        // The writer outlives any failure, only the writes of this batch are lost
+        failAll(batch, e);
+      }
+
+      batch.clear();
+    }
+  }
+
+  private void commit(ArrayList<PendingWrite<?>> batch) throws SQLException {
+    PooledConnection connection = pool.acquireWriter();
+
+    try {
+      connection.setAutoCommit(false);
+
+      for (PendingWrite<?> pending : batch) {
+        connection.execute("SAVEPOINT write;");
+
+        try {
+          pending.run(connection);
+          connection.execute("RELEASE write;");
+        } catch (SQLException | IOException | RuntimeException e) {
+          connection.execute("ROLLBACK TO write;");
+          connection.execute("RELEASE write;");
+          pending.fail(e);
+        }
+      }
+
+      connection.commit();
+
+      batches.incrementAndGet();
+      writes.addAndGet(batch.size());
+
+      for (PendingWrite<?> pending : batch)
+        pending.complete();
+    } catch (SQLException | RuntimeException e) {
+      try {
+        connection.rollback();
+      } catch (SQLException rollbackError) {
+        // Nothing was written
+      }
+
+      // Every write of the batch is lost with the transaction
+      failAll(batch, e);
+    } finally {
+      try {
+        connection.setAutoCommit(true);
+      } catch (SQLException e) {
+        // Next batch disables it again
+      }
+
+      // Thrown after the commit, the pending writes already have their result
+      pool.release(connection);
+    }
+  }
+
+  // Undone in reverse order, a write can replace a file that an earlier one moved
+  private static void failAll(ArrayList<PendingWrite<?>> batch, Throwable e) {
+    for (int i = batch.size() - 1; i >= 0; i--)
+      batch.get(i).fail(e);
+  }
+
+  interface Write<T> {
+    T run(PooledConnection connection) throws SQLException, IOException;
+  }
+
+  private static final class PendingWrite<T> {
+    private final Write<T> write;
+    private final Runnable undo;
+    private final CompletableFuture<T> result;
+
+    private T value;
+    private Throwable error;
+
+    private PendingWrite(Write<T> write, Runnable undo) {
+      this.write = write;
+      this.undo = undo;
+
+      result = new CompletableFuture<>();
+    }
+
+    private void run(PooledConnection connection) throws SQLException, IOException {
+      value = write.run(connection);
+    }
+
+    // Failed writes answer right away, the others wait for the commit
+    private void fail(Throwable e) {
+      if (error != null || result.isDone())
+        return;
+
+      error = e;
+
+      try {
+        if (undo != null)
+          undo.run();
+      } catch (RuntimeException undoError) {
+        // The write itself is already rolled back, at worst a file is left behind
+      }
+
+      result.completeExceptionally(e);
+    }
+
+    private void complete() {
+      if (error == null)
+        result.complete(value);
+    }
+  }
+}
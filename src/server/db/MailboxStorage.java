@@ -0,0 +1,77 @@
+package server.db;
+
+import shared.Pair;
+import shared.errors.db.*;
+import shared.parameters.ServerParameter;
+import shared.parameters.ServerParameterMap;
+import shared.wrappers.Message;
+import shared.wrappers.Receipt;
+import shared.wrappers.User;
+
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+// Users, messages, receipts and server parameters as the request handlers see them.
+// Engines are picked with the storage_engine property, listings page by id after a cursor.
+public interface MailboxStorage {
+  /*
+    USERS
+  */
+  int insertUser(User user) throws CriticalDatabaseException, DuplicateEntryException;
+
+  User getUserById(int id) throws CriticalDatabaseException, EntryNotFoundException;
+
+  User getUserByUUID(String uuid) throws CriticalDatabaseException, EntryNotFoundException;
+
+  ArrayList<User> getAllUsers(int afterId, int limit) throws CriticalDatabaseException;
+
+  /*
+    MESSAGE BOX
+  */
+  ArrayList<Integer> getUnreadMessages(int userId, int afterId, int limit) throws CriticalDatabaseException;
+
+  // Received ids are prefixed with "_" when read
+  Pair<ArrayList<String>, ArrayList<Integer>> getAllMessages(int userId, int afterId, int limit) throws CriticalDatabaseException;
+
+  // Attachments are prepared before the message is inserted, outside of any lock
+  StagedAttachments stageAttachments(InputStream attachments) throws CriticalDatabaseException;
+
+  StagedAttachments stageAttachments(Path attachments) throws CriticalDatabaseException;
+
+  void discardAttachments(StagedAttachments attachments);
+
+  // Attachments are null if the message has none
+  int insertMessage(Message msg, StagedAttachments attachments) throws CriticalDatabaseException, FailedToInsertException, WriteTimeoutException;
+
+  Message getMessage(int messageId) throws CriticalDatabaseException, EntryNotFoundException;
+
+  Pair<Message, Integer> getMessageWithoutAttachments(int messageId) throws CriticalDatabaseException, EntryNotFoundException;
+
+  Pair<byte[], Integer> getAttachmentsChunk(int messageId, int offset, int length) throws CriticalDatabaseException, EntryNotFoundException;
+
+  // Attachments read while they are sent, as many bytes as getMessageWithoutAttachments reports
+  InputStream getAttachments(int messageId) throws CriticalDatabaseException, EntryNotFoundException;
+
+  /*
+    RECEIPT BOX
+  */
+  // Sets the message as read, returns the id of the message sender
+  int insertReceipt(Receipt rcpt) throws CriticalDatabaseException, FailedToInsertException, EntryNotFoundException, WriteTimeoutException;
+
+  ArrayList<Receipt> getReceipts(int messageId) throws CriticalDatabaseException;
+
+  /*
+    Server Parameters
+  */
+  void insertParameter(ServerParameter parameter, String value) throws CriticalDatabaseException, FailedToInsertException;
+
+  void deleteAllParameters() throws CriticalDatabaseException;
+
+  ServerParameterMap getAllParameters() throws CriticalDatabaseException;
+
+  // Attachments of a message about to be inserted, only understood by the engine that staged them
+  interface StagedAttachments {
+    long getSize();
+  }
+}
@@ -0,0 +1,457 @@
+package server.db;
+
+import shared.Pair;
+import shared.errors.db.*;
+import shared.parameters.ServerParameter;
+import shared.parameters.ServerParameterMap;
+import shared.utils.crypto.B64Helper;
+import shared.wrappers.Message;
+import shared.wrappers.Receipt;
+import shared.wrappers.User;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Engine that keeps everything in memory and loses it on restart, for benchmarks and relay nodes.
+// Users and messages live in arrays indexed by their sequential ids, so reads never lock and
+// listings walk ids in order. Inserts take a lock so ids become visible in order.
+public final class MemoryStorage implements MailboxStorage {
+  private final IdTable<User> users;
+  private final IdTable<Mailbox> mailboxes;
+  private final ConcurrentHashMap<String, Integer> userIdsByUUID;
+
+  private final IdTable<StoredMessage> messages;
+
+  private final ServerParameterMap parameters;
+
+  private final ReentrantLock userLock;
+  private final ReentrantLock messageLock;
+  private final ReentrantLock parameterLock;
+  private final B64Helper b64Helper;
+
+  public MemoryStorage() {
+    users = new IdTable<>();
+    mailboxes = new IdTable<>();
+    userIdsByUUID = new ConcurrentHashMap<>();
+    messages = new IdTable<>();
+    parameters = new ServerParameterMap();
+
+    userLock = new ReentrantLock();
+    messageLock = new ReentrantLock();
+    parameterLock = new ReentrantLock();
+    b64Helper = new B64Helper();
+  }
+
+  /*
+    USERS
+  */
+  public int insertUser(User user) throws DuplicateEntryException {
+    userLock.lock();
+    try {
+      if (userIdsByUUID.containsKey(user.getUuid()))
+        throw new DuplicateEntryException();
+
+      int userId = users.getLastId() + 1;
+
+      // Stored like the SQLite engine returns them, without the uuid
+      mailboxes.put(userId, new Mailbox());
+      users.put(userId, new User(
+          userId,
+          user.getPubKey(),
+          user.getDhSeaPubKey(),
+          user.getDhMacPubKey(),
+          user.getSeaSpec(),
+          user.getMacSpec(),
+          user.getSecDataSignature()
+      ));
+      userIdsByUUID.put(user.getUuid(), userId);
+
+      return userId;
+    } finally {
+      userLock.unlock();
+    }
+  }
+
+  public User getUserById(int id) throws EntryNotFoundException {
+    User user = users.get(id);
+
+    if (user == null)
+      throw new EntryNotFoundException();
+
+    return user;
+  }
+
+  public User getUserByUUID(String uuid) throws EntryNotFoundException {
+    Integer userId = userIdsByUUID.get(uuid);
+
+    if (userId == null)
+      throw new EntryNotFoundException();
+
+    return getUserById(userId);
+  }
+
+  public ArrayList<User> getAllUsers(int afterId, int limit) {
+    ArrayList<User> page = new ArrayList<>();
+    int lastId = users.getLastId();
+
+    for (int id = Math.max(afterId, 0) + 1; id <= lastId && page.size() < limit; id++) {
+      User user = users.get(id);
+
+      if (user != null)
+        page.add(user);
+    }
+
+    return page;
+  }
+
+  /*
+    MESSAGE BOX
+  */
+  public ArrayList<Integer> getUnreadMessages(int userId, int afterId, int limit) {
+    ArrayList<Integer> messageIds = new ArrayList<>();
+    Mailbox mailbox = mailboxes.get(userId);
+
+    if (mailbox == null)
+      return messageIds;
+
+    int count = mailbox.receivedCount;
+    int[] received = mailbox.received;
+
+    for (int i = firstAfter(received, count, afterId); i < count && messageIds.size() < limit; i++) {
+      if (!messages.get(received[i]).read)
+        messageIds.add(received[i]);
+    }
+
+    return messageIds;
+  }
+
+  public Pair<ArrayList<String>, ArrayList<Integer>> getAllMessages(int userId, int afterId, int limit) {
+    ArrayList<String> receivedMessageIds = new ArrayList<>();
+    ArrayList<Integer> sentMessageIds = new ArrayList<>();
+    Mailbox mailbox = mailboxes.get(userId);
+
+    if (mailbox == null)
+      return new Pair<>(receivedMessageIds, sentMessageIds);
+
+    int receivedCount = mailbox.receivedCount;
+    int[] received = mailbox.received;
+    int sentCount = mailbox.sentCount;
+    int[] sent = mailbox.sent;
+
+    int r = firstAfter(received, receivedCount, afterId);
+    int s = firstAfter(sent, sentCount, afterId);
+
+    // Both are in id order, a message sent to oneself is in both and counts once
+    for (int taken = 0; taken < limit && (r < receivedCount || s < sentCount); taken++) {
+      int messageId = Math.min(
+          r < receivedCount ? received[r] : Integer.MAX_VALUE,
+          s < sentCount ? sent[s] : Integer.MAX_VALUE
+      );
+
+      if (r < receivedCount && received[r] == messageId) {
+        receivedMessageIds.add((messages.get(messageId).read ? "_" : "") + messageId);
+        r++;
+      }
+
+      if (s < sentCount && sent[s] == messageId) {
+        sentMessageIds.add(messageId);
+        s++;
+      }
+    }
+
+    return new Pair<>(receivedMessageIds, sentMessageIds);
+  }
+
+  public StagedAttachments stageAttachments(InputStream attachments) throws CriticalDatabaseException {
+    try {
+      return new MemoryAttachments(attachments.readAllBytes());
+    } catch (IOException e) {
+      throw new CriticalDatabaseException(e);
+    }
+  }
+
+  public StagedAttachments stageAttachments(Path attachments) throws CriticalDatabaseException {
+    try {
+      return new MemoryAttachments(Files.readAllBytes(attachments));
+    } catch (IOException e) {
+      throw new CriticalDatabaseException(e);
+    }
+  }
+
+  public void discardAttachments(StagedAttachments attachments) {
+    // Freed with the last reference
+  }
+
+  public int insertMessage(Message msg, StagedAttachments attachments) throws FailedToInsertException {
+    Mailbox senderMailbox = mailboxes.get(msg.getSenderId());
+    Mailbox receiverMailbox = mailboxes.get(msg.getReceiverId());
+
+    if (senderMailbox == null || receiverMailbox == null)
+      throw new FailedToInsertException();
+
+    // Attachments are kept apart from the message fields
+    StoredMessage message = new StoredMessage(
+        new Message(msg.getSenderId(), msg.getReceiverId(), msg.getText(), msg.getAttachmentData(), "", msg.getIV(), msg.getSenderSignature()),
+        attachments == null ? null : ((MemoryAttachments) attachments).data
+    );
+
+    messageLock.lock();
+    try {
+      int messageId = messages.getLastId() + 1;
+
+      messages.put(messageId, message);
+      receiverMailbox.addReceived(messageId);
+      senderMailbox.addSent(messageId);
+
+      return messageId;
+    } finally {
+      messageLock.unlock();
+    }
+  }
+
+  public Message getMessage(int messageId) throws EntryNotFoundException {
+    StoredMessage stored = getStoredMessage(messageId);
+    Message message = stored.message;
+
+    return new Message(
+        message.getSenderId(),
+        message.getReceiverId(),
+        message.getText(),
+        message.getAttachmentData(),
+        b64Helper.encode(stored.attachments == null ? new byte[0] : stored.attachments),
+        message.getIV(),
+        message.getSenderSignature()
+    );
+  }
+
+  public Pair<Message, Integer> getMessageWithoutAttachments(int messageId) throws EntryNotFoundException {
+    StoredMessage stored = getStoredMessage(messageId);
+
+    return new Pair<>(stored.message, stored.attachments == null ? 0 : stored.attachments.length);
+  }
+
+  public Pair<byte[], Integer> getAttachmentsChunk(int messageId, int offset, int length) throws EntryNotFoundException {
+    StoredMessage stored = getStoredMessage(messageId);
+
+    if (stored.attachments == null)
+      return new Pair<>(new byte[0], 0);
+
+    int start = Math.min(Math.max(offset, 0), stored.attachments.length);
+    int end = (int) Math.min((long) start + Math.max(length, 0), stored.attachments.length);
+
+    return new Pair<>(Arrays.copyOfRange(stored.attachments, start, end), stored.attachments.length);
+  }
+
+  public InputStream getAttachments(int messageId) throws EntryNotFoundException {
+    StoredMessage stored = getStoredMessage(messageId);
+
+    return new ByteArrayInputStream(stored.attachments == null ? new byte[0] : stored.attachments);
+  }
+
+  /*
+    RECEIPT BOX
+  */
+  public int insertReceipt(Receipt rcpt) throws FailedToInsertException, EntryNotFoundException {
+    StoredMessage stored = getStoredMessage(rcpt.getMessageId());
+
+    if (users.get(rcpt.getSenderId()) == null)
+      throw new FailedToInsertException();
+
+    stored.read = true;
+    stored.receipts.add(rcpt);
+
+    return stored.message.getSenderId();
+  }
+
+  public ArrayList<Receipt> getReceipts(int messageId) {
+    StoredMessage stored = messages.get(messageId);
+
+    return stored == null ? new ArrayList<>() : new ArrayList<>(stored.receipts);
+  }
+
+  /*
+    Server Parameters
+  */
+  public void insertParameter(ServerParameter parameter, String value) throws FailedToInsertException {
+    parameterLock.lock();
+    try {
+      if (parameters.containsKey(parameter.dbName()))
+        throw new FailedToInsertException();
+
+      parameters.put(parameter, value);
+    } finally {
+      parameterLock.unlock();
+    }
+  }
+
+  public void deleteAllParameters() {
+    parameterLock.lock();
+    try {
+      parameters.clear();
+    } finally {
+      parameterLock.unlock();
+    }
+  }
+
+  public ServerParameterMap getAllParameters() {
+    ServerParameterMap copy = new ServerParameterMap();
+
+    parameterLock.lock();
+    try {
+      copy.putAll(parameters);
+    } finally {
+      parameterLock.unlock();
+    }
+
+    return copy;
+  }
+
+  /*
+    UTILS
+  */
+  private StoredMessage getStoredMessage(int messageId) throws EntryNotFoundException {
+    StoredMessage stored = messages.get(messageId);
+
+    if (stored == null)
+      throw new EntryNotFoundException();
+
+    return stored;
+  }
+
+  // Index of the first id after the cursor in a sorted array
+  private static int firstAfter(int[] ids, int count, int afterId) {
+    int index = Arrays.binarySearch(ids, 0, count, afterId);
+
+    return index >= 0 ? index + 1 : -index - 1;
+  }
+
+  // Values by sequential id in chunks allocated on demand.
+  // The chunk index grows with the ids, replaced by a bigger copy when full
+  private static final class IdTable<T> {
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int INITIAL_CHUNKS = 16;
+
+    private volatile AtomicReferenceArray<T>[] chunks;
+    private volatile int lastId;
+
+    private IdTable() {
+      chunks = newChunks(INITIAL_CHUNKS);
+      lastId = 0;
+    }
+
+    // Arrays of a generic type can only be created raw
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T> AtomicReferenceArray<T>[] newChunks(int count) {
+      return new AtomicReferenceArray[count];
+    }
+
+    private T get(int id) {
+      // Read before the chunks, every chunk up to the last id is in the index seen after it
+      if (id <= 0 || id > lastId)
+        return null;
+
+      AtomicReferenceArray<T> chunk = chunks[id >>> CHUNK_BITS];
+
+      return chunk == null ? null : chunk.get(id & CHUNK_MASK);
+    }
+
+    // Ids are put in order by a single thread at a time
+    private void put(int id, T value) {
+      int index = id >>> CHUNK_BITS;
+      AtomicReferenceArray<T>[] current = chunks;
+
+      if (index >= current.length) {
+        current = Arrays.copyOf(current, Math.max(current.length * 2, index + 1));
+        chunks = current;
+      }
+
+      AtomicReferenceArray<T> chunk = current[index];
+
+      if (chunk == null) {
+        chunk = new AtomicReferenceArray<>(CHUNK_SIZE);
+        current[index] = chunk;
+      }
+
+      chunk.set(id & CHUNK_MASK, value);
+
+      // Published last, readers never see an id without its value
+      if (id > lastId)
+        lastId = id;
+    }
+
+    private int getLastId() {
+      return lastId;
+    }
+  }
+
+  // Ids of the messages a user received and sent, in id order.
+  // Only appended to under the message lock, readers take the count before the array
+  private static final class Mailbox {
+    private static final int INITIAL_SIZE = 16;
+
+    private volatile int[] received;
+    private volatile int receivedCount;
+    private volatile int[] sent;
+    private volatile int sentCount;
+
+    private Mailbox() {
+      received = new int[INITIAL_SIZE];
+      sent = new int[INITIAL_SIZE];
+    }
+
+    private void addReceived(int messageId) {
+      if (receivedCount == received.length)
+        received = Arrays.copyOf(received, received.length * 2);
+
+      received[receivedCount] = messageId;
+      receivedCount++;
+    }
+
+    private void addSent(int messageId) {
+      if (sentCount == sent.length)
+        sent = Arrays.copyOf(sent, sent.length * 2);
+
+      sent[sentCount] = messageId;
+      sentCount++;
+    }
+  }
+
+  private static final class StoredMessage {
+    private final Message message;
+    private final byte[] attachments;
+    private final ConcurrentLinkedQueue<Receipt> receipts;
+    private volatile boolean read;
+
+    private StoredMessage(Message message, byte[] attachments) {
+      this.message = message;
+      this.attachments = attachments;
+
+      receipts = new ConcurrentLinkedQueue<>();
+      read = false;
+    }
+  }
+
+  private static final class MemoryAttachments implements StagedAttachments {
+    private final byte[] data;
+
+    private MemoryAttachments(byte[] data) {
+      this.data = data;
+    }
+
+    public long getSize() {
+      return data.length;
+    }
+  }
+}
@@ -1,6 +1,5 @@
 package server.db;
 
-import org.sqlite.JDBC;
 import shared.utils.crypto.B64Helper;
 import shared.wrappers.Message;
 import shared.wrappers.Receipt;
@@ -9,38 +8,154 @@ import shared.Pair;
 import shared.errors.db.*;
 import shared.parameters.ServerParameterMap;
 import shared.parameters.ServerParameter;
-import sun.java2d.xr.XRRenderer;
-
+import shared.utils.db.ConnectionPool;
+import shared.utils.db.PooledConnection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Base64;
 
-public final class ServerDatabaseDriver {
+// SQLite engine, attachments are kept in the blob store
+public final class ServerDatabaseDriver implements MailboxStorage {
   private static final int ERR_UNIQUE_CONSTRAINT = 19;
   private static final int ERR_FOREIGN_KEY_CONSTRAINT = 787;
 
-  private Connection connection;
+  // Mailbox queries, checked against the indexes they are meant to use.
+  // Listings only read ids and flags, which the indexes hold, so they never load message rows
+  private static final String UNREAD_MESSAGES_QUERY = "SELECT message_id FROM messages WHERE receiver_id = ? AND read = 0 AND message_id > ? ORDER BY message_id LIMIT ?;";
+  private static final String ALL_MESSAGES_QUERY =
+      "SELECT message_id, MAX(received) AS received, MAX(sent) AS sent, MAX(read) AS read FROM (" +
+          "SELECT message_id, 1 AS received, 0 AS sent, read FROM messages WHERE receiver_id = ? AND message_id > ? " +
+          "UNION ALL " +
+          "SELECT message_id, 0, 1, 0 FROM messages WHERE sender_id = ? AND message_id > ?" +
+          ") GROUP BY message_id ORDER BY message_id LIMIT ?;";
+  private static final String RECEIPTS_QUERY = "SELECT * FROM receipts WHERE message_id = ?;";
+
+  // Applied in order to databases behind their version, each in its own transaction.
+  // Migrations that shipped are never edited, changes go in a new one at the end
+  private static final String[][] MIGRATIONS = {
+      // 1 - Mailbox indexes, the message id is the rowid so it orders every index entry
+      {
+          "CREATE INDEX IF NOT EXISTS messages_receiver_read ON messages (receiver_id, read);",
+          "CREATE INDEX IF NOT EXISTS messages_sender ON messages (sender_id);",
+          "CREATE INDEX IF NOT EXISTS receipts_message ON receipts (message_id);"
+      },
+      // 2 - Shard of the file and the shard count, message ids depend on both
+      {
+          "CREATE TABLE IF NOT EXISTS shard_layout (shard INTEGER NOT NULL, shards INTEGER NOT NULL);"
+      }
+  };
+
+  private final ConnectionPool pool;
+  private final GroupCommitWriter writer;
   private B64Helper b64Helper;
+  private final BlobStore blobs;
 
-  public ServerDatabaseDriver(String dbPath) throws CriticalDatabaseException {
-    // Connect to file
-    connection = connect(dbPath);
+  // Writes of messages and receipts are committed in batches of up to writeBatchSize, waiting up to writeBatchDelay ms
+  public ServerDatabaseDriver(ConnectionPool pool, String blobPath, int writeBatchSize, int writeBatchDelay) throws CriticalDatabaseException {
+    this.pool = pool;
 
-    // Create tables they do not exist
+    // Create tables they do not exist and bring them to the current schema
     createTables();
+    migrate();
+    checkQueryPlans();
 
+    writer = new GroupCommitWriter(pool, writeBatchSize, writeBatchDelay);
     b64Helper = new B64Helper();
+
+    try {
+      blobs = new BlobStore(blobPath);
+    } catch (IOException e) {
+      throw new CriticalDatabaseException(e);
+    }
   }
 
-  private Connection connect(String path) throws CriticalDatabaseException {
+  private boolean columnExists(PooledConnection connection, String table, String column) throws SQLException {
+    ResultSet rs = connection.query(connection.prepare("PRAGMA table_info(" + table + ");"));
+
+    while (rs.next()) {
+      if (rs.getString("name").equals(column)) {
+        rs.close();
+        return true;
+      }
+    }
+
+    rs.close();
+    return false;
+  }
+
+  private void rollback(PooledConnection connection) {
     try {
-      DriverManager.registerDriver(new JDBC());
-      return DriverManager.getConnection("jdbc:sqlite:" + path);
+      connection.rollback();
+    } catch (SQLException e) {
+      // Nothing was written
+    }
+  }
+
+  private void release(PooledConnection connection) throws CriticalDatabaseException {
+    try {
+      pool.release(connection);
+    } catch (SQLException e) {
+      throw new CriticalDatabaseException(e);
+    }
+  }
+
+  private void setAutoCommit(PooledConnection connection) throws CriticalDatabaseException {
+    try {
+      connection.setAutoCommit(true);
     } catch (SQLException e) {
       throw new CriticalDatabaseException(e);
     }
   }
 
+  // Encoded while it is read, the raw file is never held in memory
+  private String encodeBlob(String hash) throws IOException {
+    ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+
+    try (InputStream input = blobs.open(hash); OutputStream encoder = Base64.getEncoder().wrap(encoded)) {
+      input.transferTo(encoder);
+    }
+
+    return encoded.toString(StandardCharsets.US_ASCII);
+  }
+
+  private void deleteBlob(String hash) {
+    try {
+      blobs.delete(hash);
+    } catch (IOException e) {
+      // Orphaned blobs are only wasted space
+    }
+  }
+
+  private void restoreBlob(String hash, Path removed) {
+    try {
+      blobs.restore(hash, removed);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void deleteFile(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      // Removed with the other leftovers on the next start
+    }
+  }
+
   private void createTables() throws CriticalDatabaseException {
+    PooledConnection connection = pool.acquireWriter();
+
     try {
       String query =
           "CREATE TABLE IF NOT EXISTS users (" +
@@ -55,7 +170,7 @@ public final class ServerDatabaseDriver {
               "sec_data_signature TEXT    NOT NULL " + // Signature of all security data
               ");";
 
-      connection.createStatement().execute(query);
+      connection.execute(query);
 
       query =
           "CREATE TABLE IF NOT EXISTS messages (" +
@@ -65,14 +180,31 @@ public final class ServerDatabaseDriver {
               "read             INTEGER NOT NULL DEFAULT 0, " + // Boolean - 0 of not read, 1 if read
               "text             TEXT, " +
               "attachment_data  TEXT, " +
-              "attachments      BLOB, " +
+              "attachments      BLOB, " + // Only used by messages stored before the blob store
               "cipher_iv        TEXT, " + // Sea IV for cipher used in encryption or null if none used
               "sender_signature TEXT, " + // Signed with sender public key
+              "attachments_hash TEXT, " + // Blob store reference or null if no attachments
               "FOREIGN KEY (sender_id)   REFERENCES users(user_id)," +
               "FOREIGN KEY (receiver_id) REFERENCES users(user_id)" +
               ");";
 
-      connection.createStatement().execute(query);
+      connection.execute(query);
+
+      // Databases created before the blob store
+      if (!columnExists(connection, "messages", "attachments_hash"))
+        connection.execute("ALTER TABLE messages ADD COLUMN attachments_hash TEXT;");
+
+      query =
+          "CREATE TABLE IF NOT EXISTS blobs (" +
+              "hash TEXT    PRIMARY KEY, " +
+              "size INTEGER NOT NULL, " +
+              "refs INTEGER NOT NULL " + // Messages referencing the blob, deleted at 0
+              ");";
+
+      connection.execute(query);
+
+      // Finds the other messages of a blob when one is deleted
+      connection.execute("CREATE INDEX IF NOT EXISTS messages_attachments ON messages (attachments_hash);");
 
       query =
           "CREATE TABLE IF NOT EXISTS receipts (" +
@@ -84,7 +216,7 @@ public final class ServerDatabaseDriver {
               "FOREIGN KEY (sender_id) REFERENCES users(user_id)" +
               ");";
 
-      connection.createStatement().execute(query);
+      connection.execute(query);
 
       query =
           "CREATE TABLE IF NOT EXISTS server_params (" +
@@ -92,21 +224,112 @@ public final class ServerDatabaseDriver {
               "value TEXT    NOT NULL " +
               ");";
 
-      connection.createStatement().execute(query);
+      connection.execute(query);
     } catch (SQLException e) {
       throw new CriticalDatabaseException(e);
+    } finally {
+      release(connection);
     }
   }
 
+  private void migrate() throws CriticalDatabaseException {
+    PooledConnection connection = pool.acquireWriter();
+
+    try {
+      connection.execute("CREATE TABLE IF NOT EXISTS schema_version (version INTEGER NOT NULL);");
+      connection.execute("INSERT INTO schema_version (version) SELECT 0 WHERE NOT EXISTS (SELECT * FROM schema_version);");
+
+      ResultSet rs = connection.query(connection.prepare("SELECT version FROM schema_version;"));
+      rs.next();
+      int version = rs.getInt("version");
+      rs.close();
+
+      for (; version < MIGRATIONS.length; version++) {
+        connection.setAutoCommit(false);
+
+        try {
+          for (String statement : MIGRATIONS[version])
+            connection.execute(statement);
+
+          PreparedStatement ps = connection.prepare("UPDATE schema_version SET version = ?;");
+          ps.setInt(1, version + 1);
+          ps.executeUpdate();
+
+          connection.commit();
+        } catch (SQLException e) {
+          rollback(connection);
+          throw e;
+        } finally {
+          setAutoCommit(connection);
+        }
+      }
+    } catch (SQLException e) {
+      throw new CriticalDatabaseException(e);
+    } finally {
+      release(connection);
+    }
+  }
+
+  // Fails if a mailbox query stopped using its index, e.g. after a schema change
+  private void checkQueryPlans() throws CriticalDatabaseException {
+    checkQueryPlan(UNREAD_MESSAGES_QUERY, "COVERING INDEX messages_receiver_read");
+    checkQueryPlan(ALL_MESSAGES_QUERY, "COVERING INDEX messages_receiver_read", "COVERING INDEX messages_sender");
+    checkQueryPlan(RECEIPTS_QUERY, "INDEX receipts_message");
+  }
+
+  private void checkQueryPlan(String query, String... indexes) throws CriticalDatabaseException {
+    PooledConnection connection = null;
+
+    try {
+      // Readers that loaded the schema before the migrations plan with the old one until their next read
+      connection = pool.acquireWriter();
+
+      PreparedStatement ps = connection.prepare("EXPLAIN QUERY PLAN " + query);
+
+      // The plan does not depend on the values, but the driver refuses to run unbound parameters
+      for (int i = 1; i <= ps.getParameterMetaData().getParameterCount(); i++)
+        ps.setNull(i, Types.INTEGER);
+
+      ResultSet rs = connection.query(ps);
+
+      StringBuilder plan = new StringBuilder();
+      while (rs.next())
+        plan.append(rs.getString("detail")).append("; ");
+
+      rs.close();
+
+      for (String index : indexes) {
+        if (!plan.toString().contains(index + " "))
+          throw new SQLException("Query does not use " + index + ": " + query + " (" + plan + ")");
+      }
+    } catch (SQLException e) {
+      throw new CriticalDatabaseException(e);
+    } finally {
+      release(connection);
+    }
+  }
+
+  public long getWriteBatches() {
+    return writer.getBatches();
+  }
+
+  public long getBatchedWrites() {
+    return writer.getWrites();
+  }
+
   /*
     USERS
   */
   public int insertUser(User user) throws CriticalDatabaseException, DuplicateEntryException {
+    PooledConnection connection = null;
+
     try {
+      connection = pool.acquireWriter();
+
       // Insert user
       String statement = "INSERT INTO users (uuid, pub_key, dh_sea_pub_key, dh_mac_pub_key, sea_spec, mac_spec, sec_data_signature) VALUES (?, ?, ?, ?, ?, ?, ?);";
 
-      PreparedStatement ps = connection.prepareStatement(statement);
+      PreparedStatement ps = connection.prepare(statement);
       ps.setString(1, user.getUuid());
       ps.setString(2, user.getPubKey());
 
@@ -124,7 +347,6 @@ public final class ServerDatabaseDriver {
       int userId = rs.getInt(1);
 
       rs.close();
-      ps.close();
 
       return userId;
     } catch (SQLException e) {
@@ -132,20 +354,28 @@ public final class ServerDatabaseDriver {
         throw new DuplicateEntryException();
 
       throw new CriticalDatabaseException(e);
+    } finally {
+      release(connection);
     }
   }
 
   public User getUserById(int id) throws CriticalDatabaseException, EntryNotFoundException {
+    PooledConnection connection = null;
+
     try {
+      connection = pool.acquireReader();
+
       String statement = "SELECT * FROM users WHERE user_id = ?;";
 
-      PreparedStatement ps = connection.prepareStatement(statement);
+      PreparedStatement ps = connection.prepare(statement);
       ps.setString(1, String.valueOf(id));
 
-      ResultSet rs = ps.executeQuery();
+      ResultSet rs = connection.query(ps);
 
-      if (!rs.next())
+      if (!rs.next()) {
+        rs.close();
         throw new EntryNotFoundException();
+      }
 
       User user = new User(
           rs.getInt("user_id"),
@@ -158,25 +388,32 @@ public final class ServerDatabaseDriver {
       );
 
       rs.close();
-      ps.close();
 
       return user;
     } catch (SQLException e) {
       throw new CriticalDatabaseException(e);
+    } finally {
+      release(connection);
     }
   }
 
   public User getUserByUUID(String uuid) throws CriticalDatabaseException, EntryNotFoundException {
+    PooledConnection connection = null;
+
     try {
+      connection = pool.acquireReader();
+
       String statement = "SELECT * FROM users WHERE uuid = ?;";
 
-      PreparedStatement ps = connection.prepareStatement(statement);
+      PreparedStatement ps = connection.prepare(statement);
       ps.setString(1, uuid);
 
-      ResultSet rs = ps.executeQuery();
+      ResultSet rs = connection.query(ps);
 
-      if (!rs.next())
+      if (!rs.next()) {
+        rs.close();
         throw new EntryNotFoundException();
+      }
 
       User user = new User(
           rs.getInt("user_id"),
@@ -193,17 +430,26 @@ public final class ServerDatabaseDriver {
       return user;
     } catch (SQLException e) {
       throw new CriticalDatabaseException(e);
+    } finally {
+      release(connection);
     }
   }
 
 
-  public ArrayList<User> getAllUsers() throws CriticalDatabaseException {
+  // Users with an id after the cursor, at most limit of them in id order
+  public ArrayList<User> getAllUsers(int afterId, int limit) throws CriticalDatabaseException {
+    PooledConnection connection = null;
+
     try {
-      String statement = "SELECT * FROM users;";
+      connection = pool.acquireReader();
 
-      PreparedStatement ps = connection.prepareStatement(statement);
+      String statement = "SELECT * FROM users WHERE user_id > ? ORDER BY user_id LIMIT ?;";
 
-      ResultSet rs = ps.executeQuery();
+      PreparedStatement ps = connection.prepare(statement);
+      ps.setInt(1, afterId);
+      ps.setInt(2, limit);
+
+      ResultSet rs = connection.query(ps);
 
       ArrayList<User> users = new ArrayList<>();
 
@@ -220,25 +466,90 @@ public final class ServerDatabaseDriver {
       }
 
       rs.close();
-      ps.close();
 
       return users;
     } catch (SQLException e) {
       throw new CriticalDatabaseException(e);
+    } finally {
+      release(connection);
+    }
+  }
+
+  /*
+    SHARDS
+  */
+  // Returns false if the file belongs to another shard layout. The layout is kept on first use,
+  // a file with messages and no layout predates sharding and is a single shard
+  public boolean checkShardLayout(int shard, int shards) throws CriticalDatabaseException {
+    PooledConnection connection = pool.acquireWriter();
+
+    try {
+      ResultSet rs = connection.query(connection.prepare("SELECT shard, shards FROM shard_layout;"));
+
+      if (rs.next()) {
+        boolean matches = rs.getInt("shard") == shard && rs.getInt("shards") == shards;
+        rs.close();
+
+        return matches;
+      }
+
+      rs.close();
+
+      rs = connection.query(connection.prepare("SELECT EXISTS (SELECT * FROM messages) AS stored;"));
+      boolean stored = rs.next() && rs.getBoolean("stored");
+      rs.close();
+
+      if (stored && (shard != 0 || shards != 1))
+        return false;
+
+      PreparedStatement ps = connection.prepare("INSERT INTO shard_layout (shard, shards) VALUES (?, ?);");
+      ps.setInt(1, shard);
+      ps.setInt(2, shards);
+      ps.executeUpdate();
+
+      return true;
+    } catch (SQLException e) {
+      throw new CriticalDatabaseException(e);
+    } finally {
+      release(connection);
     }
   }
 
   /*
     MESSAGE BOX
   */
-  public ArrayList<Integer> getUnreadMessages(int userId) throws CriticalDatabaseException {
+  // Highest message id stored, 0 if there are none
+  int getLastMessageId() throws CriticalDatabaseException {
+    PooledConnection connection = null;
+
     try {
-      String statement = "SELECT * FROM messages WHERE receiver_id = ? AND read = 0;";
+      connection = pool.acquireReader();
 
-      PreparedStatement ps = connection.prepareStatement(statement);
+      ResultSet rs = connection.query(connection.prepare("SELECT MAX(message_id) AS last_id FROM messages;"));
+      int lastId = rs.next() ? rs.getInt("last_id") : 0;
+      rs.close();
+
+      return lastId;
+    } catch (SQLException e) {
+      throw new CriticalDatabaseException(e);
+    } finally {
+      release(connection);
+    }
+  }
+
+  // Unread messages with an id after the cursor, at most limit of them in id order
+  public ArrayList<Integer> getUnreadMessages(int userId, int afterId, int limit) throws CriticalDatabaseException {
+    PooledConnection connection = null;
+
+    try {
+      connection = pool.acquireReader();
+
+      PreparedStatement ps = connection.prepare(UNREAD_MESSAGES_QUERY);
       ps.setInt(1, userId);
+      ps.setInt(2, afterId);
+      ps.setInt(3, limit);
 
-      ResultSet rs = ps.executeQuery();
+      ResultSet rs = connection.query(ps);
 
       ArrayList<Integer> messageIds = new ArrayList<>();
 
@@ -250,169 +561,448 @@ public final class ServerDatabaseDriver {
       return messageIds;
     } catch (SQLException e) {
       throw new CriticalDatabaseException(e);
+    } finally {
+      release(connection);
     }
   }
 
-  public Pair<ArrayList<String>, ArrayList<Integer>> getAllMessages(int userId) throws CriticalDatabaseException {
+  // Received and sent messages with an id after the cursor, at most limit of them in id order.
+  // A message sent to oneself is in both lists but counts once
+  public Pair<ArrayList<String>, ArrayList<Integer>> getAllMessages(int userId, int afterId, int limit) throws CriticalDatabaseException {
+    PooledConnection connection = null;
+
     try {
-      // Get Received messages
-      String statement = "SELECT * FROM messages WHERE receiver_id = ?;";
+      connection = pool.acquireReader();
 
-      PreparedStatement ps = connection.prepareStatement(statement);
+      PreparedStatement ps = connection.prepare(ALL_MESSAGES_QUERY);
       ps.setInt(1, userId);
+      ps.setInt(2, afterId);
+      ps.setInt(3, userId);
+      ps.setInt(4, afterId);
+      ps.setInt(5, limit);
 
-      ResultSet rs = ps.executeQuery();
+      ResultSet rs = connection.query(ps);
 
       ArrayList<String> receivedMessageIds = new ArrayList<>();
+      ArrayList<Integer> sentMessageIds = new ArrayList<>();
 
       // Verify if message has been read and insert formatted name
-      int read;
       int messageId;
 
       while (rs.next()) {
-        read = rs.getInt("read");
         messageId = rs.getInt("message_id");
 
-        receivedMessageIds.add((read == 1 ? "_" : "") + messageId);
-      }
-
-      // Get Sent messages
-      statement = "SELECT * FROM messages WHERE sender_id = ?;";
-
-      ps = connection.prepareStatement(statement);
-      ps.setInt(1, userId);
+        if (rs.getInt("received") == 1)
+          receivedMessageIds.add((rs.getInt("read") == 1 ? "_" : "") + messageId);
 
-      rs = ps.executeQuery();
-
-      ArrayList<Integer> sentMessageIds = new ArrayList<>();
-
-      while (rs.next())
-        sentMessageIds.add(rs.getInt("message_id"));
+        if (rs.getInt("sent") == 1)
+          sentMessageIds.add(messageId);
+      }
 
       rs.close();
-      ps.close();
 
       return new Pair<>(receivedMessageIds, sentMessageIds);
     } catch (SQLException e) {
       throw new CriticalDatabaseException(e);
+    } finally {
+      release(connection);
     }
   }
 
-  public int insertMessage(Message msg) throws CriticalDatabaseException, FailedToInsertException {
+  // Stages attachments outside of any lock, they are only placed in the store with their message
+  public BlobStore.StagedBlob stageAttachments(InputStream attachments) throws CriticalDatabaseException {
     try {
-      String statement = "INSERT INTO messages (sender_id, receiver_id, text, attachment_data, attachments, cipher_iv, sender_signature) " +
-          "VALUES (?, ?, ?, ?, ?, ?, ?);";
-
-      PreparedStatement ps = connection.prepareStatement(statement);
-      ps.setInt(1, msg.getSenderId());
-      ps.setInt(2, msg.getReceiverId());
-      ps.setString(3, msg.getText());
-      ps.setString(4, msg.getAttachmentData());
-      ps.setBytes(5, b64Helper.decode(msg.getAttachments()));
-      ps.setString(6, msg.getIV());
-      ps.setString(7, msg.getSenderSignature());
+      return blobs.stage(attachments);
+    } catch (IOException e) {
+      throw new CriticalDatabaseException(e);
+    }
+  }
 
-      ps.executeUpdate();
+  public BlobStore.StagedBlob stageAttachments(Path attachments) throws CriticalDatabaseException {
+    try {
+      return blobs.stage(attachments);
+    } catch (IOException e) {
+      throw new CriticalDatabaseException(e);
+    }
+  }
 
-      ResultSet rs = ps.getGeneratedKeys();
+  public void discardAttachments(StagedAttachments attachments) {
+    blobs.discard((BlobStore.StagedBlob) attachments);
+  }
 
-      int messageId = rs.getInt(1);
+  // Attachments are null if the message has none. Committed together with other concurrent writes
+  public int insertMessage(Message msg, StagedAttachments staged) throws CriticalDatabaseException, FailedToInsertException, WriteTimeoutException {
+    return insertMessage(msg, staged, 0);
+  }
 
-      rs.close();
-      ps.close();
+  // Message id given by the caller, or picked by SQLite if 0
+  int insertMessage(Message msg, StagedAttachments staged, int messageId) throws CriticalDatabaseException, FailedToInsertException, WriteTimeoutException {
+    BlobStore.StagedBlob attachments = (BlobStore.StagedBlob) staged;
 
-      return messageId;
+    // Only the writer thread touches it
+    boolean[] placed = new boolean[1];
+
+    try {
+      return writer.write(connection -> {
+        // Reference the blob, storing it if it is new
+        if (attachments != null) {
+          placed[0] = blobs.place(attachments);
+
+          String statement = "INSERT INTO blobs (hash, size, refs) VALUES (?, ?, 1) " +
+              "ON CONFLICT(hash) DO UPDATE SET refs = refs + 1;";
+
+          PreparedStatement ps = connection.prepare(statement);
+          ps.setString(1, attachments.getHash());
+          ps.setLong(2, attachments.getSize());
+          ps.executeUpdate();
+        }
+
+        String statement = "INSERT INTO messages (message_id, sender_id, receiver_id, text, attachment_data, attachments_hash, cipher_iv, sender_signature) " +
+            "VALUES (?, ?, ?, ?, ?, ?, ?, ?);";
+
+        PreparedStatement ps = connection.prepare(statement);
+
+        if (messageId > 0)
+          ps.setInt(1, messageId);
+        else
+          ps.setNull(1, Types.INTEGER);
+
+        ps.setInt(2, msg.getSenderId());
+        ps.setInt(3, msg.getReceiverId());
+        ps.setString(4, msg.getText());
+        ps.setString(5, msg.getAttachmentData());
+        ps.setString(6, attachments == null ? null : attachments.getHash());
+        ps.setString(7, msg.getIV());
+        ps.setString(8, msg.getSenderSignature());
+
+        ps.executeUpdate();
+
+        ResultSet rs = ps.getGeneratedKeys();
+
+        int insertedId = rs.getInt(1);
+
+        rs.close();
+
+        return insertedId;
+      }, () -> {
+        // Nothing references a blob stored by this insert
+        if (placed[0])
+          deleteBlob(attachments.getHash());
+      });
     } catch (SQLException e) {
       if (e.getErrorCode() == ERR_FOREIGN_KEY_CONSTRAINT)
         throw new FailedToInsertException();
 
+      throw new CriticalDatabaseException(e);
+    } catch (IOException e) {
       throw new CriticalDatabaseException(e);
     }
   }
 
+  // Deletes the message with its receipts, and its attachments if no other message references them
+  public void deleteMessage(int messageId) throws CriticalDatabaseException, EntryNotFoundException, WriteTimeoutException {
+    // Only the writer thread touches them
+    String[] removedHash = new String[1];
+    Path[] removed = new Path[1];
+
+    boolean deleted;
+
+    try {
+      deleted = writer.write(connection -> {
+        PreparedStatement ps = connection.prepare("SELECT attachments_hash FROM messages WHERE message_id = ?;");
+        ps.setInt(1, messageId);
+
+        ResultSet rs = connection.query(ps);
+
+        if (!rs.next()) {
+          rs.close();
+          return false;
+        }
+
+        String attachmentsHash = rs.getString("attachments_hash");
+        rs.close();
+
+        ps = connection.prepare("DELETE FROM receipts WHERE message_id = ?;");
+        ps.setInt(1, messageId);
+        ps.executeUpdate();
+
+        ps = connection.prepare("DELETE FROM messages WHERE message_id = ?;");
+        ps.setInt(1, messageId);
+        ps.executeUpdate();
+
+        if (attachmentsHash == null)
+          return true;
+
+        ps = connection.prepare("UPDATE blobs SET refs = refs - 1 WHERE hash = ?;");
+        ps.setString(1, attachmentsHash);
+        ps.executeUpdate();
+
+        ps = connection.prepare("DELETE FROM blobs WHERE hash = ? AND refs <= 0;");
+        ps.setString(1, attachmentsHash);
+
+        // Moved aside until the commit, a rolled back delete puts it back
+        if (ps.executeUpdate() > 0) {
+          removedHash[0] = attachmentsHash;
+          removed[0] = blobs.remove(attachmentsHash);
+        }
+
+        return true;
+      }, () -> {
+        if (removed[0] != null)
+          restoreBlob(removedHash[0], removed[0]);
+      });
+    } catch (SQLException e) {
+      throw new CriticalDatabaseException(e);
+    } catch (IOException e) {
+      throw new CriticalDatabaseException(e);
+    }
+
+    if (!deleted)
+      throw new EntryNotFoundException();
+
+    if (removed[0] != null)
+      deleteFile(removed[0]);
+  }
+
   public Message getMessage(int messageId) throws CriticalDatabaseException, EntryNotFoundException {
+    PooledConnection connection = null;
+
     try {
+      connection = pool.acquireReader();
+
       String statement = "SELECT * FROM messages WHERE message_id = ?;";
 
-      PreparedStatement ps = connection.prepareStatement(statement);
+      PreparedStatement ps = connection.prepare(statement);
       ps.setInt(1, messageId);
 
-      ResultSet rs = ps.executeQuery();
+      ResultSet rs = connection.query(ps);
 
-      if (!rs.next())
+      if (!rs.next()) {
+        rs.close();
         throw new EntryNotFoundException();
+      }
+
+      // Messages stored before the blob store keep their attachments in the row
+      String attachmentsHash = rs.getString("attachments_hash");
+      String attachments;
+
+      if (attachmentsHash == null) {
+        byte[] rowAttachments = rs.getBytes("attachments");
+        attachments = b64Helper.encode(rowAttachments == null ? new byte[0] : rowAttachments);
+      } else {
+        attachments = encodeBlob(attachmentsHash);
+      }
 
       Message message = new Message(
           rs.getInt("sender_id"),
           rs.getInt("receiver_id"),
           rs.getString("text"),
           rs.getString("attachment_data"),
-          b64Helper.encode(rs.getBytes("attachments")),
+          attachments,
           rs.getString("cipher_iv"),
           rs.getString("sender_signature")
       );
 
       rs.close();
-      ps.close();
 
       return message;
     } catch (SQLException e) {
       throw new CriticalDatabaseException(e);
+    } catch (IOException e) {
+      throw new CriticalDatabaseException(e);
+    } finally {
+      release(connection);
     }
   }
 
-  public void setMessageAsRead(int message_id) throws CriticalDatabaseException, EntryNotFoundException {
+  // Message without its attachments and the size of the attachments left out
+  public Pair<Message, Integer> getMessageWithoutAttachments(int messageId) throws CriticalDatabaseException, EntryNotFoundException {
+    PooledConnection connection = null;
+
     try {
-      String statement = "UPDATE messages SET read = 1 WHERE message_id = ?;";
+      connection = pool.acquireReader();
 
-      PreparedStatement ps = connection.prepareStatement(statement);
-      ps.setInt(1, message_id);
+      String statement = "SELECT sender_id, receiver_id, text, attachment_data, cipher_iv, sender_signature, " +
+          "IFNULL(blobs.size, IFNULL(LENGTH(attachments), 0)) AS attachments_size " +
+          "FROM messages LEFT JOIN blobs ON blobs.hash = messages.attachments_hash WHERE message_id = ?;";
 
-      int updated = ps.executeUpdate();
+      PreparedStatement ps = connection.prepare(statement);
+      ps.setInt(1, messageId);
 
-      if (updated == 0)
+      ResultSet rs = connection.query(ps);
+
+      if (!rs.next()) {
+        rs.close();
+        throw new EntryNotFoundException();
+      }
+
+      Message message = new Message(
+          rs.getInt("sender_id"),
+          rs.getInt("receiver_id"),
+          rs.getString("text"),
+          rs.getString("attachment_data"),
+          "",
+          rs.getString("cipher_iv"),
+          rs.getString("sender_signature")
+      );
+
+      int attachmentsSize = rs.getInt("attachments_size");
+
+      rs.close();
+
+      return new Pair<>(message, attachmentsSize);
+    } catch (SQLException e) {
+      throw new CriticalDatabaseException(e);
+    } finally {
+      release(connection);
+    }
+  }
+
+  // Part of a message attachments and their total size
+  public Pair<byte[], Integer> getAttachmentsChunk(int messageId, int offset, int length) throws CriticalDatabaseException, EntryNotFoundException {
+    PooledConnection connection = null;
+
+    try {
+      connection = pool.acquireReader();
+
+      // SQLite substrings of blobs are in bytes and start at 1
+      String statement = "SELECT attachments_hash, blobs.size AS blob_size, " +
+          "CASE WHEN attachments_hash IS NULL THEN SUBSTR(attachments, ?, ?) END AS chunk, " +
+          "IFNULL(LENGTH(attachments), 0) AS attachments_size " +
+          "FROM messages LEFT JOIN blobs ON blobs.hash = messages.attachments_hash WHERE message_id = ?;";
+
+      PreparedStatement ps = connection.prepare(statement);
+      ps.setInt(1, offset + 1);
+      ps.setInt(2, length);
+      ps.setInt(3, messageId);
+
+      ResultSet rs = connection.query(ps);
+
+      if (!rs.next()) {
+        rs.close();
         throw new EntryNotFoundException();
+      }
+
+      String attachmentsHash = rs.getString("attachments_hash");
+      byte[] chunk;
+      int attachmentsSize;
+
+      if (attachmentsHash == null) {
+        chunk = rs.getBytes("chunk");
+        attachmentsSize = rs.getInt("attachments_size");
+      } else {
+        chunk = blobs.read(attachmentsHash, offset, length);
+        attachmentsSize = rs.getInt("blob_size");
+      }
 
-      ps.close();
+      rs.close();
+
+      return new Pair<>(chunk == null ? new byte[0] : chunk, attachmentsSize);
     } catch (SQLException e) {
       throw new CriticalDatabaseException(e);
+    } catch (IOException e) {
+      throw new CriticalDatabaseException(e);
+    } finally {
+      release(connection);
     }
   }
 
-  /*
-    RECEIPT BOX
-  */
+  // Blobs are read from their file while they are sent, row attachments are small enough to be read whole
+  public InputStream getAttachments(int messageId) throws CriticalDatabaseException, EntryNotFoundException {
+    PooledConnection connection = null;
 
-  public void insertReceipt(Receipt rcpt) throws CriticalDatabaseException, FailedToInsertException {
     try {
-      // Insert receipt
-      String insertQuery = "INSERT INTO receipts (message_id, sender_id, date, receiver_signature) VALUES (?, ?, ?, ?);";
+      connection = pool.acquireReader();
 
-      PreparedStatement ps = connection.prepareStatement(insertQuery);
-      ps.setInt(1, rcpt.getMessageId());
-      ps.setInt(2, rcpt.getSenderId());
-      ps.setString(3, rcpt.getDate());
-      ps.setString(4, rcpt.getReceiverSignature());
+      PreparedStatement ps = connection.prepare("SELECT attachments_hash, attachments FROM messages WHERE message_id = ?;");
+      ps.setInt(1, messageId);
 
-      ps.executeUpdate();
+      ResultSet rs = connection.query(ps);
+
+      if (!rs.next()) {
+        rs.close();
+        throw new EntryNotFoundException();
+      }
+
+      String attachmentsHash = rs.getString("attachments_hash");
+      byte[] rowAttachments = rs.getBytes("attachments");
+
+      rs.close();
+
+      if (attachmentsHash == null)
+        return new ByteArrayInputStream(rowAttachments == null ? new byte[0] : rowAttachments);
+
+      return blobs.open(attachmentsHash);
+    } catch (NoSuchFileException e) {
+      // Deleted with its last message since the row was read
+      throw new EntryNotFoundException();
+    } catch (SQLException e) {
+      throw new CriticalDatabaseException(e);
+    } catch (IOException e) {
+      throw new CriticalDatabaseException(e);
+    } finally {
+      release(connection);
+    }
+  }
+  /*
+    RECEIPT BOX
+  */
 
-      ps.close();
+  // Sets the message as read and stores its receipt in one write, returns the id of the message sender
+  public int insertReceipt(Receipt rcpt) throws CriticalDatabaseException, FailedToInsertException, EntryNotFoundException, WriteTimeoutException {
+    int messageSenderId;
+
+    try {
+      messageSenderId = writer.write(connection -> {
+        PreparedStatement ps = connection.prepare("SELECT sender_id FROM messages WHERE message_id = ?;");
+        ps.setInt(1, rcpt.getMessageId());
+
+        ResultSet rs = connection.query(ps);
+        int senderId = rs.next() ? rs.getInt("sender_id") : -1;
+        rs.close();
+
+        if (senderId < 0)
+          return senderId;
+
+        ps = connection.prepare("UPDATE messages SET read = 1 WHERE message_id = ?;");
+        ps.setInt(1, rcpt.getMessageId());
+        ps.executeUpdate();
+
+        // Insert receipt
+        ps = connection.prepare("INSERT INTO receipts (message_id, sender_id, date, receiver_signature) VALUES (?, ?, ?, ?);");
+        ps.setInt(1, rcpt.getMessageId());
+        ps.setInt(2, rcpt.getSenderId());
+        ps.setString(3, rcpt.getDate());
+        ps.setString(4, rcpt.getReceiverSignature());
+        ps.executeUpdate();
+
+        return senderId;
+      }, null);
     } catch (SQLException e) {
       if (e.getErrorCode() == ERR_FOREIGN_KEY_CONSTRAINT)
         throw new FailedToInsertException();
 
+      throw new CriticalDatabaseException(e);
+    } catch (IOException e) {
       throw new CriticalDatabaseException(e);
     }
+
+    if (messageSenderId < 0)
+      throw new EntryNotFoundException();
+
+    return messageSenderId;
   }
 
   public ArrayList<Receipt> getReceipts(int messageId) throws CriticalDatabaseException {
+    PooledConnection connection = null;
+
     try {
-      String statement = "SELECT * FROM receipts WHERE message_id = ?;";
+      connection = pool.acquireReader();
 
-      PreparedStatement ps = connection.prepareStatement(statement);
+      PreparedStatement ps = connection.prepare(RECEIPTS_QUERY);
       ps.setInt(1, messageId);
 
-      ResultSet rs = ps.executeQuery();
+      ResultSet rs = connection.query(ps);
 
       ArrayList<Receipt> receipts = new ArrayList<>();
 
@@ -427,11 +1017,12 @@ public final class ServerDatabaseDriver {
       }
 
       rs.close();
-      ps.close();
 
       return receipts;
     } catch (SQLException e) {
       throw new CriticalDatabaseException(e);
+    } finally {
+      release(connection);
     }
   }
 
@@ -439,10 +1030,14 @@ public final class ServerDatabaseDriver {
     Server Parameters
   */
   public void insertParameter(ServerParameter parameter, String value) throws CriticalDatabaseException, FailedToInsertException {
+    PooledConnection connection = null;
+
     try {
+      connection = pool.acquireWriter();
+
       // Does not exist so we create it
       String statement = "INSERT INTO server_params (name, value) VALUES (?, ?);";
-      PreparedStatement ps = connection.prepareStatement(statement);
+      PreparedStatement ps = connection.prepare(statement);
       ps.setString(1, parameter.dbName());
       ps.setString(2, value);
 
@@ -451,33 +1046,43 @@ public final class ServerDatabaseDriver {
       if (updated == 0)
         throw new FailedToInsertException();
 
-      ps.close();
     } catch (SQLException e) {
       throw new CriticalDatabaseException(e);
+    } finally {
+      release(connection);
     }
   }
 
   public void deleteAllParameters() throws CriticalDatabaseException {
+    PooledConnection connection = null;
+
     try {
+      connection = pool.acquireWriter();
+
       // Check Parameter exists
       String statement = "DELETE FROM server_params;";
-      PreparedStatement ps = connection.prepareStatement(statement);
+      PreparedStatement ps = connection.prepare(statement);
 
       ps.executeUpdate();
 
-      ps.close();
     } catch (SQLException e) {
       throw new CriticalDatabaseException(e);
+    } finally {
+      release(connection);
     }
   }
 
   public ServerParameterMap getAllParameters() throws CriticalDatabaseException {
+    PooledConnection connection = null;
+
     try {
+      connection = pool.acquireReader();
+
       String selectUser = "SELECT * FROM server_params ORDER BY ROWID;";
 
-      PreparedStatement ps = connection.prepareStatement(selectUser);
+      PreparedStatement ps = connection.prepare(selectUser);
 
-      ResultSet rs = ps.executeQuery();
+      ResultSet rs = connection.query(ps);
 
       ServerParameterMap params = new ServerParameterMap();
 
@@ -488,11 +1093,12 @@ public final class ServerDatabaseDriver {
       }
 
       rs.close();
-      ps.close();
 
       return params;
     } catch (SQLException e) {
       throw new CriticalDatabaseException(e);
+    } finally {
+      release(connection);
     }
   }
 }
@@ -0,0 +1,257 @@
+package server.db;
+
+import shared.Pair;
+import shared.errors.db.*;
+import shared.parameters.ServerParameter;
+import shared.parameters.ServerParameterMap;
+import shared.wrappers.Message;
+import shared.wrappers.Receipt;
+import shared.wrappers.User;
+
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+// SQLite engine split over several database files, each with its own writer and blob store.
+// Users and server parameters live in the first shard, messages and their receipts in the
+// shard of the receiver, so sends to different mailboxes are committed in parallel.
+// Message ids come from one sequence with the shard in their remainder (id % shards),
+// each file keeps its shard and the count so the server refuses to start with another one.
+public final class ShardedStorage implements MailboxStorage {
+  private final ServerDatabaseDriver[] shards;
+  private final ServerDatabaseDriver directory;
+
+  // Last sequence given to a message and the ones still being inserted.
+  // Both change together under the lock, a sequence is pending as soon as it is given
+  private final ReentrantLock sequenceLock;
+  private int lastSequence;
+  private final ConcurrentSkipListSet<Integer> pending;
+
+  public ShardedStorage(ServerDatabaseDriver[] shards) throws CriticalDatabaseException {
+    this.shards = shards;
+    directory = shards[0];
+
+    sequenceLock = new ReentrantLock();
+    pending = new ConcurrentSkipListSet<>();
+    lastSequence = 0;
+
+    for (ServerDatabaseDriver shard : shards)
+      lastSequence = Math.max(lastSequence, shard.getLastMessageId() / shards.length);
+  }
+
+  public long getWriteBatches() {
+    long batches = 0;
+    for (ServerDatabaseDriver shard : shards)
+      batches += shard.getWriteBatches();
+
+    return batches;
+  }
+
+  public long getBatchedWrites() {
+    long writes = 0;
+    for (ServerDatabaseDriver shard : shards)
+      writes += shard.getBatchedWrites();
+
+    return writes;
+  }
+
+  /*
+    USERS
+  */
+  public int insertUser(User user) throws CriticalDatabaseException, DuplicateEntryException {
+    return directory.insertUser(user);
+  }
+
+  public User getUserById(int id) throws CriticalDatabaseException, EntryNotFoundException {
+    return directory.getUserById(id);
+  }
+
+  public User getUserByUUID(String uuid) throws CriticalDatabaseException, EntryNotFoundException {
+    return directory.getUserByUUID(uuid);
+  }
+
+  public ArrayList<User> getAllUsers(int afterId, int limit) throws CriticalDatabaseException {
+    return directory.getAllUsers(afterId, limit);
+  }
+
+  /*
+    MESSAGE BOX
+  */
+  public ArrayList<Integer> getUnreadMessages(int userId, int afterId, int limit) throws CriticalDatabaseException {
+    int visibleId = getVisibleMessageId();
+    ArrayList<Integer> messageIds = shardOfUser(userId).getUnreadMessages(userId, afterId, limit);
+
+    // Ids are in order, the ones past a message still being inserted wait for the next listing
+    messageIds.removeIf(messageId -> messageId > visibleId);
+
+    return messageIds;
+  }
+
+  // Sent messages are in the shards of their receivers, every shard is read
+  public Pair<ArrayList<String>, ArrayList<Integer>> getAllMessages(int userId, int afterId, int limit) throws CriticalDatabaseException {
+    int visibleId = getVisibleMessageId();
+
+    TreeMap<Integer, String> received = new TreeMap<>();
+    TreeSet<Integer> sent = new TreeSet<>();
+    TreeSet<Integer> messageIds = new TreeSet<>();
+
+    for (ServerDatabaseDriver shard : shards) {
+      Pair<ArrayList<String>, ArrayList<Integer>> messages = shard.getAllMessages(userId, afterId, limit);
+
+      for (String receivedId : messages.getA()) {
+        int messageId = Integer.parseInt(receivedId.startsWith("_") ? receivedId.substring(1) : receivedId);
+
+        received.put(messageId, receivedId);
+        messageIds.add(messageId);
+      }
+
+      sent.addAll(messages.getB());
+      messageIds.addAll(messages.getB());
+    }
+
+    ArrayList<String> receivedMessageIds = new ArrayList<>();
+    ArrayList<Integer> sentMessageIds = new ArrayList<>();
+    int taken = 0;
+
+    // Every shard returned its first ids after the cursor, the first of them all make the page
+    for (int messageId : messageIds) {
+      if (taken == limit || messageId > visibleId)
+        break;
+
+      if (received.containsKey(messageId))
+        receivedMessageIds.add(received.get(messageId));
+
+      if (sent.contains(messageId))
+        sentMessageIds.add(messageId);
+
+      taken++;
+    }
+
+    return new Pair<>(receivedMessageIds, sentMessageIds);
+  }
+
+  // Staged in the first shard and moved to the receiver shard when the message is inserted
+  public StagedAttachments stageAttachments(InputStream attachments) throws CriticalDatabaseException {
+    return directory.stageAttachments(attachments);
+  }
+
+  public StagedAttachments stageAttachments(Path attachments) throws CriticalDatabaseException {
+    return directory.stageAttachments(attachments);
+  }
+
+  public void discardAttachments(StagedAttachments attachments) {
+    directory.discardAttachments(attachments);
+  }
+
+  public int insertMessage(Message msg, StagedAttachments attachments) throws CriticalDatabaseException, FailedToInsertException, WriteTimeoutException {
+    // Only the directory knows the users
+    try {
+      directory.getUserById(msg.getSenderId());
+      directory.getUserById(msg.getReceiverId());
+    } catch (EntryNotFoundException e) {
+      throw new FailedToInsertException();
+    }
+
+    int sequence = nextSequence();
+
+    // Returns or throws only once the write is committed or known not to be, a timed out write never ran
+    try {
+      int shard = Math.floorMod(msg.getReceiverId(), shards.length);
+
+      return shards[shard].insertMessage(msg, attachments, sequence * shards.length + shard);
+    } finally {
+      pending.remove(sequence);
+    }
+  }
+
+  public Message getMessage(int messageId) throws CriticalDatabaseException, EntryNotFoundException {
+    return shardOfMessage(messageId).getMessage(messageId);
+  }
+
+  public Pair<Message, Integer> getMessageWithoutAttachments(int messageId) throws CriticalDatabaseException, EntryNotFoundException {
+    return shardOfMessage(messageId).getMessageWithoutAttachments(messageId);
+  }
+
+  public Pair<byte[], Integer> getAttachmentsChunk(int messageId, int offset, int length) throws CriticalDatabaseException, EntryNotFoundException {
+    return shardOfMessage(messageId).getAttachmentsChunk(messageId, offset, length);
+  }
+
+  public InputStream getAttachments(int messageId) throws CriticalDatabaseException, EntryNotFoundException {
+    return shardOfMessage(messageId).getAttachments(messageId);
+  }
+
+  /*
+    RECEIPT BOX
+  */
+  public int insertReceipt(Receipt rcpt) throws CriticalDatabaseException, FailedToInsertException, EntryNotFoundException, WriteTimeoutException {
+    try {
+      directory.getUserById(rcpt.getSenderId());
+    } catch (EntryNotFoundException e) {
+      throw new FailedToInsertException();
+    }
+
+    return shardOfMessage(rcpt.getMessageId()).insertReceipt(rcpt);
+  }
+
+  public ArrayList<Receipt> getReceipts(int messageId) throws CriticalDatabaseException {
+    return shardOfMessage(messageId).getReceipts(messageId);
+  }
+
+  /*
+    Server Parameters
+  */
+  public void insertParameter(ServerParameter parameter, String value) throws CriticalDatabaseException, FailedToInsertException {
+    directory.insertParameter(parameter, value);
+  }
+
+  public void deleteAllParameters() throws CriticalDatabaseException {
+    directory.deleteAllParameters();
+  }
+
+  public ServerParameterMap getAllParameters() throws CriticalDatabaseException {
+    return directory.getAllParameters();
+  }
+
+  /*
+    UTILS
+  */
+  private ServerDatabaseDriver shardOfUser(int userId) {
+    return shards[Math.floorMod(userId, shards.length)];
+  }
+
+  private ServerDatabaseDriver shardOfMessage(int messageId) {
+    return shards[Math.floorMod(messageId, shards.length)];
+  }
+
+  private int nextSequence() {
+    sequenceLock.lock();
+    try {
+      lastSequence++;
+      pending.add(lastSequence);
+
+      return lastSequence;
+    } finally {
+      sequenceLock.unlock();
+    }
+  }
+
+  // Shards commit in any order, listings stop before the first message not committed yet
+  // so a cursor never moves past a message that shows up later
+  private int getVisibleMessageId() {
+    int visibleSequence;
+
+    sequenceLock.lock();
+    try {
+      Integer firstPending = pending.ceiling(Integer.MIN_VALUE);
+      visibleSequence = firstPending == null ? lastSequence : firstPending - 1;
+    } finally {
+      sequenceLock.unlock();
+    }
+
+    return visibleSequence * shards.length + shards.length - 1;
+  }
+}
@@ -9,16 +9,47 @@ public enum ServerProperty implements ICustomProperty {
   // System
   DEBUG("debug", CustomPropertyType.BOOL),
   LOG_LOC("log_location", CustomPropertyType.STRING),
+  LOG_BUFFER_SIZE("log_buffer_size", CustomPropertyType.INT),
+  LOG_OVERFLOW_POLICY("log_overflow_policy", CustomPropertyType.STRING),
   THREAD_POOL_SIZE("thread_pool_size", CustomPropertyType.INT),
+  WORK_QUEUE_SIZE("work_queue_size", CustomPropertyType.INT),
+  EXECUTOR_TYPE("executor_type", CustomPropertyType.STRING),
+  STORAGE_ENGINE("storage_engine", CustomPropertyType.STRING),
   DATABASE_LOC("database_location", CustomPropertyType.STRING),
+  DATABASE_SHARDS("database_shards", CustomPropertyType.INT),
+  WRITE_BATCH_SIZE("write_batch_size", CustomPropertyType.INT),
+  WRITE_BATCH_DELAY("write_batch_delay", CustomPropertyType.INT),
+  BLOB_LOC("blob_location", CustomPropertyType.STRING),
+  UPLOAD_LOC("upload_location", CustomPropertyType.STRING),
+  UPLOAD_MAX_SIZE_MB("upload_max_size_megabytes", CustomPropertyType.INT),
+  UPLOAD_EXPIRY("upload_expiry", CustomPropertyType.INT),
   PARAMS_RESET("params_reset", CustomPropertyType.BOOL),
+  STATS_ADMINS("stats_admins", CustomPropertyType.STRING_ARRAY),
+  STATS_DUMP_LOC("stats_dump_location", CustomPropertyType.STRING),
+  STATS_DUMP_INTERVAL("stats_dump_interval", CustomPropertyType.INT),
 
   // Network
   PORT("port", CustomPropertyType.INT),
+  FRONT_END("front_end", CustomPropertyType.STRING),
   BUFFER_SIZE_MB("buffer_size_megabytes", CustomPropertyType.INT),
   TLS_MUTUAL_AUTH("tls_mutual_auth", CustomPropertyType.BOOL),
   TLS_CIPHERSUITES("tls_ciphersuites", CustomPropertyType.STRING_ARRAY),
   TLS_PROTOCOLS("tls_protocols", CustomPropertyType.STRING_ARRAY),
+  TLS_SESSION_CACHE_SIZE("tls_session_cache_size", CustomPropertyType.INT),
+  TLS_SESSION_TIMEOUT("tls_session_timeout", CustomPropertyType.INT),
+  KEEP_ALIVE("keep_alive", CustomPropertyType.BOOL),
+  KEEP_ALIVE_TIMEOUT("keep_alive_timeout", CustomPropertyType.INT),
+  BATCH_MAX_SIZE("batch_max_size", CustomPropertyType.INT),
+  WAIT_MAX_TIMEOUT("wait_max_timeout", CustomPropertyType.INT),
+  WAIT_MAX_BLOCKED("wait_max_blocked", CustomPropertyType.INT),
+  PAGE_MAX_SIZE("page_max_size", CustomPropertyType.INT),
+  USER_CACHE_SIZE("user_cache_size", CustomPropertyType.INT),
+  RESPONSE_CACHE_SIZE_MB("response_cache_size_megabytes", CustomPropertyType.INT),
+  BINARY_PROTOCOL("binary_protocol", CustomPropertyType.BOOL),
+  RATE_LIMIT("rate_limit", CustomPropertyType.BOOL),
+  RATE_LIMIT_DEFAULT("rate_limit_default", CustomPropertyType.STRING),
+  RATE_LIMIT_ROUTES("rate_limit_routes", CustomPropertyType.STRING_ARRAY),
+  RATE_LIMIT_IDLE_TIMEOUT("rate_limit_idle_timeout", CustomPropertyType.INT),
 
   // Crypt,
   KEYSTORE_LOC("keystore_location", CustomPropertyType.STRING),
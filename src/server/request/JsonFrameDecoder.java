@@ -0,0 +1,157 @@
+package server.request;
+
+import shared.utils.BinaryProtocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Splits a stream of decrypted bytes into complete top level JSON objects.
+// Only tracks nesting and strings, the actual parsing is left to Gson,
+// but a closer that does not match its opener already fails here.
+// Connections that start with the binary protocol preamble are split by frame length instead.
+public final class JsonFrameDecoder {
+  private static final long MEGA_BYTE = 1024L * 1024L; // 1 MB
+
+  private final long maxFrameSize;
+  private final ByteArrayOutputStream frame;
+
+  // Openers of the objects and arrays still open, innermost last
+  private byte[] openers;
+  private int depth;
+  private boolean inString;
+  private boolean escaped;
+
+  private boolean started;
+  private boolean binary;
+  private int preambleLeft;
+  private int headerLeft;
+  private int frameLength;
+
+  public JsonFrameDecoder(int maxFrameSizeInMB) {
+    maxFrameSize = MEGA_BYTE * maxFrameSizeInMB;
+    frame = new ByteArrayOutputStream();
+
+    openers = new byte[16];
+    depth = 0;
+    inString = false;
+    escaped = false;
+
+    started = false;
+    binary = false;
+  }
+
+  public boolean isBinary() {
+    return binary;
+  }
+
+  // Consumes all the available bytes and returns the requests completed by them
+  public ArrayList<byte[]> feed(ByteBuffer data) throws IOException {
+    ArrayList<byte[]> frames = new ArrayList<>();
+
+    // The protocol is picked by the first byte of the connection
+    if (!started && data.hasRemaining()) {
+      started = true;
+      binary = BinaryProtocol.isPreambleStart(data.get(data.position()));
+      preambleLeft = binary ? BinaryProtocol.preambleLength() : 0;
+      headerLeft = 4;
+    }
+
+    if (binary) {
+      feedBinary(data, frames);
+      return frames;
+    }
+
+    while (data.hasRemaining()) {
+      byte b = data.get();
+
+      // Skip whitespace between requests, anything else but an object (a stray closer too) is refused
+      if (depth == 0) {
+        if (b == ' ' || b == '\n' || b == '\r' || b == '\t')
+          continue;
+
+        if (b != '{')
+          throw new IOException("Request is not a JSON object");
+      }
+
+      frame.write(b);
+
+      if (frame.size() > maxFrameSize)
+        throw new IOException("Max file size passed.");
+
+      // Multi byte UTF-8 characters never match these ASCII values
+      if (inString) {
+        if (escaped)
+          escaped = false;
+        else if (b == '\\')
+          escaped = true;
+        else if (b == '"')
+          inString = false;
+
+        continue;
+      }
+
+      if (b == '"') {
+        inString = true;
+      } else if (b == '{' || b == '[') {
+        if (depth == openers.length)
+          openers = Arrays.copyOf(openers, openers.length * 2);
+
+        openers[depth] = b;
+        depth++;
+      } else if (b == '}' || b == ']') {
+        if (openers[depth - 1] != (b == '}' ? '{' : '['))
+          throw new IOException("Request has unbalanced brackets.");
+
+        depth--;
+
+        if (depth == 0) {
+          frames.add(frame.toByteArray());
+          frame.reset();
+        }
+      }
+    }
+
+    return frames;
+  }
+
+  // Length prefixed frames after the preamble
+  private void feedBinary(ByteBuffer data, ArrayList<byte[]> frames) throws IOException {
+    while (data.hasRemaining()) {
+      if (preambleLeft > 0) {
+        int index = BinaryProtocol.preambleLength() - preambleLeft;
+
+        if (!BinaryProtocol.isPreambleByte(index, data.get()))
+          throw new IOException("Invalid protocol preamble.");
+
+        preambleLeft--;
+        continue;
+      }
+
+      if (headerLeft > 0) {
+        frameLength = (frameLength << 8) | (data.get() & 0xFF);
+        headerLeft--;
+
+        if (headerLeft == 0 && (frameLength < 0 || frameLength > maxFrameSize))
+          throw new IOException("Max file size passed.");
+
+        if (headerLeft > 0 || frameLength > 0)
+          continue;
+      } else {
+        int count = Math.min(data.remaining(), frameLength - frame.size());
+        frame.write(data.array(), data.arrayOffset() + data.position(), count);
+        data.position(data.position() + count);
+      }
+
+      if (frame.size() == frameLength) {
+        frames.add(frame.toByteArray());
+        frame.reset();
+
+        headerLeft = 4;
+        frameLength = 0;
+      }
+    }
+  }
+}
@@ -11,7 +11,12 @@ public enum ServerRequest {
   RECEIPT("receipt"),
   STATUS("status"),
   PARAMS("params"),
-  LOGIN("login");
+  LOGIN("login"),
+  UPLOAD("upload"),
+  DOWNLOAD("download"),
+  STATS("stats"),
+  WAIT("wait"),
+  BATCH("batch");
 
   private final String val;
 
@@ -34,7 +39,8 @@ public enum ServerRequest {
   }
 
   public boolean needsNonce() {
-    return this != ServerRequest.RECEIPT;
+    // Batch items carry their own nonces
+    return this != ServerRequest.RECEIPT && this != ServerRequest.BATCH;
   }
 }
 
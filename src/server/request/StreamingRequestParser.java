@@ -0,0 +1,314 @@
+package server.request;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import shared.errors.request.InvalidFormatException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+
+// Reads top level request objects field by field from the connection.
+// One Base64 field (the message attachments) is decoded while it is read and written to a
+// spool file instead of being kept as a string. Every other value is small and left to Gson.
+public final class StreamingRequestParser {
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  private final Reader reader;
+  private final String spooledField;
+
+  private final char[] buffer;
+  private int position;
+  private int limit;
+
+  // Decoded spooled field of the last request, if it had one
+  private Path spool;
+
+  public StreamingRequestParser(Reader reader, String spooledField) {
+    this.reader = reader;
+    this.spooledField = spooledField;
+
+    buffer = new char[BUFFER_SIZE];
+    position = 0;
+    limit = 0;
+  }
+
+  // Returns null if the stream ended before a new request
+  public JsonObject next() throws IOException, InvalidFormatException {
+    deleteSpool();
+
+    int c = nextNonWhitespace();
+
+    if (c == -1)
+      return null;
+
+    if (c != '{')
+      throw new InvalidFormatException();
+
+    JsonObject object = new JsonObject();
+    c = nextNonWhitespace();
+
+    if (c == '}')
+      return object;
+
+    while (true) {
+      if (c != '"')
+        throw new InvalidFormatException();
+
+      String name = parse(readString()).getAsString();
+
+      if (nextNonWhitespace() != ':')
+        throw new InvalidFormatException();
+
+      c = nextNonWhitespace();
+
+      // Empty values are not worth a file
+      if (c == '"' && name.equals(spooledField) && spool == null && peek() != '"')
+        spoolString();
+      else
+        object.add(name, parse(readValue(c)));
+
+      c = nextNonWhitespace();
+
+      if (c == '}')
+        return object;
+
+      if (c != ',')
+        throw new InvalidFormatException();
+
+      c = nextNonWhitespace();
+    }
+  }
+
+  public Path getSpool() {
+    return spool;
+  }
+
+  public void deleteSpool() {
+    if (spool == null)
+      return;
+
+    try {
+      Files.deleteIfExists(spool);
+    } catch (IOException e) {
+      // Temporary file, the OS will clean it up
+    }
+
+    spool = null;
+  }
+
+  /*
+    UTILS
+  */
+  private void spoolString() throws IOException, InvalidFormatException {
+    spool = Files.createTempFile("attachment", ".spool");
+
+    StringInputStream chars = new StringInputStream();
+
+    try (OutputStream output = Files.newOutputStream(spool)) {
+      InputStream decoded = Base64.getDecoder().wrap(chars);
+      byte[] chunk = new byte[BUFFER_SIZE];
+
+      while (true) {
+        int read;
+
+        try {
+          read = decoded.read(chunk);
+        } catch (IOException e) {
+          // Failures of the connection itself are not the client's formatting
+          if (chars.failure != null)
+            throw chars.failure;
+
+          throw new InvalidFormatException();
+        }
+
+        if (read == -1)
+          break;
+
+        output.write(chunk, 0, read);
+      }
+    }
+
+    // Nothing may follow the Base64 padding
+    if (chars.read() != -1)
+      throw new InvalidFormatException();
+  }
+
+  // Raw text of a JSON value, the first character was already read
+  private String readValue(int first) throws IOException, InvalidFormatException {
+    if (first == '"')
+      return readString();
+
+    StringBuilder value = new StringBuilder();
+    value.append((char) first);
+
+    if (first == '{' || first == '[') {
+      int depth = 1;
+
+      while (depth > 0) {
+        int c = read();
+
+        if (c == -1)
+          throw new InvalidFormatException();
+
+        if (c == '"') {
+          value.append(readString());
+          continue;
+        }
+
+        if (c == '{' || c == '[')
+          depth++;
+        else if (c == '}' || c == ']')
+          depth--;
+
+        value.append((char) c);
+      }
+
+      return value.toString();
+    }
+
+    // Numbers, booleans and null end at the next delimiter
+    int c;
+    while ((c = peek()) != -1 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c))
+      value.append((char) read());
+
+    return value.toString();
+  }
+
+  // Raw text of a string including its quotes, the opening quote was already read
+  private String readString() throws IOException, InvalidFormatException {
+    StringBuilder value = new StringBuilder();
+    value.append('"');
+
+    boolean escaped = false;
+
+    while (true) {
+      int c = read();
+
+      if (c == -1)
+        throw new InvalidFormatException();
+
+      value.append((char) c);
+
+      if (escaped)
+        escaped = false;
+      else if (c == '\\')
+        escaped = true;
+      else if (c == '"')
+        return value.toString();
+    }
+  }
+
+  private static JsonElement parse(String value) throws InvalidFormatException {
+    try {
+      return new JsonParser().parse(value);
+    } catch (JsonParseException | IllegalStateException e) {
+      throw new InvalidFormatException();
+    }
+  }
+
+  private int nextNonWhitespace() throws IOException {
+    int c;
+
+    do {
+      c = read();
+    } while (c != -1 && Character.isWhitespace(c));
+
+    return c;
+  }
+
+  private int peek() throws IOException {
+    if (position == limit && !fill())
+      return -1;
+
+    return buffer[position];
+  }
+
+  private int read() throws IOException {
+    if (position == limit && !fill())
+      return -1;
+
+    return buffer[position++];
+  }
+
+  private boolean fill() throws IOException {
+    int read = reader.read(buffer, 0, buffer.length);
+
+    if (read <= 0)
+      return false;
+
+    position = 0;
+    limit = read;
+
+    return true;
+  }
+
+  // Characters of the string being spooled, unescaped, ending at its closing quote
+  private final class StringInputStream extends InputStream {
+    private boolean done;
+    private IOException failure;
+
+    @Override
+    public int read() throws IOException {
+      if (done)
+        return -1;
+
+      int c = nextChar();
+
+      if (c == -1)
+        throw new IOException("Unterminated string.");
+
+      if (c == '"') {
+        done = true;
+        return -1;
+      }
+
+      // Gson writes the Base64 padding as a unicode escape
+      if (c == '\\')
+        c = readEscaped();
+
+      if (c > 127)
+        throw new IOException("Invalid Base64 value.");
+
+      return c;
+    }
+
+    private int readEscaped() throws IOException {
+      int c = nextChar();
+
+      if (c == '/')
+        return c;
+
+      if (c != 'u')
+        throw new IOException("Invalid Base64 value.");
+
+      int value = 0;
+
+      for (int i = 0; i < 4; i++) {
+        int digit = Character.digit(nextChar(), 16);
+
+        if (digit == -1)
+          throw new IOException("Invalid Base64 value.");
+
+        value = value * 16 + digit;
+      }
+
+      return value;
+    }
+
+    private int nextChar() throws IOException {
+      try {
+        return StreamingRequestParser.this.read();
+      } catch (IOException e) {
+        failure = e;
+        throw e;
+      }
+    }
+  }
+}
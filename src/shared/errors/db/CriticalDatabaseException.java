@@ -1,9 +1,14 @@
 package shared.errors.db;
 
+import java.io.IOException;
 import java.sql.SQLException;
 
 public final class CriticalDatabaseException extends Exception {
   public CriticalDatabaseException(SQLException e) {
     super("Database critical error: CODE " + e.getErrorCode() + " - " + e.getMessage());
   }
+
+  public CriticalDatabaseException(IOException e) {
+    super("Blob store critical error: " + e.getMessage());
+  }
 }
@@ -0,0 +1,9 @@
+package shared.errors.db;
+
+import shared.http.HTTPStatus;
+
+public final class WriteTimeoutException extends DatabaseException {
+  public WriteTimeoutException() {
+    super("Write was not committed in time.", HTTPStatus.SERVICE_UNAVAILABLE);
+  }
+}
@@ -4,14 +4,17 @@ import shared.response.ErrorResponse;
 
 public enum HTTPStatus {
   OK(200, "OK"),
+  NOT_MODIFIED(304, "NOT MODIFIED"),
 
   BAD_REQUEST(400, "BAD REQUEST"),
   UNAUTHORIZED(401, "UNAUTHORIZED"),
   FORBIDDEN(403, "FORBIDDEN"),
   NOT_FOUND(404, "NOT FOUND"),
   CONFLICT(409, "CONFLICT"),
+  TOO_MANY_REQUESTS(429, "TOO MANY REQUESTS"),
 
-  INTERNAL_SERVER_ERROR(500, "INTERNAL_SERVER_ERROR");
+  INTERNAL_SERVER_ERROR(500, "INTERNAL_SERVER_ERROR"),
+  SERVICE_UNAVAILABLE(503, "SERVICE UNAVAILABLE");
 
   private final int code;
   private final String message;
@@ -14,6 +14,9 @@ public enum ServerParameter {
   DH_P("dh_p"),
   DH_G("dh_g"),
 
+  // Integrity of attachment chunks
+  HASH_ALG("hash_alg"),
+
   // Server signature of all parameters
   PARAM_SIG("param_sig");
 
@@ -7,5 +7,10 @@ public class OKResponse extends GsonResponse {
     super(HTTPStatus.OK);
   }
 
+  // Successful responses that are not a plain OK
+  protected OKResponse(HTTPStatus status) {
+    super(status);
+  }
+
 
 }
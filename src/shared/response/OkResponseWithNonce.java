@@ -1,5 +1,7 @@
 package shared.response;
 
+import shared.http.HTTPStatus;
+
 public abstract class OkResponseWithNonce extends OKResponse {
   private final String nonce;
 
@@ -7,6 +9,11 @@ public abstract class OkResponseWithNonce extends OKResponse {
     this.nonce = nonce;
   }
 
+  protected OkResponseWithNonce(HTTPStatus status, String nonce) {
+    super(status);
+    this.nonce = nonce;
+  }
+
   public String getNonce() {
     return nonce;
   }
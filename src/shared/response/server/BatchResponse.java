@@ -0,0 +1,20 @@
+package shared.response.server;
+
+import com.google.gson.JsonElement;
+import shared.response.OKResponse;
+
+import java.util.ArrayList;
+
+// Responses of a batch request, in the same order as its sub-requests.
+// Serialized one by one on the server, cached responses already are
+public final class BatchResponse extends OKResponse {
+  private final ArrayList<JsonElement> responses;
+
+  public BatchResponse(ArrayList<JsonElement> responses) {
+    this.responses = responses;
+  }
+
+  public ArrayList<JsonElement> getResponses() {
+    return responses;
+  }
+}
@@ -0,0 +1,29 @@
+package shared.response.server;
+
+import shared.response.OkResponseWithNonce;
+
+public final class DownloadResponse extends OkResponseWithNonce {
+  private final String chunk;
+  private final String chunkHash;
+  private final int size;
+
+  public DownloadResponse(String nonce, String chunk, String chunkHash, int size) {
+    super(nonce);
+    this.chunk = chunk;
+    this.chunkHash = chunkHash;
+    this.size = size;
+  }
+
+  public String getChunk() {
+    return chunk;
+  }
+
+  public String getChunkHash() {
+    return chunkHash;
+  }
+
+  // Total size of the message attachments
+  public int getSize() {
+    return size;
+  }
+}
@@ -7,11 +7,15 @@ import java.util.ArrayList;
 public final class ListMessagesResponse extends OkResponseWithNonce {
   private final ArrayList<String> receivedMessageIds;
   private final ArrayList<Integer> sentMessageIds;
+  private final int nextCursor;
+  private final boolean hasMore;
 
-  public ListMessagesResponse(String nonce, ArrayList<String> receivedMessageIds, ArrayList<Integer> sentMessageIds) {
+  public ListMessagesResponse(String nonce, ArrayList<String> receivedMessageIds, ArrayList<Integer> sentMessageIds, int nextCursor, boolean hasMore) {
     super(nonce);
     this.receivedMessageIds = receivedMessageIds;
     this.sentMessageIds = sentMessageIds;
+    this.nextCursor = nextCursor;
+    this.hasMore = hasMore;
   }
 
   public ArrayList<String> getReceivedMessageIds() {
@@ -21,4 +25,12 @@ public final class ListMessagesResponse extends OkResponseWithNonce {
   public ArrayList<Integer> getSentMessageIds() {
     return sentMessageIds;
   }
+
+  public int getNextCursor() {
+    return nextCursor;
+  }
+
+  public boolean hasMore() {
+    return hasMore;
+  }
 }
@@ -6,14 +6,25 @@ import java.util.ArrayList;
 
 public final class ListNewMessagesResponse extends OkResponseWithNonce {
   private final ArrayList<Integer> newMessageIds;
+  private final int nextCursor;
+  private final boolean hasMore;
 
-  public ListNewMessagesResponse(String nonce, ArrayList<Integer> newMessageIds) {
+  public ListNewMessagesResponse(String nonce, ArrayList<Integer> newMessageIds, int nextCursor, boolean hasMore) {
     super(nonce);
     this.newMessageIds = newMessageIds;
+    this.nextCursor = nextCursor;
+    this.hasMore = hasMore;
   }
 
   public ArrayList<Integer> getNewMessageIds() {
     return newMessageIds;
   }
 
+  public int getNextCursor() {
+    return nextCursor;
+  }
+
+  public boolean hasMore() {
+    return hasMore;
+  }
 }
@@ -7,13 +7,31 @@ import java.util.ArrayList;
 
 public final class ListUsersResponse extends OkResponseWithNonce {
   private final ArrayList<User> users;
+  private final int nextCursor;
+  private final boolean hasMore;
+  private final String version;
 
-  public ListUsersResponse(String nonce, ArrayList<User> users) {
+  public ListUsersResponse(String nonce, ArrayList<User> users, int nextCursor, boolean hasMore, String version) {
     super(nonce);
     this.users = users;
+    this.nextCursor = nextCursor;
+    this.hasMore = hasMore;
+    this.version = version;
   }
 
   public ArrayList<User> getUsers() {
     return users;
   }
+
+  public int getNextCursor() {
+    return nextCursor;
+  }
+
+  public boolean hasMore() {
+    return hasMore;
+  }
+
+  public String getVersion() {
+    return version;
+  }
 }
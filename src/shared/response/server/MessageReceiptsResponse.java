@@ -9,11 +9,16 @@ import java.util.ArrayList;
 public final class MessageReceiptsResponse extends OkResponseWithNonce {
   private final ArrayList<Receipt> receipts;
   private final Message message;
+  private final int attachmentsSize;
+  private final String version;
 
-  public MessageReceiptsResponse(String nonce, Message message, ArrayList<Receipt> receipts) {
+  // Attachments left out of the message, to be downloaded in chunks
+  public MessageReceiptsResponse(String nonce, Message message, int attachmentsSize, ArrayList<Receipt> receipts, String version) {
     super(nonce);
     this.receipts = receipts;
     this.message = message;
+    this.attachmentsSize = attachmentsSize;
+    this.version = version;
   }
 
   public ArrayList<Receipt> getReceipts() {
@@ -23,4 +28,12 @@ public final class MessageReceiptsResponse extends OkResponseWithNonce {
   public Message getMessage() {
     return message;
   }
+
+  public int getAttachmentsSize() {
+    return attachmentsSize;
+  }
+
+  public String getVersion() {
+    return version;
+  }
 }
@@ -0,0 +1,18 @@
+package shared.response.server;
+
+import shared.http.HTTPStatus;
+import shared.response.OkResponseWithNonce;
+
+// Sent instead of a response whose version the client already holds
+public final class NotModifiedResponse extends OkResponseWithNonce {
+  private final String version;
+
+  public NotModifiedResponse(String nonce, String version) {
+    super(HTTPStatus.NOT_MODIFIED, nonce);
+    this.version = version;
+  }
+
+  public String getVersion() {
+    return version;
+  }
+}
@@ -5,13 +5,19 @@ import shared.response.OkResponseWithNonce;
 
 public final class ParametersResponse extends OkResponseWithNonce {
   private final ServerParameterMap parameters;
+  private final String version;
 
-  public ParametersResponse(String nonce, ServerParameterMap parameters) {
+  public ParametersResponse(String nonce, ServerParameterMap parameters, String version) {
     super(nonce);
     this.parameters = parameters;
+    this.version = version;
   }
 
   public ServerParameterMap getParameters() {
     return parameters;
   }
+
+  public String getVersion() {
+    return version;
+  }
 }
@@ -5,13 +5,30 @@ import shared.response.OkResponseWithNonce;
 
 public final class ReceiveMessageResponse extends OkResponseWithNonce {
   private final Message message;
+  private final int attachmentsSize;
+  private final String version;
 
-  public ReceiveMessageResponse(String nonce, Message message) {
+  public ReceiveMessageResponse(String nonce, Message message, String version) {
+    this(nonce, message, 0, version);
+  }
+
+  // Attachments left out of the message, to be downloaded in chunks
+  public ReceiveMessageResponse(String nonce, Message message, int attachmentsSize, String version) {
     super(nonce);
     this.message = message;
+    this.attachmentsSize = attachmentsSize;
+    this.version = version;
   }
 
   public Message getMessage() {
     return message;
   }
+
+  public int getAttachmentsSize() {
+    return attachmentsSize;
+  }
+
+  public String getVersion() {
+    return version;
+  }
 }
@@ -0,0 +1,17 @@
+package shared.response.server;
+
+import com.google.gson.JsonObject;
+import shared.response.OkResponseWithNonce;
+
+public final class StatsResponse extends OkResponseWithNonce {
+  private final JsonObject stats;
+
+  public StatsResponse(String nonce, JsonObject stats) {
+    super(nonce);
+    this.stats = stats;
+  }
+
+  public JsonObject getStats() {
+    return stats;
+  }
+}
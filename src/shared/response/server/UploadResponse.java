@@ -0,0 +1,23 @@
+package shared.response.server;
+
+import shared.response.OkResponseWithNonce;
+
+public final class UploadResponse extends OkResponseWithNonce {
+  private final String uploadId;
+  private final int size;
+
+  public UploadResponse(String nonce, String uploadId, int size) {
+    super(nonce);
+    this.uploadId = uploadId;
+    this.size = size;
+  }
+
+  public String getUploadId() {
+    return uploadId;
+  }
+
+  // Bytes received so far, the offset to resume from
+  public int getSize() {
+    return size;
+  }
+}
@@ -0,0 +1,33 @@
+package shared.response.server;
+
+import shared.response.OkResponseWithNonce;
+
+import java.util.ArrayList;
+
+public final class WaitResponse extends OkResponseWithNonce {
+  private final long version;
+  private final ArrayList<Integer> newMessageIds;
+  private final ArrayList<Integer> readMessageIds;
+
+  public WaitResponse(String nonce, long version, ArrayList<Integer> newMessageIds, ArrayList<Integer> readMessageIds) {
+    super(nonce);
+    this.version = version;
+    this.newMessageIds = newMessageIds;
+    this.readMessageIds = readMessageIds;
+  }
+
+  // Sent with the next wait request so nothing in between is missed
+  public long getVersion() {
+    return version;
+  }
+
+  // Unread messages of the user
+  public ArrayList<Integer> getNewMessageIds() {
+    return newMessageIds;
+  }
+
+  // Messages sent by the user that got a receipt while waiting
+  public ArrayList<Integer> getReadMessageIds() {
+    return readMessageIds;
+  }
+}
@@ -0,0 +1,102 @@
+package shared.utils;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bounds the work waiting for a worker, so a burst is turned away right away
+// instead of piling up connections until their clients time out
+public final class AdmissionController {
+  private static final long NANOS_PER_MILLI = 1000000L;
+
+  private final Executor executor;
+  private final Semaphore slots;
+
+  private final AtomicLong admitted;
+  private final AtomicLong started;
+  private final AtomicLong rejected;
+  private final AtomicLong totalQueueWait;
+  private final AtomicLong maxQueueWait;
+
+  // Up to workers tasks run while queueSize more wait for one of them
+  public AdmissionController(Executor executor, int workers, int queueSize) {
+    this.executor = executor;
+
+    slots = new Semaphore(workers + queueSize);
+    admitted = new AtomicLong();
+    started = new AtomicLong();
+    rejected = new AtomicLong();
+    totalQueueWait = new AtomicLong();
+    maxQueueWait = new AtomicLong();
+  }
+
+  // Returns false if the task was turned away
+  public boolean tryExecute(Runnable task) {
+    if (!slots.tryAcquire()) {
+      rejected.incrementAndGet();
+      return false;
+    }
+
+    admitted.incrementAndGet();
+    long queuedAt = System.nanoTime();
+
+    try {
+      executor.execute(() -> {
+        recordQueueWait(System.nanoTime() - queuedAt);
+
+        try {
+          task.run();
+        } finally {
+          slots.release();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      slots.release();
+      admitted.decrementAndGet();
+      rejected.incrementAndGet();
+      return false;
+    }
+
+    return true;
+  }
+
+  // Internal work (like handshake tasks of admitted connections) is never turned away
+  public void execute(Runnable task) {
+    executor.execute(task);
+  }
+
+  public long getAdmitted() {
+    return admitted.get();
+  }
+
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  public double getAverageQueueWaitMillis() {
+    long count = started.get();
+
+    return count == 0 ? 0 : (double) totalQueueWait.get() / count / NANOS_PER_MILLI;
+  }
+
+  public double getMaxQueueWaitMillis() {
+    return (double) maxQueueWait.get() / NANOS_PER_MILLI;
+  }
+
+  @Override
+  public String toString() {
+    return "admitted " + getAdmitted() + ", rejected " + getRejected() +
+        ", queue wait avg " + String.format("%.2f", getAverageQueueWaitMillis()) +
+        " ms, max " + String.format("%.2f", getMaxQueueWaitMillis()) + " ms";
+  }
+
+  /*
+    UTILS
+  */
+  private void recordQueueWait(long wait) {
+    started.incrementAndGet();
+    totalQueueWait.addAndGet(wait);
+    maxQueueWait.accumulateAndGet(wait, Math::max);
+  }
+}
@@ -0,0 +1,329 @@
+package shared.utils;
+
+import com.google.gson.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+
+// Compact alternative to the JSON wire format. A client that starts the connection with the
+// preamble sends and receives length prefixed frames holding a typed encoding of the JSON tree.
+// Base64 strings (ciphertexts, IVs, signatures, keys) travel as raw bytes and are encoded
+// again on arrival, so the request handlers keep working with the same JSON objects.
+public final class BinaryProtocol {
+  private static final long MEGA_BYTE = 1024L * 1024L; // 1 MB
+
+  // Never the start of a JSON document
+  private static final byte[] PREAMBLE = {0x00, 'B', 'I', 'N'};
+
+  // Shorter strings are cheaper to send as they are
+  private static final int MIN_BYTES_LENGTH = 16;
+
+  // Field types
+  private static final byte NULL = 0;
+  private static final byte FALSE = 1;
+  private static final byte TRUE = 2;
+  private static final byte LONG = 3;
+  private static final byte DOUBLE = 4;
+  private static final byte STRING = 5;
+  private static final byte BYTES = 6;
+  private static final byte ARRAY = 7;
+  private static final byte OBJECT = 8;
+
+  private static final Base64.Encoder ENCODER = Base64.getEncoder();
+  private static final Base64.Decoder DECODER = Base64.getDecoder();
+
+  public static boolean isPreambleStart(byte b) {
+    return isPreambleByte(0, b);
+  }
+
+  public static boolean isPreambleByte(int index, byte b) {
+    return b == PREAMBLE[index];
+  }
+
+  public static int preambleLength() {
+    return PREAMBLE.length;
+  }
+
+  public static void writePreamble(OutputStream output) throws IOException {
+    output.write(PREAMBLE);
+  }
+
+  // Returns true if the client asked for binary frames, JSON clients are left untouched
+  public static boolean readPreamble(PushbackInputStream input) throws IOException {
+    int first = input.read();
+
+    if (first == -1)
+      return false;
+
+    if (!isPreambleStart((byte) first)) {
+      input.unread(first);
+      return false;
+    }
+
+    byte[] rest = new byte[PREAMBLE.length - 1];
+    new DataInputStream(input).readFully(rest);
+
+    for (int i = 0; i < rest.length; i++) {
+      if (!isPreambleByte(i + 1, rest[i]))
+        throw new IOException("Invalid protocol preamble.");
+    }
+
+    return true;
+  }
+
+  // Returns null if the stream ended before a new frame
+  public static JsonElement readFrame(DataInputStream input, int maxFrameSizeInMB) throws IOException {
+    int first = input.read();
+
+    if (first == -1)
+      return null;
+
+    int length = (first << 24) | (input.readUnsignedByte() << 16) | (input.readUnsignedShort());
+
+    if (length < 0 || length > MEGA_BYTE * maxFrameSizeInMB)
+      throw new IOException("Max file size passed.");
+
+    byte[] body = new byte[length];
+    input.readFully(body);
+
+    return decode(body);
+  }
+
+  public static void writeFrame(OutputStream output, JsonElement element) throws IOException {
+    // Single write so the frame goes out in as few TLS records as possible
+    output.write(encodeFrame(element));
+  }
+
+  // Frame made of elements encoded beforehand, written one after the other
+  public static byte[] encodeFrame(byte[]... parts) {
+    return encodeFrameStart(0, parts);
+  }
+
+  // Typed encoding of an element, without the frame length
+  public static byte[] encodeElement(JsonElement element) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    writeElement(new DataOutputStream(body), element);
+
+    return body.toByteArray();
+  }
+
+  // Length prefixed frame ready to be written
+  public static byte[] encodeFrame(JsonElement element) throws IOException {
+    ByteArrayOutputStream frame = new ByteArrayOutputStream();
+    DataOutputStream data = new DataOutputStream(frame);
+
+    // Reserve the length, filled in once the body is written
+    data.writeInt(0);
+    writeElement(data, element);
+
+    byte[] bytes = frame.toByteArray();
+    int length = bytes.length - 4;
+
+    bytes[0] = (byte) (length >>> 24);
+    bytes[1] = (byte) (length >>> 16);
+    bytes[2] = (byte) (length >>> 8);
+    bytes[3] = (byte) length;
+
+    return bytes;
+  }
+
+  // Frame that ends with trailing bytes left out of the parts, which the caller writes after it
+  public static byte[] encodeFrameStart(int trailing, byte[]... parts) {
+    int partsLength = 0;
+    for (byte[] part : parts)
+      partsLength += part.length;
+
+    int length = partsLength + trailing;
+
+    byte[] bytes = new byte[4 + partsLength];
+    bytes[0] = (byte) (length >>> 24);
+    bytes[1] = (byte) (length >>> 16);
+    bytes[2] = (byte) (length >>> 8);
+    bytes[3] = (byte) length;
+
+    int offset = 4;
+    for (byte[] part : parts) {
+      System.arraycopy(part, 0, bytes, offset, part.length);
+      offset += part.length;
+    }
+
+    return bytes;
+  }
+
+  // Typed encoding of an object with one more field after its own, up to the name of that field.
+  // The caller encodes its value right after it
+  public static byte[] encodeObjectStart(JsonObject object, String lastField) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    DataOutputStream data = new DataOutputStream(body);
+
+    data.writeByte(OBJECT);
+    data.writeInt(object.size() + 1);
+
+    for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+      writeString(data, entry.getKey());
+      writeElement(data, entry.getValue());
+    }
+
+    writeString(data, lastField);
+
+    return body.toByteArray();
+  }
+
+  // Type and length of a bytes value, the caller writes the bytes right after it
+  public static byte[] encodeBytesStart(int length) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    DataOutputStream data = new DataOutputStream(body);
+
+    data.writeByte(BYTES);
+    data.writeInt(length);
+
+    return body.toByteArray();
+  }
+
+  public static JsonElement decode(byte[] body) throws IOException {
+    try {
+      return readElement(new DataInputStream(new ByteArrayInputStream(body)));
+    } catch (EOFException e) {
+      throw new IOException("Truncated binary frame.");
+    }
+  }
+
+  /*
+    UTILS
+  */
+  private static void writeElement(DataOutputStream data, JsonElement element) throws IOException {
+    if (element == null || element.isJsonNull()) {
+      data.writeByte(NULL);
+    } else if (element.isJsonObject()) {
+      data.writeByte(OBJECT);
+      data.writeInt(element.getAsJsonObject().size());
+
+      for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+        writeString(data, entry.getKey());
+        writeElement(data, entry.getValue());
+      }
+    } else if (element.isJsonArray()) {
+      data.writeByte(ARRAY);
+      data.writeInt(element.getAsJsonArray().size());
+
+      for (JsonElement item : element.getAsJsonArray())
+        writeElement(data, item);
+    } else {
+      writePrimitive(data, element.getAsJsonPrimitive());
+    }
+  }
+
+  private static void writePrimitive(DataOutputStream data, JsonPrimitive primitive) throws IOException {
+    if (primitive.isBoolean()) {
+      data.writeByte(primitive.getAsBoolean() ? TRUE : FALSE);
+    } else if (primitive.isNumber()) {
+      try {
+        long value = Long.parseLong(primitive.getAsString());
+        data.writeByte(LONG);
+        data.writeLong(value);
+      } catch (NumberFormatException e) {
+        data.writeByte(DOUBLE);
+        data.writeDouble(primitive.getAsDouble());
+      }
+    } else {
+      String value = primitive.getAsString();
+      byte[] raw = base64Bytes(value);
+
+      if (raw != null) {
+        data.writeByte(BYTES);
+        data.writeInt(raw.length);
+        data.write(raw);
+      } else {
+        data.writeByte(STRING);
+        writeString(data, value);
+      }
+    }
+  }
+
+  private static JsonElement readElement(DataInputStream data) throws IOException {
+    byte type = data.readByte();
+
+    switch (type) {
+      case NULL:
+        return JsonNull.INSTANCE;
+      case FALSE:
+        return new JsonPrimitive(false);
+      case TRUE:
+        return new JsonPrimitive(true);
+      case LONG:
+        return new JsonPrimitive(data.readLong());
+      case DOUBLE:
+        return new JsonPrimitive(data.readDouble());
+      case STRING:
+        return new JsonPrimitive(readString(data));
+      case BYTES:
+        return new JsonPrimitive(ENCODER.encodeToString(readBytes(data)));
+      case ARRAY: {
+        int size = readSize(data);
+        JsonArray array = new JsonArray();
+
+        for (int i = 0; i < size; i++)
+          array.add(readElement(data));
+
+        return array;
+      }
+      case OBJECT: {
+        int size = readSize(data);
+        JsonObject object = new JsonObject();
+
+        for (int i = 0; i < size; i++) {
+          String name = readString(data);
+          object.add(name, readElement(data));
+        }
+
+        return object;
+      }
+      default:
+        throw new IOException("Unknown binary field type " + type + ".");
+    }
+  }
+
+  // Only strings that encode back to exactly the same text are sent as bytes
+  private static byte[] base64Bytes(String value) {
+    if (value.length() < MIN_BYTES_LENGTH || value.length() % 4 != 0)
+      return null;
+
+    try {
+      byte[] raw = DECODER.decode(value);
+
+      return ENCODER.encodeToString(raw).equals(value) ? raw : null;
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private static void writeString(DataOutputStream data, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+    data.writeInt(bytes.length);
+    data.write(bytes);
+  }
+
+  private static String readString(DataInputStream data) throws IOException {
+    return new String(readBytes(data), StandardCharsets.UTF_8);
+  }
+
+  private static byte[] readBytes(DataInputStream data) throws IOException {
+    byte[] bytes = new byte[readSize(data)];
+    data.readFully(bytes);
+
+    return bytes;
+  }
+
+  // Sizes can never be larger than what is left in the frame
+  private static int readSize(DataInputStream data) throws IOException {
+    int size = data.readInt();
+
+    if (size < 0 || size > data.available())
+      throw new IOException("Invalid binary field size.");
+
+    return size;
+  }
+}
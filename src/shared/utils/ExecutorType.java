@@ -0,0 +1,38 @@
+package shared.utils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public enum ExecutorType {
+  // Bounded pool of platform threads
+  FIXED("fixed"),
+  // One virtual thread per connection, blocking I/O releases the carrier thread
+  VIRTUAL("virtual");
+
+  private final String val;
+
+  ExecutorType(String val) {
+    this.val = val;
+  }
+
+  public static ExecutorType fromString(String name) {
+    for (ExecutorType type : values()) {
+      if (type.val.equals(name.toLowerCase().trim()))
+        return type;
+    }
+
+    // does not exist
+    return null;
+  }
+
+  public String val() {
+    return val;
+  }
+
+  public ExecutorService build(int threadPoolSize) {
+    if (this == VIRTUAL)
+      return Executors.newVirtualThreadPerTaskExecutor();
+
+    return Executors.newFixedThreadPool(threadPoolSize);
+  }
+}
@@ -26,6 +26,14 @@ public final class GsonUtils {
     }
   }
 
+  public static long getLong(JsonObject obj, String val) throws RequestException {
+    try {
+      return getElement(obj, val).getAsLong();
+    } catch (ClassCastException | IllegalStateException e) {
+      throw new InvalidValueTypeException(val, "long");
+    }
+  }
+
   public static boolean getBool(JsonObject obj, String val) throws RequestException {
     try {
       return getElement(obj, val).getAsBoolean();
@@ -87,6 +95,14 @@ public final class GsonUtils {
     }
   }
 
+  public static JsonArray getArray(JsonObject obj, String val) throws RequestException {
+    try {
+      return getElement(obj, val).getAsJsonArray();
+    } catch (ClassCastException | IllegalStateException e) {
+      throw new InvalidValueTypeException(val, "array");
+    }
+  }
+
   private static JsonElement getElement(JsonObject obj, String val) throws RequestException {
     JsonElement elem = obj.get(val);
 
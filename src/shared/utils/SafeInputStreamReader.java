@@ -1,11 +1,14 @@
 package shared.utils;
 
+import java.io.FilterReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 
-public final class SafeInputStreamReader extends InputStreamReader {
+// Wraps the InputStreamReader instead of extending it. Subclasses of InputStreamReader
+// lock on a monitor while blocked reading the socket, which pins virtual threads.
+public final class SafeInputStreamReader extends FilterReader {
   private static final long MEGA_BYTE = 1024L * 1024L; // 1 MB
 
   private long bytesRead;
@@ -13,7 +16,7 @@ public final class SafeInputStreamReader extends InputStreamReader {
 
   // This class makes it so users can't send HUGE files and DOS
   public SafeInputStreamReader(InputStream in, int maxBufferSizeInMB) {
-    super(in, StandardCharsets.UTF_8);
+    super(new InputStreamReader(in, StandardCharsets.UTF_8));
 
     maxBufferSize = MEGA_BYTE * maxBufferSizeInMB;
     bytesRead = 0;
@@ -35,11 +38,16 @@ public final class SafeInputStreamReader extends InputStreamReader {
   }
 
   @Override
-  public synchronized void reset() throws IOException {
+  public void reset() throws IOException {
     super.reset();
     bytesRead = 0;
   }
 
+  // Persistent connections apply the limit to each request instead of the whole stream
+  public void resetBytesRead() {
+    bytesRead = 0;
+  }
+
   /*
     UTILS
   */
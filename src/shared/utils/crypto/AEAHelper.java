@@ -12,12 +12,9 @@ import org.bouncycastle.pkcs.PKCS10CertificationRequest;
 import org.bouncycastle.pkcs.PKCSException;
 import shared.errors.crypto.InvalidCertificateInfoException;
 import shared.errors.crypto.InvalidSignatureException;
-import sun.security.pkcs10.PKCS10;
-import sun.security.x509.CertificateValidity;
-import sun.security.x509.X500Name;
-import sun.security.x509.X509CertImpl;
-import sun.security.x509.X509CertInfo;
+import org.bouncycastle.asn1.x500.X500Name;
 import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.pkcs.jcajce.JcaPKCS10CertificationRequestBuilder;
 
 import javax.crypto.*;
 import javax.net.ssl.SSLPeerUnverifiedException;
@@ -177,13 +174,13 @@ public final class AEAHelper {
   public PKCS10CertificationRequest generateCSR(String name, KeyPair keyPair) throws IOException, CertificateException, SignatureException, InvalidKeyException {
     X500Name x500Name = new X500Name("CN=" + name);
 
-    signature.initSign(keyPair.getPrivate());
-
-    PKCS10 csr = new PKCS10(keyPair.getPublic());
-    csr.encodeAndSign(x500Name, signature);
-    byte[] csrBytes = csr.getEncoded();
+    try {
+      ContentSigner contentSigner = jcaContentSignBuilder.build(keyPair.getPrivate());
 
-    return new PKCS10CertificationRequest(csrBytes);
+      return new JcaPKCS10CertificationRequestBuilder(x500Name, keyPair.getPublic()).build(contentSigner);
+    } catch (OperatorCreationException e) {
+      throw new SignatureException("Failed to sign CSR.", e);
+    }
   }
 
   public String getKeyAlg() {
@@ -0,0 +1,67 @@
+package shared.utils.crypto.util;
+
+import javax.net.ssl.SSLSession;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Counts full and abbreviated (resumed) TLS handshakes
+public final class TLSSessionStats {
+  private final AtomicLong fullHandshakes;
+  private final AtomicLong resumedHandshakes;
+
+  // Last session id negotiated with each peer (host:port)
+  private final ConcurrentHashMap<String, byte[]> lastSessionIds;
+
+  public TLSSessionStats() {
+    fullHandshakes = new AtomicLong();
+    resumedHandshakes = new AtomicLong();
+    lastSessionIds = new ConcurrentHashMap<>();
+  }
+
+  // A resumed session keeps the creation time of the handshake that created it
+  public boolean record(SSLSession session, long handshakeStart) {
+    boolean resumed = session.getCreationTime() < handshakeStart;
+
+    if (resumed)
+      resumedHandshakes.incrementAndGet();
+    else
+      fullHandshakes.incrementAndGet();
+
+    return resumed;
+  }
+
+  // Clients also compare the session id with the previous one used with the same peer
+  public boolean record(SSLSession session, long handshakeStart, String host, int port) {
+    byte[] sessionId = session.getId();
+    byte[] previousId = lastSessionIds.put(host + ":" + port, sessionId);
+
+    if (sessionId.length > 0 && Arrays.equals(sessionId, previousId)) {
+      resumedHandshakes.incrementAndGet();
+      return true;
+    }
+
+    return record(session, handshakeStart);
+  }
+
+  public long getFullHandshakes() {
+    return fullHandshakes.get();
+  }
+
+  public long getResumedHandshakes() {
+    return resumedHandshakes.get();
+  }
+
+  public double getResumptionRate() {
+    long full = fullHandshakes.get();
+    long resumed = resumedHandshakes.get();
+
+    return full + resumed == 0 ? 0 : (double) resumed / (full + resumed);
+  }
+
+  @Override
+  public String toString() {
+    return "full " + getFullHandshakes() + ", resumed " + getResumedHandshakes() +
+        " (" + Math.round(getResumptionRate() * 100) + "% resumed)";
+  }
+}
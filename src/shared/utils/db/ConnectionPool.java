@@ -0,0 +1,137 @@
+package shared.utils.db;
+
+import org.sqlite.JDBC;
+import shared.errors.db.CriticalDatabaseException;
+import shared.errors.properties.InvalidValueException;
+import shared.errors.properties.PropertyException;
+import shared.utils.properties.CustomProperties;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+// SQLite connections shared by the worker threads, a single writer and a fixed set of readers.
+// The database runs in WAL mode, so readers see the last commit and never wait for the writer.
+public final class ConnectionPool {
+  private static final String[] SYNCHRONOUS_MODES = {"off", "normal", "full", "extra"};
+
+  private final PooledConnection writer;
+  private final ReentrantLock writerLock;
+  private final ArrayBlockingQueue<PooledConnection> readers;
+
+  // Cache size follows SQLite, pages if positive and KiB if negative. Mmap size in bytes, busy timeout in ms
+  public ConnectionPool(String path, int readerCount, String synchronous, int cacheSize, int mmapSize, int busyTimeout) throws SQLException {
+    DriverManager.registerDriver(new JDBC());
+
+    String[] pragmas = {
+        "PRAGMA busy_timeout = " + busyTimeout + ";",
+        "PRAGMA synchronous = " + synchronous + ";",
+        "PRAGMA cache_size = " + cacheSize + ";",
+        "PRAGMA mmap_size = " + mmapSize + ";"
+    };
+
+    // The journal mode is kept in the file, setting it once is enough
+    writer = open(path, pragmas);
+    writer.execute("PRAGMA journal_mode = WAL;");
+    writerLock = new ReentrantLock();
+
+    readers = new ArrayBlockingQueue<>(readerCount);
+
+    for (int i = 0; i < readerCount; i++) {
+      PooledConnection reader = open(path, pragmas);
+      reader.execute("PRAGMA query_only = 1;");
+      readers.add(reader);
+    }
+  }
+
+  // One writer and the configured readers, all with the same pragmas
+  public static ConnectionPool fromProperties(CustomProperties properties, String path) throws PropertyException, CriticalDatabaseException {
+    int readers = properties.getInt(PoolProperty.READERS);
+
+    if (readers <= 0)
+      throw new InvalidValueException(PoolProperty.READERS.val());
+
+    String synchronous = properties.getString(PoolProperty.SYNCHRONOUS).toLowerCase().trim();
+
+    if (!isSynchronousMode(synchronous))
+      throw new InvalidValueException(PoolProperty.SYNCHRONOUS.val());
+
+    int cacheSize = properties.getInt(PoolProperty.CACHE_SIZE);
+    int mmapSize = properties.getInt(PoolProperty.MMAP_SIZE);
+
+    if (mmapSize < 0)
+      throw new InvalidValueException(PoolProperty.MMAP_SIZE.val());
+
+    int busyTimeout = properties.getInt(PoolProperty.BUSY_TIMEOUT);
+
+    if (busyTimeout < 0)
+      throw new InvalidValueException(PoolProperty.BUSY_TIMEOUT.val());
+
+    try {
+      return new ConnectionPool(path, readers, synchronous, cacheSize, mmapSize, busyTimeout);
+    } catch (SQLException e) {
+      throw new CriticalDatabaseException(e);
+    }
+  }
+
+  public static boolean isSynchronousMode(String mode) {
+    for (String synchronousMode : SYNCHRONOUS_MODES) {
+      if (synchronousMode.equals(mode))
+        return true;
+    }
+
+    return false;
+  }
+
+  // Only one thread holds the writer until it is released
+  public PooledConnection acquireWriter() {
+    writerLock.lock();
+    return writer;
+  }
+
+  // Waits for a free reader
+  public PooledConnection acquireReader() throws SQLException {
+    try {
+      return readers.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for a database connection.");
+    }
+  }
+
+  // Null is ignored so it can be called from finally blocks.
+  // The connection goes back to the pool even if its result sets could not be closed
+  public void release(PooledConnection connection) throws SQLException {
+    if (connection == null)
+      return;
+
+    if (connection == writer) {
+      try {
+        // The writer can be held more than once by the same thread, only the outer release resets it
+        if (writerLock.getHoldCount() == 1)
+          writer.reset();
+      } finally {
+        writerLock.unlock();
+      }
+    } else {
+      try {
+        connection.reset();
+      } finally {
+        readers.offer(connection);
+      }
+    }
+  }
+
+  /*
+    UTILS
+  */
+  private static PooledConnection open(String path, String[] pragmas) throws SQLException {
+    PooledConnection connection = new PooledConnection(DriverManager.getConnection("jdbc:sqlite:" + path));
+
+    for (String pragma : pragmas)
+      connection.execute(pragma);
+
+    return connection;
+  }
+}
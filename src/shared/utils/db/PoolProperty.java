@@ -0,0 +1,30 @@
+package shared.utils.db;
+
+import shared.utils.properties.CustomPropertyType;
+import shared.utils.properties.ICustomProperty;
+
+// Pool settings, named the same in the properties of every server
+public enum PoolProperty implements ICustomProperty {
+  READERS("database_readers", CustomPropertyType.INT),
+  SYNCHRONOUS("database_synchronous", CustomPropertyType.STRING),
+  CACHE_SIZE("database_cache_size", CustomPropertyType.INT),
+  MMAP_SIZE("database_mmap_size", CustomPropertyType.INT),
+  BUSY_TIMEOUT("database_busy_timeout", CustomPropertyType.INT);
+
+  /////////////////////////////////////////////////
+  private final String val;
+  private final CustomPropertyType type;
+
+  PoolProperty(String val, CustomPropertyType type) {
+    this.val = val;
+    this.type = type;
+  }
+
+  public String val() {
+    return val;
+  }
+
+  public CustomPropertyType type() {
+    return type;
+  }
+}
@@ -0,0 +1,116 @@
+package shared.utils.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Connection of the pool with its prepared statements cached by SQL, so each query is compiled once.
+// Statements belong to the connection and are never closed by callers. Queries run through it
+// so result sets left open, e.g. by an exception, are closed when the connection goes back to the pool.
+public final class PooledConnection {
+  // More than the distinct queries of any driver, the least recently used is closed past it
+  private static final int STATEMENT_CACHE_SIZE = 64;
+
+  private final Connection connection;
+  private final LinkedHashMap<String, PreparedStatement> statements;
+  private final ArrayList<ResultSet> results;
+
+  PooledConnection(Connection connection) {
+    this.connection = connection;
+
+    results = new ArrayList<>();
+    statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+        if (size() <= STATEMENT_CACHE_SIZE)
+          return false;
+
+        closeQuietly(eldest.getValue());
+        return true;
+      }
+    };
+  }
+
+  // Cached statement with its parameters cleared
+  public PreparedStatement prepare(String sql) throws SQLException {
+    PreparedStatement ps = statements.get(sql);
+
+    if (ps == null) {
+      ps = connection.prepareStatement(sql);
+      statements.put(sql, ps);
+    } else {
+      ps.clearParameters();
+    }
+
+    return ps;
+  }
+
+  // Result set of a cached statement, closed on release if the caller did not
+  public ResultSet query(PreparedStatement ps) throws SQLException {
+    ResultSet rs = ps.executeQuery();
+    results.add(rs);
+
+    return rs;
+  }
+
+  // Statements run once, like schema changes, are not cached
+  public void execute(String sql) throws SQLException {
+    Statement st = connection.createStatement();
+
+    try {
+      st.execute(sql);
+    } finally {
+      st.close();
+    }
+  }
+
+  public void setAutoCommit(boolean autoCommit) throws SQLException {
+    connection.setAutoCommit(autoCommit);
+  }
+
+  public void commit() throws SQLException {
+    connection.commit();
+  }
+
+  public void rollback() throws SQLException {
+    connection.rollback();
+  }
+
+  /*
+    UTILS
+  */
+  // An open result set keeps a reader on its old snapshot and stops WAL checkpoints
+  void reset() throws SQLException {
+    SQLException failure = null;
+
+    // Closing a result set twice does nothing, every one is tried even if another fails
+    for (ResultSet rs : results) {
+      try {
+        rs.close();
+      } catch (SQLException e) {
+        if (failure == null)
+          failure = e;
+        else
+          failure.addSuppressed(e);
+      }
+    }
+
+    results.clear();
+
+    if (failure != null)
+      throw failure;
+  }
+
+  private static void closeQuietly(PreparedStatement ps) {
+    try {
+      ps.close();
+    } catch (SQLException e) {
+      // Nothing to free
+    }
+  }
+}
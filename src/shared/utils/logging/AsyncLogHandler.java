@@ -0,0 +1,214 @@
+package shared.utils.logging;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
+
+// Log handler that keeps file I/O off the request threads.
+// Records are put in a bounded ring buffer and a single writer thread appends them to the file
+// in batches, one compact line each. When the buffer is full records are either dropped (and
+// counted in the file) or the logging thread waits for room, depending on the overflow policy.
+public final class AsyncLogHandler extends Handler {
+  private static final int BATCH_SIZE = 256;
+  private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(50);
+  private static final long FULL_WAIT = TimeUnit.MICROSECONDS.toNanos(100);
+
+  private final RingBuffer<LogRecord> buffer;
+  private final OverflowPolicy policy;
+  private final Writer writer;
+  private final Thread writerThread;
+
+  // Only fills in message parameters, the line format is our own
+  private final Formatter messageFormatter;
+
+  private final AtomicLong dropped;
+  private long reportedDropped;
+
+  // Records put in the buffer and records the writer is done with, flush waits for the second to catch up
+  private final AtomicLong enqueued;
+  private volatile long completed;
+
+  private volatile boolean closed;
+
+  public AsyncLogHandler(String location, int bufferSize, OverflowPolicy policy) throws IOException {
+    this.policy = policy;
+
+    buffer = new RingBuffer<>(bufferSize);
+    dropped = new AtomicLong();
+    reportedDropped = 0;
+    enqueued = new AtomicLong();
+    completed = 0;
+    messageFormatter = new SimpleFormatter();
+
+    writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(
+        Paths.get(location), StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8));
+
+    writerThread = new Thread(this::writeLoop, "log-writer");
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  @Override
+  public void publish(LogRecord record) {
+    if (closed || !isLoggable(record))
+      return;
+
+    while (!buffer.offer(record)) {
+      if (policy == OverflowPolicy.DROP || closed) {
+        dropped.incrementAndGet();
+        return;
+      }
+
+      LockSupport.unpark(writerThread);
+      LockSupport.parkNanos(FULL_WAIT);
+    }
+
+    enqueued.incrementAndGet();
+
+    // Wake the writer before the buffer fills up instead of waiting for its next round
+    if (buffer.size() > buffer.capacity() / 2)
+      LockSupport.unpark(writerThread);
+  }
+
+  // Waits until the records published before the call are in the file
+  @Override
+  public void flush() {
+    long target = enqueued.get();
+
+    while (completed < target && writerThread.isAlive() && Thread.currentThread() != writerThread) {
+      LockSupport.unpark(writerThread);
+      LockSupport.parkNanos(FULL_WAIT);
+    }
+  }
+
+  // Drains the buffer and closes the file
+  @Override
+  public void close() {
+    if (closed)
+      return;
+
+    closed = true;
+    LockSupport.unpark(writerThread);
+
+    try {
+      writerThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  /*
+    UTILS
+  */
+  private void writeLoop() {
+    StringBuilder line = new StringBuilder(256);
+
+    while (true) {
+      boolean closing = closed;
+      int written = 0;
+      long taken = completed;
+
+      try {
+        LogRecord record;
+
+        while ((record = buffer.poll()) != null) {
+          taken++;
+          line.setLength(0);
+          format(record, line);
+          writer.write(line.toString());
+
+          // Flush once per batch, not once per record
+          if (++written % BATCH_SIZE == 0)
+            writer.flush();
+        }
+
+        long droppedNow = dropped.get();
+
+        if (droppedNow != reportedDropped) {
+          writer.write(Instant.now() + " WARNING Log buffer full, dropped " + (droppedNow - reportedDropped) + " records\n");
+          reportedDropped = droppedNow;
+          written++;
+        }
+
+        if (written > 0)
+          writer.flush();
+
+        if (closing) {
+          writer.close();
+          return;
+        }
+      } catch (IOException e) {
+        reportError("Failed to write log records", e, ErrorManager.WRITE_FAILURE);
+        written = 0;
+      } finally {
+        // Records that failed to be written are given up on, flush does not wait for them forever
+        completed = taken;
+      }
+
+      if (written == 0)
+        LockSupport.parkNanos(this, IDLE_WAIT);
+    }
+  }
+
+  // <time> <level> <logger>: <message> (<throwable>)
+  private void format(LogRecord record, StringBuilder line) {
+    line.append(record.getInstant()).append(' ')
+        .append(record.getLevel().getName()).append(' ')
+        .append(record.getLoggerName()).append(": ");
+
+    // Records never span more than one line of the file
+    String message = messageFormatter.formatMessage(record);
+    if (message != null)
+      line.append(message.replace('\n', ' '));
+
+    if (record.getThrown() != null)
+      line.append(" (").append(record.getThrown()).append(')');
+
+    line.append('\n');
+  }
+
+  public enum OverflowPolicy {
+    // Records that do not fit are counted and lost, logging never slows a request
+    DROP("drop"),
+    // Logging threads wait for the writer, no record is lost
+    BLOCK("block");
+
+    private final String val;
+
+    OverflowPolicy(String val) {
+      this.val = val;
+    }
+
+    public static OverflowPolicy fromString(String name) {
+      for (OverflowPolicy policy : values()) {
+        if (policy.val.equals(name.toLowerCase().trim()))
+          return policy;
+      }
+
+      // does not exist
+      return null;
+    }
+
+    public String val() {
+      return val;
+    }
+  }
+}
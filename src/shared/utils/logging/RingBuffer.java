@@ -0,0 +1,87 @@
+package shared.utils.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Bounded lock-free queue for many producers and a single consumer.
+// Each slot has a sequence number telling whose turn it is (Vyukov's bounded queue),
+// so producers only race on one CAS and never wait for each other.
+final class RingBuffer<T> {
+  private final AtomicReferenceArray<T> items;
+  private final AtomicLongArray sequences;
+  private final int mask;
+
+  private final AtomicLong enqueuePosition;
+
+  // Only written by the consumer, read by producers to estimate the size
+  private volatile long dequeuePosition;
+
+  // Capacity is rounded up to a power of two
+  RingBuffer(int capacity) {
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+
+    items = new AtomicReferenceArray<>(size);
+    sequences = new AtomicLongArray(size);
+    mask = size - 1;
+
+    for (int i = 0; i < size; i++)
+      sequences.set(i, i);
+
+    enqueuePosition = new AtomicLong();
+    dequeuePosition = 0;
+  }
+
+  // Returns false if the buffer is full
+  boolean offer(T item) {
+    long position = enqueuePosition.get();
+    int index;
+
+    while (true) {
+      index = (int) (position & mask);
+      long difference = sequences.get(index) - position;
+
+      if (difference == 0) {
+        if (enqueuePosition.compareAndSet(position, position + 1))
+          break;
+
+        position = enqueuePosition.get();
+      } else if (difference < 0) {
+        return false;
+      } else {
+        // Another producer took the slot
+        position = enqueuePosition.get();
+      }
+    }
+
+    items.set(index, item);
+    sequences.set(index, position + 1);
+
+    return true;
+  }
+
+  // Returns null if there is nothing to consume
+  T poll() {
+    int index = (int) (dequeuePosition & mask);
+
+    if (sequences.get(index) != dequeuePosition + 1)
+      return null;
+
+    T item = items.get(index);
+    items.set(index, null);
+
+    // The slot is free for the producer one lap ahead
+    sequences.set(index, dequeuePosition + mask + 1);
+    dequeuePosition++;
+
+    return item;
+  }
+
+  int capacity() {
+    return mask + 1;
+  }
+
+  int size() {
+    return (int) Math.max(0, enqueuePosition.get() - dequeuePosition);
+  }
+}
@@ -0,0 +1,102 @@
+package shared.utils.metrics;
+
+import com.google.gson.JsonObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Log-linear histogram of latencies in microseconds, like HdrHistogram with 2 significant digits.
+// Every power of two range is split in 32 buckets, so any recorded value is off by at most ~3%.
+public final class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  // Up to 2^40 us (about 12 days), longer values are recorded as the max
+  private static final int MAX_EXPONENT = 40;
+  private static final long MAX_VALUE = (1L << MAX_EXPONENT) - 1;
+
+  private static final long NANOS_PER_MICRO = 1000L;
+  private static final double MICROS_PER_MILLI = 1000.0;
+
+  private final AtomicLongArray counts;
+  private final AtomicLong count;
+  private final AtomicLong sum;
+  private final AtomicLong max;
+
+  public LatencyHistogram() {
+    counts = new AtomicLongArray(index(MAX_VALUE) + 1);
+    count = new AtomicLong();
+    sum = new AtomicLong();
+    max = new AtomicLong();
+  }
+
+  public void record(long nanos) {
+    long micros = Math.min(Math.max(0, nanos / NANOS_PER_MICRO), MAX_VALUE);
+
+    counts.incrementAndGet(index(micros));
+    count.incrementAndGet();
+    sum.addAndGet(micros);
+    max.accumulateAndGet(micros, Math::max);
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  // In milliseconds, the highest value of the bucket holding the percentile
+  public double getPercentile(double percentile) {
+    long total = count.get();
+
+    if (total == 0)
+      return 0;
+
+    long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+    long seen = 0;
+
+    for (int i = 0; i < counts.length(); i++) {
+      seen += counts.get(i);
+
+      if (seen >= target)
+        return Math.min(highestValue(i), max.get()) / MICROS_PER_MILLI;
+    }
+
+    return max.get() / MICROS_PER_MILLI;
+  }
+
+  public JsonObject toJson() {
+    long total = count.get();
+
+    JsonObject json = new JsonObject();
+    json.addProperty("count", total);
+    json.addProperty("mean_ms", total == 0 ? 0 : sum.get() / MICROS_PER_MILLI / total);
+    json.addProperty("p50_ms", getPercentile(50));
+    json.addProperty("p99_ms", getPercentile(99));
+    json.addProperty("p999_ms", getPercentile(99.9));
+    json.addProperty("max_ms", max.get() / MICROS_PER_MILLI);
+
+    return json;
+  }
+
+  /*
+    UTILS
+  */
+  // Values below 2 * SUB_BUCKETS have their own bucket, larger ones share it with their neighbours
+  private static int index(long micros) {
+    if (micros < 2 * SUB_BUCKETS)
+      return (int) micros;
+
+    int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+
+    return shift * SUB_BUCKETS + (int) (micros >>> shift);
+  }
+
+  private static long highestValue(int index) {
+    if (index < 2 * SUB_BUCKETS)
+      return index;
+
+    int shift = index / SUB_BUCKETS - 1;
+    long subBucket = index - shift * SUB_BUCKETS;
+
+    return ((subBucket + 1) << shift) - 1;
+  }
+}
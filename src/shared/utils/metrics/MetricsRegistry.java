@@ -0,0 +1,104 @@
+package shared.utils.metrics;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Counters, latency histograms and gauges of a running server, read through a snapshot.
+// Recording never locks, so it can be done on every request.
+public final class MetricsRegistry {
+  private final ConcurrentHashMap<String, LongAdder> counters;
+  private final ConcurrentHashMap<String, LatencyHistogram> latencies;
+  private final ConcurrentHashMap<String, Supplier<?>> gauges;
+  private final long startTime;
+
+  public MetricsRegistry() {
+    counters = new ConcurrentHashMap<>();
+    latencies = new ConcurrentHashMap<>();
+    gauges = new ConcurrentHashMap<>();
+    startTime = System.currentTimeMillis();
+  }
+
+  public void increment(String name) {
+    counters.computeIfAbsent(name, key -> new LongAdder()).increment();
+  }
+
+  public void record(String name, long nanos) {
+    latencies.computeIfAbsent(name, key -> new LatencyHistogram()).record(nanos);
+  }
+
+  // Start taken from System.nanoTime()
+  public void recordSince(String name, long start) {
+    record(name, System.nanoTime() - start);
+  }
+
+  // Values read when a snapshot is taken
+  public void gauge(String name, Supplier<?> value) {
+    gauges.put(name, value);
+  }
+
+  public JsonObject snapshot() {
+    JsonObject snapshot = new JsonObject();
+    snapshot.addProperty("uptime_seconds", (System.currentTimeMillis() - startTime) / 1000);
+
+    JsonObject countersJson = new JsonObject();
+    for (Map.Entry<String, LongAdder> counter : new TreeMap<>(counters).entrySet())
+      countersJson.addProperty(counter.getKey(), counter.getValue().sum());
+
+    JsonObject latenciesJson = new JsonObject();
+    for (Map.Entry<String, LatencyHistogram> latency : new TreeMap<>(latencies).entrySet())
+      latenciesJson.add(latency.getKey(), latency.getValue().toJson());
+
+    JsonObject gaugesJson = new JsonObject();
+    for (Map.Entry<String, Supplier<?>> gauge : new TreeMap<>(gauges).entrySet()) {
+      Object value = gauge.getValue().get();
+
+      if (value instanceof Number)
+        gaugesJson.add(gauge.getKey(), new JsonPrimitive((Number) value));
+      else
+        gaugesJson.addProperty(gauge.getKey(), String.valueOf(value));
+    }
+
+    snapshot.add("counters", countersJson);
+    snapshot.add("latencies", latenciesJson);
+    snapshot.add("gauges", gaugesJson);
+
+    return snapshot;
+  }
+
+  // Rewrites the file with a new snapshot every interval, from a daemon thread
+  public void startDump(Path file, int intervalInSeconds, Gson gson, Logger logger) {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+      Thread thread = new Thread(task, "metrics-dump");
+      thread.setDaemon(true);
+      return thread;
+    });
+
+    scheduler.scheduleAtFixedRate(() -> {
+      try {
+        // Readers never see a half written file
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, gson.toJson(snapshot()).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Failed to dump metrics: " + e.getMessage());
+      }
+    }, intervalInSeconds, intervalInSeconds, TimeUnit.SECONDS);
+  }
+}
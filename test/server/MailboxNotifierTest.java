@@ -0,0 +1,81 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MailboxNotifierTest {
+  private static final long LONG_TIMEOUT = 60 * 1000;
+
+  @Test
+  void wakesWaitersOfTheUserOnly() throws Exception {
+    MailboxNotifier notifier = new MailboxNotifier();
+
+    CompletableFuture<MailboxNotifier.Change> receiver = new CompletableFuture<>();
+    CompletableFuture<MailboxNotifier.Change> other = new CompletableFuture<>();
+
+    notifier.watch(1, notifier.getVersion(), LONG_TIMEOUT, receiver::complete);
+    notifier.watch(2, notifier.getVersion(), LONG_TIMEOUT, other::complete);
+
+    notifier.messageArrived(1);
+
+    MailboxNotifier.Change change = receiver.get(1, TimeUnit.SECONDS);
+    assertEquals(notifier.getVersion(), change.getVersion());
+    assertTrue(change.getReadMessageIds().isEmpty());
+
+    assertFalse(other.isDone());
+    assertEquals(1, notifier.getWaiting());
+  }
+
+  @Test
+  void answersRightAwayWithWhatHappenedSinceTheSeenVersion() {
+    MailboxNotifier notifier = new MailboxNotifier();
+    long seen = notifier.getVersion();
+
+    notifier.receiptArrived(1, 10);
+    notifier.messageArrived(2);
+    notifier.receiptArrived(1, 11);
+
+    CompletableFuture<MailboxNotifier.Change> waiter = new CompletableFuture<>();
+    notifier.watch(1, seen, LONG_TIMEOUT, waiter::complete);
+
+    // Called from this thread, nothing waits
+    assertTrue(waiter.isDone());
+    assertEquals(0, notifier.getWaiting());
+
+    MailboxNotifier.Change change = waiter.join();
+    assertEquals(3, change.getVersion());
+    assertEquals(2, change.getReadMessageIds().size());
+    assertEquals(10, change.getReadMessageIds().get(0));
+    assertEquals(11, change.getReadMessageIds().get(1));
+  }
+
+  @Test
+  void answersWithNothingWhenTheTimeoutPasses() throws Exception {
+    MailboxNotifier notifier = new MailboxNotifier();
+    notifier.messageArrived(2);
+
+    CompletableFuture<MailboxNotifier.Change> waiter = new CompletableFuture<>();
+    notifier.watch(1, notifier.getVersion(), 50, waiter::complete);
+
+    MailboxNotifier.Change change = waiter.get(5, TimeUnit.SECONDS);
+    assertEquals(1, change.getVersion());
+    assertTrue(change.getReadMessageIds().isEmpty());
+    assertEquals(0, notifier.getWaiting());
+  }
+
+  @Test
+  void wakesWaitersWithVersionsFromBeforeARestart() {
+    MailboxNotifier notifier = new MailboxNotifier();
+
+    CompletableFuture<MailboxNotifier.Change> waiter = new CompletableFuture<>();
+    notifier.watch(1, 1000, LONG_TIMEOUT, waiter::complete);
+
+    // Events may have been missed, the client reloads its mailbox
+    assertTrue(waiter.isDone());
+    assertEquals(0, waiter.join().getVersion());
+  }
+}
@@ -0,0 +1,96 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import server.request.ServerRequest;
+
+import java.math.BigInteger;
+import java.util.EnumMap;
+import java.util.HashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RateLimiterTest {
+  private static final BigInteger CLIENT = BigInteger.valueOf(1);
+  private static final BigInteger OTHER_CLIENT = BigInteger.valueOf(2);
+
+  @Test
+  void allowsTheBurstThenRejects() {
+    RateLimiter limiter = new RateLimiter(RateLimiter.Limit.parse("1:3"), new HashMap<>(), 60);
+
+    for (int i = 0; i < 3; i++)
+      assertTrue(limiter.tryAcquire(CLIENT, ServerRequest.SEND));
+
+    assertFalse(limiter.tryAcquire(CLIENT, ServerRequest.SEND));
+  }
+
+  @Test
+  void keepsClientsAndRoutesApart() {
+    EnumMap<ServerRequest, RateLimiter.Limit> limits = new EnumMap<>(ServerRequest.class);
+    limits.put(ServerRequest.RECEIVE, RateLimiter.Limit.parse("1:2"));
+
+    RateLimiter limiter = new RateLimiter(RateLimiter.Limit.parse("1:1"), limits, 60);
+
+    assertTrue(limiter.tryAcquire(CLIENT, ServerRequest.SEND));
+    assertFalse(limiter.tryAcquire(CLIENT, ServerRequest.SEND));
+
+    assertTrue(limiter.tryAcquire(OTHER_CLIENT, ServerRequest.SEND));
+
+    assertTrue(limiter.tryAcquire(CLIENT, ServerRequest.RECEIVE));
+    assertTrue(limiter.tryAcquire(CLIENT, ServerRequest.RECEIVE));
+    assertFalse(limiter.tryAcquire(CLIENT, ServerRequest.RECEIVE));
+  }
+
+  @Test
+  void refillsOverTime() throws InterruptedException {
+    // A token every second, so a slow run never refills between the first two requests
+    RateLimiter limiter = new RateLimiter(RateLimiter.Limit.parse("1:1"), new HashMap<>(), 60);
+
+    assertTrue(limiter.tryAcquire(CLIENT, ServerRequest.SEND));
+    assertFalse(limiter.tryAcquire(CLIENT, ServerRequest.SEND));
+
+    Thread.sleep(1100);
+
+    assertTrue(limiter.tryAcquire(CLIENT, ServerRequest.SEND));
+  }
+
+  @Test
+  void neverGivesMoreThanTheBurstToConcurrentRequests() throws InterruptedException {
+    RateLimiter limiter = new RateLimiter(RateLimiter.Limit.parse("0.001:50"), new HashMap<>(), 60);
+    int[] acquired = new int[8];
+    Thread[] threads = new Thread[acquired.length];
+
+    for (int i = 0; i < threads.length; i++) {
+      int thread = i;
+
+      threads[i] = new Thread(() -> {
+        for (int j = 0; j < 100; j++) {
+          if (limiter.tryAcquire(CLIENT, ServerRequest.SEND))
+            acquired[thread]++;
+        }
+      });
+      threads[i].start();
+    }
+
+    int total = 0;
+    for (int i = 0; i < threads.length; i++) {
+      threads[i].join();
+      total += acquired[i];
+    }
+
+    assertEquals(50, total);
+  }
+
+  @Test
+  void parsesLimits() {
+    assertNotNull(RateLimiter.Limit.parse("2.5:4"));
+    assertNotNull(RateLimiter.Limit.parse(" 10:1 "));
+
+    assertNull(RateLimiter.Limit.parse("10"));
+    assertNull(RateLimiter.Limit.parse("a:1"));
+    assertNull(RateLimiter.Limit.parse("10:b"));
+    assertNull(RateLimiter.Limit.parse("0:1"));
+    assertNull(RateLimiter.Limit.parse("-1:1"));
+    assertNull(RateLimiter.Limit.parse("10:0"));
+    assertNull(RateLimiter.Limit.parse("10:1:1"));
+  }
+}
@@ -0,0 +1,175 @@
+package server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+import shared.response.OkResponseWithNonce;
+import shared.utils.BinaryProtocol;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResponseCacheTest {
+  // Bodies up to an eighth of the cache are kept
+  private static final int BODY_SIZE = 100 * 1024;
+
+  private final Gson gson = new Gson();
+
+  @Test
+  void splicesTheNonceOfEachRequest() throws IOException {
+    ResponseCache cache = new ResponseCache(gson, 1);
+
+    ResponseCache.CachedResponse first = cache.put("key", false, "v1", "first", nonce -> new Body(nonce, "data"));
+    ResponseCache.CachedResponse second = cache.get("key", false, "second");
+
+    assertEquals("v1", second.getVersion());
+    assertEquals("first", json(first.serialize(false)).get("nonce").getAsString());
+
+    JsonObject body = json(second.serialize(false));
+
+    assertEquals("second", body.get("nonce").getAsString());
+    assertEquals("data", body.get("data").getAsString());
+    assertEquals(body, second.toJsonTree());
+  }
+
+  @Test
+  void splicesTheNonceOfBinaryFrames() throws IOException {
+    ResponseCache cache = new ResponseCache(gson, 1);
+
+    cache.put("key", true, "v1", "first", nonce -> new Body(nonce, "data"));
+    byte[] frame = cache.get("key", true, "second").serialize(true);
+
+    JsonObject body = BinaryProtocol.decode(Arrays.copyOfRange(frame, 4, frame.length)).getAsJsonObject();
+
+    assertEquals(frame.length - 4, ((frame[0] & 0xFF) << 24) | ((frame[1] & 0xFF) << 16) | ((frame[2] & 0xFF) << 8) | (frame[3] & 0xFF));
+    assertEquals("second", body.get("nonce").getAsString());
+    assertEquals("data", body.get("data").getAsString());
+    assertEquals(body, cache.get("key", true, "second").toJsonTree());
+  }
+
+  @Test
+  void neverSplicesIntoTheBody() throws IOException {
+    ResponseCache cache = new ResponseCache(gson, 1);
+    String marker = "\u0000nonce\u0000";
+
+    for (boolean binary : new boolean[]{false, true}) {
+      cache.put("key", binary, "v1", "first", nonce -> new Message(nonce, marker));
+      ResponseCache.CachedResponse cached = cache.get("key", binary, "second");
+
+      JsonObject body = cached.toJsonTree().getAsJsonObject();
+
+      assertEquals("second", body.get("nonce").getAsString());
+      assertEquals(marker, body.get("text").getAsString());
+    }
+  }
+
+  @Test
+  void keepsWireFormatsApart() throws IOException {
+    ResponseCache cache = new ResponseCache(gson, 1);
+    ResponseCache.CachedResponse json = cache.put("key", false, "v1", "nonce", nonce -> new Body(nonce, "data"));
+
+    assertNull(cache.get("key", true, "nonce"));
+    assertThrows(IOException.class, () -> json.serialize(true));
+  }
+
+  @Test
+  void evictsTheLeastRecentlyUsedPastTheMaxSize() throws IOException {
+    ResponseCache cache = new ResponseCache(gson, 1);
+    String data = text(BODY_SIZE);
+
+    for (int i = 0; i < 9; i++)
+      cache.put("key" + i, false, "v", "nonce", nonce -> new Body(nonce, data));
+
+    // Used again, the second one is now the oldest
+    assertNotNull(cache.get("key0", false, "nonce"));
+
+    cache.put("key9", false, "v", "nonce", nonce -> new Body(nonce, data));
+    cache.put("key10", false, "v", "nonce", nonce -> new Body(nonce, data));
+
+    assertTrue(cache.getBytes() <= 1024 * 1024);
+    assertNotNull(cache.get("key0", false, "nonce"));
+    assertNull(cache.get("key1", false, "nonce"));
+    assertNotNull(cache.get("key10", false, "nonce"));
+  }
+
+  @Test
+  void countsTheBytesOfEachEntryOnce() throws IOException {
+    ResponseCache cache = new ResponseCache(gson, 1);
+    String data = text(BODY_SIZE);
+
+    cache.put("key", false, "v", "nonce", nonce -> new Body(nonce, data));
+    long bytes = cache.getBytes();
+
+    assertTrue(bytes > BODY_SIZE);
+
+    // Replaced, not added
+    cache.put("key", false, "v", "nonce", nonce -> new Body(nonce, data));
+    assertEquals(bytes, cache.getBytes());
+
+    // Served without being counted again
+    cache.get("key", false, "nonce").serialize(false);
+    assertEquals(bytes, cache.getBytes());
+  }
+
+  @Test
+  void answersButDoesNotKeepLargeBodies() throws IOException {
+    ResponseCache cache = new ResponseCache(gson, 1);
+    String data = text(2 * BODY_SIZE);
+
+    ResponseCache.CachedResponse response = cache.put("key", false, "v", "nonce", nonce -> new Body(nonce, data));
+
+    assertEquals(data, json(response.serialize(false)).get("data").getAsString());
+    assertNull(cache.get("key", false, "nonce"));
+    assertEquals(0, cache.getBytes());
+  }
+
+  @Test
+  void countsHitsAndMisses() throws IOException {
+    ResponseCache cache = new ResponseCache(gson, 1);
+
+    assertNull(cache.get("key", false, "nonce"));
+    cache.put("key", false, "v", "nonce", nonce -> new Body(nonce, "data"));
+    cache.get("key", false, "nonce");
+    cache.get("key", false, "nonce");
+
+    assertEquals(2, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  /*
+    UTILS
+  */
+  private static JsonObject json(byte[] body) {
+    return new JsonParser().parse(new String(body, StandardCharsets.UTF_8)).getAsJsonObject();
+  }
+
+  private static String text(int length) {
+    char[] chars = new char[length];
+    Arrays.fill(chars, 'a');
+
+    return new String(chars);
+  }
+
+  private static final class Body extends OkResponseWithNonce {
+    private final String data;
+
+    private Body(String nonce, String data) {
+      super(nonce);
+      this.data = data;
+    }
+  }
+
+  // Serialized by Gson with its text before the nonce, like RECEIVE
+  private static final class Message extends OkResponseWithNonce {
+    private final String text;
+
+    private Message(String nonce, String text) {
+      super(nonce);
+      this.text = text;
+    }
+  }
+}
@@ -0,0 +1,90 @@
+package server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+import shared.response.server.ReceiveMessageResponse;
+import shared.utils.BinaryProtocol;
+import shared.utils.GsonUtils;
+import shared.wrappers.Message;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StreamedMessageResponseTest {
+  // Spans several chunks and ends in a partial one
+  private static final int ATTACHMENTS_SIZE = 100 * 1024 + 1;
+
+  private final Gson gson = GsonUtils.buildGsonInstance();
+
+  @Test
+  void writesTheSameJsonAsTheWholeMessage() throws IOException {
+    byte[] attachments = attachments();
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    streamed(attachments).writeTo(output, gson, false);
+
+    JsonElement body = new JsonParser().parse(new String(output.toByteArray(), StandardCharsets.UTF_8));
+
+    assertEquals(whole(attachments), body);
+  }
+
+  @Test
+  void writesTheSameBinaryFrameAsTheWholeMessage() throws IOException {
+    byte[] attachments = attachments();
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    streamed(attachments).writeTo(output, gson, true);
+
+    DataInputStream input = new DataInputStream(new ByteArrayInputStream(output.toByteArray()));
+
+    assertEquals(whole(attachments), BinaryProtocol.readFrame(input, 1));
+    assertEquals(-1, input.read());
+  }
+
+  @Test
+  void readsTheAttachmentsWholeForBatches() throws IOException {
+    byte[] attachments = attachments();
+
+    assertEquals(whole(attachments), streamed(attachments).toJsonTree(gson));
+  }
+
+  @Test
+  void failsOnAttachmentsShorterThanTheirSize() {
+    StreamedMessageResponse response = new StreamedMessageResponse(response(""), new ByteArrayInputStream(new byte[10]), 20);
+
+    assertThrows(IOException.class, () -> response.writeTo(new ByteArrayOutputStream(), gson, false));
+  }
+
+  /*
+    UTILS
+  */
+  private StreamedMessageResponse streamed(byte[] attachments) {
+    return new StreamedMessageResponse(response(""), new ByteArrayInputStream(attachments), attachments.length);
+  }
+
+  private JsonElement whole(byte[] attachments) {
+    return gson.toJsonTree(response(Base64.getEncoder().encodeToString(attachments)));
+  }
+
+  private static ReceiveMessageResponse response(String attachments) {
+    Message message = new Message(1, 2, "text \"quoted\" }", "attachmentData", attachments, "iv", "signature");
+
+    return new ReceiveMessageResponse("nonce", message, "version");
+  }
+
+  private static byte[] attachments() {
+    byte[] attachments = new byte[ATTACHMENTS_SIZE];
+    new Random(7).nextBytes(attachments);
+
+    return attachments;
+  }
+}
@@ -0,0 +1,84 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import shared.errors.request.CustomRequestException;
+
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UploadStoreTest {
+  private static final BigInteger OWNER = BigInteger.valueOf(42);
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void claimedUploadsTakeNoMoreChunks() throws Exception {
+    UploadStore uploads = store();
+    String uploadId = uploads.newId();
+    Path upload = uploads.create(OWNER, uploadId, new byte[]{1, 2});
+
+    Path claimed = uploads.claim(upload);
+
+    assertThrows(NoSuchFileException.class, () -> uploads.append(upload, new byte[]{3}));
+    assertThrows(CustomRequestException.class, () -> uploads.get(OWNER, uploadId));
+    assertThrows(NoSuchFileException.class, () -> uploads.claim(upload));
+    assertArrayEquals(new byte[]{1, 2}, Files.readAllBytes(claimed));
+  }
+
+  @Test
+  void unclaimedUploadsContinue() throws Exception {
+    UploadStore uploads = store();
+    String uploadId = uploads.newId();
+    Path upload = uploads.create(OWNER, uploadId, new byte[]{1, 2});
+
+    uploads.claim(upload);
+    uploads.unclaim(upload);
+    uploads.append(uploads.get(OWNER, uploadId), new byte[]{3});
+
+    assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(upload));
+  }
+
+  @Test
+  void sweepKeepsClaimedUploads() throws Exception {
+    UploadStore uploads = store();
+    Path upload = uploads.create(OWNER, uploads.newId(), new byte[]{1, 2});
+    Path abandoned = uploads.create(OWNER, uploads.newId(), new byte[]{3});
+
+    // Claimed longer than the expiry, the message is still being sent
+    FileTime expired = FileTime.fromMillis(System.currentTimeMillis() - 2 * 60 * 60 * 1000L);
+    Path claimed = uploads.claim(upload);
+    Files.setLastModifiedTime(claimed, expired);
+    Files.setLastModifiedTime(abandoned, expired);
+
+    uploads.sweep();
+
+    assertTrue(Files.exists(claimed));
+    assertFalse(Files.exists(abandoned));
+  }
+
+  @Test
+  void claimsOfAStoppedServerAreGivenBack() throws Exception {
+    UploadStore uploads = store();
+    String uploadId = uploads.newId();
+    Path upload = uploads.create(OWNER, uploadId, new byte[]{1, 2});
+
+    uploads.claim(upload);
+
+    UploadStore restarted = store();
+    restarted.append(restarted.get(OWNER, uploadId), new byte[]{3});
+
+    assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(upload));
+  }
+
+  private UploadStore store() throws Exception {
+    return new UploadStore(dir, 1024, 60, Logger.getLogger(UploadStoreTest.class.getName()));
+  }
+}
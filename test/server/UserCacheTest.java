@@ -0,0 +1,73 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+import server.db.MemoryStorage;
+import shared.errors.db.EntryNotFoundException;
+import shared.wrappers.User;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UserCacheTest {
+  @Test
+  void readsEachUserOnce() throws Exception {
+    MemoryStorage db = new MemoryStorage();
+    UserCache cache = new UserCache(db, 16);
+
+    int id = db.insertUser(user("user"));
+
+    User first = cache.getUserByUUID("user");
+    assertSame(first, cache.getUserById(id));
+    assertSame(first, cache.getUserByUUID("user"));
+
+    assertEquals(1, cache.getMisses());
+    assertEquals(2, cache.getHits());
+  }
+
+  @Test
+  void doesNotCacheMissingUsers() throws Exception {
+    MemoryStorage db = new MemoryStorage();
+    UserCache cache = new UserCache(db, 16);
+
+    assertThrows(EntryNotFoundException.class, () -> cache.getUserByUUID("user"));
+
+    // Registered since the failed lookup
+    int id = cache.insertUser(user("user"));
+
+    assertEquals(id, cache.getUserByUUID("user").getId());
+  }
+
+  @Test
+  void dropsListingPagesWhenAUserRegisters() throws Exception {
+    MemoryStorage db = new MemoryStorage();
+    UserCache cache = new UserCache(db, 16);
+
+    cache.insertUser(user("first"));
+
+    assertEquals(1, cache.getAllUsers(0, 10).size());
+    assertEquals(1, cache.getAllUsers(0, 10).size());
+    assertEquals(1, cache.getHits());
+
+    cache.insertUser(user("second"));
+
+    assertEquals(2, cache.getAllUsers(0, 10).size());
+    assertEquals(1, cache.getHits());
+  }
+
+  @Test
+  void staysWithinItsMaxSize() throws Exception {
+    MemoryStorage db = new MemoryStorage();
+    UserCache cache = new UserCache(db, 4);
+
+    for (int i = 0; i < 10; i++)
+      cache.getUserById(db.insertUser(user("user" + i)));
+
+    assertTrue(cache.getSize() <= 4);
+
+    // Evicted users are read again
+    assertEquals(1, cache.getUserByUUID("user0").getId());
+  }
+
+  private static User user(String uuid) {
+    return new User(uuid, "pubKey", "dhSeaPubKey", "dhMacPubKey", "seaSpec", "macSpec", "signature");
+  }
+}
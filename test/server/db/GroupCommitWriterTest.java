@@ -0,0 +1,159 @@
+package server.db;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import shared.errors.db.WriteTimeoutException;
+import shared.utils.db.ConnectionPool;
+import shared.utils.db.PooledConnection;
+
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GroupCommitWriterTest {
+  @TempDir
+  Path dir;
+
+  private ConnectionPool pool;
+
+  @BeforeEach
+  void createDatabase() throws SQLException {
+    pool = new ConnectionPool(dir.resolve("test.db").toString(), 1, "normal", -2000, 0, 1000);
+
+    PooledConnection writer = pool.acquireWriter();
+    writer.execute("CREATE TABLE entries (value INTEGER NOT NULL UNIQUE);");
+    pool.release(writer);
+  }
+
+  @Test
+  void commitsConcurrentWritesTogether() throws Exception {
+    GroupCommitWriter writer = new GroupCommitWriter(pool, 64, 50);
+    ExecutorService callers = Executors.newFixedThreadPool(8);
+
+    try {
+      ArrayList<Future<Integer>> results = new ArrayList<>();
+
+      for (int i = 0; i < 8; i++) {
+        int value = i;
+        results.add(callers.submit(() -> writer.write(connection -> insert(connection, value), null)));
+      }
+
+      for (int i = 0; i < 8; i++)
+        assertEquals(i, results.get(i).get(5, TimeUnit.SECONDS));
+
+      assertEquals(8, count());
+      assertEquals(8, writer.getWrites());
+      assertTrue(writer.getBatches() < 8);
+    } finally {
+      callers.shutdownNow();
+    }
+  }
+
+  @Test
+  void rollsBackOnlyTheFailedWrite() throws Exception {
+    GroupCommitWriter writer = new GroupCommitWriter(pool, 64, 50);
+    ExecutorService callers = Executors.newFixedThreadPool(3);
+    AtomicBoolean undone = new AtomicBoolean();
+
+    try {
+      Future<Integer> first = callers.submit(() -> writer.write(connection -> insert(connection, 1), null));
+      Future<Integer> duplicate = callers.submit(() -> writer.write(connection -> {
+        insert(connection, 2);
+        return insert(connection, 2);
+      }, () -> undone.set(true)));
+      Future<Integer> last = callers.submit(() -> writer.write(connection -> insert(connection, 3), null));
+
+      assertEquals(1, first.get(5, TimeUnit.SECONDS));
+      assertEquals(3, last.get(5, TimeUnit.SECONDS));
+
+      Exception e = assertThrows(Exception.class, () -> duplicate.get(5, TimeUnit.SECONDS));
+      assertInstanceOf(SQLException.class, e.getCause());
+      assertTrue(undone.get());
+
+      // Its first insert went with it
+      assertEquals(2, count());
+    } finally {
+      callers.shutdownNow();
+    }
+  }
+
+  @Test
+  void givesUpOnlyWritesThatNeverRan() throws Exception {
+    GroupCommitWriter writer = new GroupCommitWriter(pool, 1, 0, 100);
+    ExecutorService callers = Executors.newFixedThreadPool(2);
+    CountDownLatch running = new CountDownLatch(1);
+    AtomicBoolean queuedRan = new AtomicBoolean();
+
+    try {
+      // Holds the writer thread past the timeout of both callers
+      Future<Integer> slow = callers.submit(() -> writer.write(connection -> {
+        running.countDown();
+        pause(400);
+        return insert(connection, 1);
+      }, null));
+
+      assertTrue(running.await(5, TimeUnit.SECONDS));
+
+      Future<Integer> queued = callers.submit(() -> writer.write(connection -> {
+        queuedRan.set(true);
+        return insert(connection, 2);
+      }, null));
+
+      Exception e = assertThrows(Exception.class, () -> queued.get(5, TimeUnit.SECONDS));
+      assertInstanceOf(WriteTimeoutException.class, e.getCause());
+
+      // Already in a batch when its timeout passed, it waits for the commit
+      assertEquals(1, slow.get(5, TimeUnit.SECONDS));
+
+      // The writer moved on without running the write given up
+      writer.write(connection -> insert(connection, 3), null);
+      assertFalse(queuedRan.get());
+      assertEquals(2, count());
+    } finally {
+      callers.shutdownNow();
+    }
+  }
+
+  /*
+    UTILS
+  */
+  private static int insert(PooledConnection connection, int value) throws SQLException {
+    PreparedStatement ps = connection.prepare("INSERT INTO entries (value) VALUES (?);");
+    ps.setInt(1, value);
+    ps.executeUpdate();
+
+    return value;
+  }
+
+  private static void pause(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private int count() throws SQLException {
+    PooledConnection reader = pool.acquireReader();
+
+    try {
+      ResultSet rs = reader.query(reader.prepare("SELECT COUNT(*) AS count FROM entries;"));
+      rs.next();
+
+      return rs.getInt("count");
+    } finally {
+      pool.release(reader);
+    }
+  }
+}
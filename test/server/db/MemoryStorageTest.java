@@ -0,0 +1,125 @@
+package server.db;
+
+import org.junit.jupiter.api.Test;
+import shared.Pair;
+import shared.errors.db.DuplicateEntryException;
+import shared.errors.db.EntryNotFoundException;
+import shared.errors.db.FailedToInsertException;
+import shared.wrappers.Message;
+import shared.wrappers.Receipt;
+import shared.wrappers.User;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MemoryStorageTest {
+  @Test
+  void findsUsersByIdAndUUID() throws Exception {
+    MemoryStorage storage = new MemoryStorage();
+
+    int first = storage.insertUser(user("first"));
+    int second = storage.insertUser(user("second"));
+
+    assertEquals(first + 1, second);
+    assertEquals(second, storage.getUserByUUID("second").getId());
+    assertEquals(first, storage.getUserById(first).getId());
+
+    assertThrows(DuplicateEntryException.class, () -> storage.insertUser(user("first")));
+    assertThrows(EntryNotFoundException.class, () -> storage.getUserById(second + 1));
+    assertThrows(EntryNotFoundException.class, () -> storage.getUserByUUID("third"));
+  }
+
+  @Test
+  void pagesUsersPastTheFirstChunks() throws Exception {
+    MemoryStorage storage = new MemoryStorage();
+
+    // More ids than the initial chunk index holds
+    int count = 70000;
+    for (int i = 0; i < count; i++)
+      storage.insertUser(user("user" + i));
+
+    ArrayList<User> page = storage.getAllUsers(count - 3, 10);
+
+    assertEquals(3, page.size());
+    assertEquals(count, page.get(2).getId());
+    assertEquals(count, storage.getUserByUUID("user" + (count - 1)).getId());
+  }
+
+  @Test
+  void listsMailboxesInIdOrder() throws Exception {
+    MemoryStorage storage = new MemoryStorage();
+
+    int sender = storage.insertUser(user("sender"));
+    int receiver = storage.insertUser(user("receiver"));
+
+    int first = storage.insertMessage(message(sender, receiver, "first"), null);
+    int second = storage.insertMessage(message(receiver, sender, "second"), null);
+    int third = storage.insertMessage(message(sender, receiver, "third"), null);
+
+    assertEquals(2, storage.getUnreadMessages(receiver, 0, 10).size());
+    assertEquals(third, storage.getUnreadMessages(receiver, first, 10).get(0));
+
+    // Read messages leave the unread listing and are prefixed in the full one
+    assertEquals(sender, storage.insertReceipt(new Receipt(first, receiver, "date", "signature")));
+    assertEquals(1, storage.getUnreadMessages(receiver, 0, 10).size());
+    assertEquals(1, storage.getReceipts(first).size());
+
+    Pair<ArrayList<String>, ArrayList<Integer>> all = storage.getAllMessages(receiver, 0, 10);
+    assertEquals("_" + first, all.getA().get(0));
+    assertEquals(String.valueOf(third), all.getA().get(1));
+    assertEquals(second, all.getB().get(0));
+
+    // The limit counts messages of both lists
+    all = storage.getAllMessages(receiver, 0, 2);
+    assertEquals(1, all.getA().size());
+    assertEquals(1, all.getB().size());
+  }
+
+  @Test
+  void keepsAttachmentsApartFromTheMessage() throws Exception {
+    MemoryStorage storage = new MemoryStorage();
+
+    int sender = storage.insertUser(user("sender"));
+    int receiver = storage.insertUser(user("receiver"));
+
+    byte[] attachments = {1, 2, 3, 4, 5};
+    int messageId = storage.insertMessage(message(sender, receiver, "text"), storage.stageAttachments(new ByteArrayInputStream(attachments)));
+
+    assertEquals(Base64.getEncoder().encodeToString(attachments), storage.getMessage(messageId).getAttachments());
+
+    Pair<Message, Integer> withoutAttachments = storage.getMessageWithoutAttachments(messageId);
+    assertEquals("", withoutAttachments.getA().getAttachments());
+    assertEquals(5, withoutAttachments.getB());
+
+    Pair<byte[], Integer> chunk = storage.getAttachmentsChunk(messageId, 3, 10);
+    assertArrayEquals(new byte[]{4, 5}, chunk.getA());
+    assertEquals(5, chunk.getB());
+
+    assertArrayEquals(attachments, storage.getAttachments(messageId).readAllBytes());
+  }
+
+  @Test
+  void refusesMessagesOfUnknownUsers() throws Exception {
+    MemoryStorage storage = new MemoryStorage();
+
+    int sender = storage.insertUser(user("sender"));
+
+    assertThrows(FailedToInsertException.class, () -> storage.insertMessage(message(sender, sender + 1, "text"), null));
+    assertThrows(EntryNotFoundException.class, () -> storage.getMessage(1));
+    assertThrows(EntryNotFoundException.class, () -> storage.insertReceipt(new Receipt(1, sender, "date", "signature")));
+  }
+
+  /*
+    UTILS
+  */
+  private static User user(String uuid) {
+    return new User(uuid, "pubKey", "dhSeaPubKey", "dhMacPubKey", "seaSpec", "macSpec", "signature");
+  }
+
+  private static Message message(int senderId, int receiverId, String text) {
+    return new Message(senderId, receiverId, text, "attachmentData", "", "iv", "signature-" + text);
+  }
+}
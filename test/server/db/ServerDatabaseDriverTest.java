@@ -0,0 +1,154 @@
+package server.db;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import shared.Pair;
+import shared.errors.db.EntryNotFoundException;
+import shared.utils.db.ConnectionPool;
+import shared.wrappers.Message;
+import shared.wrappers.User;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ServerDatabaseDriverTest {
+  @TempDir
+  Path dir;
+
+  @Test
+  void listsMailboxesFromTheirIndexes() throws Exception {
+    // Fails to start if a listing query stops using its index
+    ServerDatabaseDriver db = driver();
+
+    int sender = db.insertUser(user("sender"));
+    int receiver = db.insertUser(user("receiver"));
+
+    int first = db.insertMessage(message(sender, receiver, "first"), null);
+    int second = db.insertMessage(message(sender, receiver, "second"), null);
+
+    ArrayList<Integer> unread = db.getUnreadMessages(receiver, 0, 10);
+    assertEquals(2, unread.size());
+    assertEquals(first, unread.get(0));
+
+    // Pages continue after the cursor
+    assertEquals(second, db.getUnreadMessages(receiver, first, 10).get(0));
+
+    Pair<ArrayList<String>, ArrayList<Integer>> all = db.getAllMessages(sender, 0, 10);
+    assertTrue(all.getA().isEmpty());
+    assertEquals(2, all.getB().size());
+  }
+
+  @Test
+  void keepsSharedAttachmentsUntilTheirLastMessageIsDeleted() throws Exception {
+    ServerDatabaseDriver db = driver();
+
+    int sender = db.insertUser(user("sender"));
+    int receiver = db.insertUser(user("receiver"));
+
+    byte[] attachments = {1, 2, 3, 4};
+    int first = db.insertMessage(message(sender, receiver, "first"), db.stageAttachments(new ByteArrayInputStream(attachments)));
+    int second = db.insertMessage(message(sender, receiver, "second"), db.stageAttachments(new ByteArrayInputStream(attachments)));
+
+    // Stored once
+    assertEquals(1, blobFiles());
+
+    db.deleteMessage(first);
+
+    assertThrows(EntryNotFoundException.class, () -> db.getMessage(first));
+    assertArrayEquals(attachments, db.getAttachmentsChunk(second, 0, 16).getA());
+
+    db.deleteMessage(second);
+
+    assertEquals(0, blobFiles());
+    assertThrows(EntryNotFoundException.class, () -> db.deleteMessage(second));
+  }
+
+  @Test
+  void storesAttachmentsAgainAfterTheirBlobWasDeleted() throws Exception {
+    ServerDatabaseDriver db = driver();
+
+    int sender = db.insertUser(user("sender"));
+    int receiver = db.insertUser(user("receiver"));
+
+    byte[] attachments = {1, 2, 3, 4};
+    int first = db.insertMessage(message(sender, receiver, "first"), db.stageAttachments(new ByteArrayInputStream(attachments)));
+    db.deleteMessage(first);
+
+    int second = db.insertMessage(message(sender, receiver, "second"), db.stageAttachments(new ByteArrayInputStream(attachments)));
+
+    assertEquals(1, blobFiles());
+    assertArrayEquals(attachments, db.getAttachmentsChunk(second, 0, 16).getA());
+  }
+
+  @Test
+  void upgradesDatabasesFromBeforeTheMigrations() throws Exception {
+    // Schema and rows of a server from before versioned migrations
+    try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dir.resolve("db.sqlite"));
+         Statement statement = connection.createStatement()) {
+      statement.execute("CREATE TABLE users (user_id INTEGER PRIMARY KEY, uuid TEXT NOT NULL UNIQUE, pub_key TEXT NOT NULL, " +
+          "dh_sea_pub_key TEXT NOT NULL, dh_mac_pub_key TEXT NOT NULL, sea_spec TEXT NOT NULL, mac_spec TEXT NOT NULL, sec_data_signature TEXT NOT NULL);");
+      statement.execute("CREATE TABLE messages (message_id INTEGER PRIMARY KEY AUTOINCREMENT, sender_id INTEGER NOT NULL, receiver_id INTEGER NOT NULL, " +
+          "read INTEGER NOT NULL DEFAULT 0, text TEXT, attachment_data TEXT, attachments BLOB, cipher_iv TEXT, sender_signature TEXT);");
+      statement.execute("INSERT INTO users VALUES (1, 'user', 'pubKey', 'dhSeaPubKey', 'dhMacPubKey', 'seaSpec', 'macSpec', 'signature');");
+      statement.execute("INSERT INTO messages (sender_id, receiver_id, text, attachments) VALUES (1, 1, 'old', X'010203');");
+    }
+
+    ServerDatabaseDriver db = driver();
+
+    assertEquals(2, schemaVersion());
+
+    // Rows from before the blob store keep their attachments
+    assertEquals("AQID", db.getMessage(1).getAttachments());
+    assertEquals(3, db.getMessageWithoutAttachments(1).getB());
+    assertEquals(1, db.getUnreadMessages(1, 0, 10).size());
+
+    // Applied migrations are not run again
+    driver();
+    assertEquals(2, schemaVersion());
+  }
+
+  /*
+    UTILS
+  */
+  private int schemaVersion() throws SQLException {
+    try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dir.resolve("db.sqlite"));
+         Statement statement = connection.createStatement();
+         ResultSet rs = statement.executeQuery("SELECT version FROM schema_version;")) {
+      return rs.getInt("version");
+    }
+  }
+
+  // Stored blobs, staged and removed files are left out
+  private long blobFiles() throws IOException {
+    try (Stream<Path> files = Files.walk(dir.resolve("blobs"))) {
+      return files.filter(Files::isRegularFile).filter(file -> !file.toString().endsWith(".tmp")).count();
+    }
+  }
+
+  private ServerDatabaseDriver driver() throws Exception {
+    return new ServerDatabaseDriver(pool(), dir.resolve("blobs").toString(), 16, 0);
+  }
+
+  private ConnectionPool pool() throws SQLException {
+    return new ConnectionPool(dir.resolve("db.sqlite").toString(), 2, "normal", -2000, 0, 1000);
+  }
+
+  private static User user(String uuid) {
+    return new User(uuid, "pubKey", "dhSeaPubKey", "dhMacPubKey", "seaSpec", "macSpec", "signature");
+  }
+
+  private static Message message(int senderId, int receiverId, String text) {
+    return new Message(senderId, receiverId, text, "attachmentData", "", "iv", "signature-" + text);
+  }
+}
@@ -0,0 +1,128 @@
+package server.db;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import shared.wrappers.Message;
+import shared.wrappers.User;
+import shared.utils.db.ConnectionPool;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ShardedStorageTest {
+  private static final int SHARDS = 3;
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void storesMessagesInTheShardOfTheReceiver() throws Exception {
+    ServerDatabaseDriver[] shards = shards(SHARDS);
+    ShardedStorage storage = new ShardedStorage(shards);
+
+    int sender = storage.insertUser(user("sender"));
+    int receiver = storage.insertUser(user("receiver"));
+
+    int messageId = storage.insertMessage(message(sender, receiver, "hello"), null);
+
+    assertEquals(Math.floorMod(receiver, SHARDS), messageId % SHARDS);
+    assertEquals("hello", storage.getMessage(messageId).getText());
+    assertEquals(messageId, shards[messageId % SHARDS].getLastMessageId());
+  }
+
+  @Test
+  void givesUniqueIdsInOrderAcrossShards() throws Exception {
+    ShardedStorage storage = new ShardedStorage(shards(SHARDS));
+
+    int sender = storage.insertUser(user("sender"));
+    int[] receivers = new int[SHARDS];
+
+    for (int i = 0; i < SHARDS; i++)
+      receivers[i] = storage.insertUser(user("receiver" + i));
+
+    HashSet<Integer> ids = new HashSet<>();
+    int lastId = 0;
+
+    for (int i = 0; i < 9; i++) {
+      int messageId = storage.insertMessage(message(sender, receivers[i % SHARDS], "text"), null);
+
+      assertTrue(ids.add(messageId));
+      assertTrue(messageId > lastId);
+      lastId = messageId;
+    }
+
+    // Sent messages are listed from every shard
+    ArrayList<Integer> sent = storage.getAllMessages(sender, 0, 20).getB();
+    assertEquals(9, sent.size());
+  }
+
+  @Test
+  void continuesTheSequenceAfterARestart() throws Exception {
+    ShardedStorage storage = new ShardedStorage(shards(SHARDS));
+
+    int sender = storage.insertUser(user("sender"));
+    int firstId = storage.insertMessage(message(sender, sender, "first"), null);
+
+    ShardedStorage restarted = new ShardedStorage(shards(SHARDS));
+    int secondId = restarted.insertMessage(message(sender, sender, "second"), null);
+
+    assertTrue(secondId > firstId);
+  }
+
+  @Test
+  void refusesAnotherShardCount() throws Exception {
+    ServerDatabaseDriver[] shards = shards(SHARDS);
+
+    for (int i = 0; i < SHARDS; i++)
+      assertTrue(shards[i].checkShardLayout(i, SHARDS));
+
+    assertTrue(shards[0].checkShardLayout(0, SHARDS));
+    assertFalse(shards[0].checkShardLayout(0, SHARDS + 1));
+    assertFalse(shards[1].checkShardLayout(2, SHARDS));
+  }
+
+  @Test
+  void refusesToShardASingleFileWithMessages() throws Exception {
+    ServerDatabaseDriver single = driver(0);
+
+    int user = single.insertUser(user("user"));
+    single.insertMessage(message(user, user, "text"), null);
+
+    assertFalse(single.checkShardLayout(0, SHARDS));
+    assertTrue(single.checkShardLayout(0, 1));
+  }
+
+  /*
+    UTILS
+  */
+  private ServerDatabaseDriver[] shards(int count) throws Exception {
+    ServerDatabaseDriver[] shards = new ServerDatabaseDriver[count];
+
+    for (int i = 0; i < count; i++)
+      shards[i] = driver(i);
+
+    return shards;
+  }
+
+  private ServerDatabaseDriver driver(int shard) throws Exception {
+    ConnectionPool pool = pool(dir.resolve("db." + shard + ".sqlite"));
+
+    return new ServerDatabaseDriver(pool, dir.resolve("blobs." + shard).toString(), 16, 0);
+  }
+
+  private static ConnectionPool pool(Path file) throws SQLException {
+    return new ConnectionPool(file.toString(), 2, "normal", -2000, 0, 1000);
+  }
+
+  private static User user(String uuid) {
+    return new User(uuid, "pubKey", "dhSeaPubKey", "dhMacPubKey", "seaSpec", "macSpec", "signature");
+  }
+
+  private static Message message(int senderId, int receiverId, String text) {
+    return new Message(senderId, receiverId, text, "attachmentData", "", "iv", "signature-" + text);
+  }
+}
@@ -0,0 +1,144 @@
+package server.request;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+import shared.utils.BinaryProtocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JsonFrameDecoderTest {
+  @Test
+  void splitsConcatenatedObjects() throws IOException {
+    JsonFrameDecoder decoder = new JsonFrameDecoder(1);
+
+    ArrayList<byte[]> frames = decoder.feed(bytes("{\"a\":1} \n{\"b\":[1,{}]}"));
+
+    assertFalse(decoder.isBinary());
+    assertEquals(2, frames.size());
+    assertEquals("{\"a\":1}", text(frames.get(0)));
+    assertEquals("{\"b\":[1,{}]}", text(frames.get(1)));
+  }
+
+  @Test
+  void keepsPartialObjectsAcrossReads() throws IOException {
+    JsonFrameDecoder decoder = new JsonFrameDecoder(1);
+
+    assertTrue(decoder.feed(bytes("{\"a\":{\"b\":")).isEmpty());
+    assertTrue(decoder.feed(bytes("[1,2]")).isEmpty());
+
+    ArrayList<byte[]> frames = decoder.feed(bytes("}}{\"c\""));
+
+    assertEquals(1, frames.size());
+    assertEquals("{\"a\":{\"b\":[1,2]}}", text(frames.get(0)));
+
+    frames = decoder.feed(bytes(":2}"));
+
+    assertEquals(1, frames.size());
+    assertEquals("{\"c\":2}", text(frames.get(0)));
+  }
+
+  @Test
+  void ignoresBracketsInStrings() throws IOException {
+    JsonFrameDecoder decoder = new JsonFrameDecoder(1);
+    String request = "{\"a\":\"}]\\\"{[\",\"b\":\"\\\\\"}";
+
+    ArrayList<byte[]> frames = decoder.feed(bytes(request));
+
+    assertEquals(1, frames.size());
+    assertEquals(request, text(frames.get(0)));
+  }
+
+  @Test
+  void rejectsMismatchedClosers() {
+    assertThrows(IOException.class, () -> new JsonFrameDecoder(1).feed(bytes("{\"a\":[1}")));
+    assertThrows(IOException.class, () -> new JsonFrameDecoder(1).feed(bytes("{\"a\":{]")));
+  }
+
+  @Test
+  void rejectsDeepNesting() throws IOException {
+    StringBuilder request = new StringBuilder("{\"a\":");
+
+    for (int i = 0; i < 100; i++)
+      request.append('[');
+    for (int i = 0; i < 100; i++)
+      request.append(']');
+
+    assertEquals(1, new JsonFrameDecoder(1).feed(bytes(request + "}")).size());
+    assertThrows(IOException.class, () -> new JsonFrameDecoder(1).feed(bytes(request + "]")));
+  }
+
+  @Test
+  void rejectsRequestsThatAreNotObjects() {
+    assertThrows(IOException.class, () -> new JsonFrameDecoder(1).feed(bytes("[1]")));
+    assertThrows(IOException.class, () -> new JsonFrameDecoder(1).feed(bytes("{}}")));
+  }
+
+  @Test
+  void rejectsRequestsPastTheMaxSize() {
+    StringBuilder request = new StringBuilder("{\"a\":\"");
+
+    while (request.length() <= 1024 * 1024)
+      request.append("aaaaaaaaaaaaaaaa");
+
+    assertThrows(IOException.class, () -> new JsonFrameDecoder(1).feed(bytes(request + "\"}")));
+  }
+
+  @Test
+  void splitsBinaryFrames() throws IOException {
+    JsonObject first = new JsonParser().parse("{\"a\":1,\"b\":\"text\"}").getAsJsonObject();
+    JsonObject second = new JsonParser().parse("{\"c\":[true,null]}").getAsJsonObject();
+
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    BinaryProtocol.writePreamble(stream);
+    BinaryProtocol.writeFrame(stream, first);
+    BinaryProtocol.writeFrame(stream, second);
+
+    JsonFrameDecoder decoder = new JsonFrameDecoder(1);
+    ArrayList<byte[]> frames = new ArrayList<>();
+
+    // One byte at a time, every frame boundary falls inside a read at some point
+    for (byte b : stream.toByteArray())
+      frames.addAll(decoder.feed(ByteBuffer.wrap(new byte[]{b})));
+
+    assertTrue(decoder.isBinary());
+    assertEquals(2, frames.size());
+    assertEquals(first, BinaryProtocol.decode(frames.get(0)));
+    assertEquals(second, BinaryProtocol.decode(frames.get(1)));
+  }
+
+  @Test
+  void rejectsInvalidPreambles() {
+    byte[] preamble = {0x00, 'J', 'S', 'N'};
+
+    assertThrows(IOException.class, () -> new JsonFrameDecoder(1).feed(ByteBuffer.wrap(preamble)));
+  }
+
+  @Test
+  void rejectsBinaryFramesPastTheMaxSize() throws IOException {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    BinaryProtocol.writePreamble(stream);
+
+    // Length of 2 MB
+    stream.write(new byte[]{0x00, 0x20, 0x00, 0x00});
+
+    assertThrows(IOException.class, () -> new JsonFrameDecoder(1).feed(ByteBuffer.wrap(stream.toByteArray())));
+  }
+
+  /*
+    UTILS
+  */
+  private static ByteBuffer bytes(String text) {
+    return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static String text(byte[] bytes) {
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,80 @@
+package server.request;
+
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.Test;
+import shared.errors.request.InvalidFormatException;
+
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StreamingRequestParserTest {
+  private static final String SPOOLED_FIELD = "attachments";
+
+  @Test
+  void spoolsTheAttachmentsToAFile() throws Exception {
+    byte[] attachments = new byte[20 * 1024];
+    for (int i = 0; i < attachments.length; i++)
+      attachments[i] = (byte) i;
+
+    StreamingRequestParser parser = parser("{\"type\": \"send\", \"attachments\": \"" +
+        Base64.getEncoder().encodeToString(attachments) + "\", \"senderId\": 3}");
+
+    JsonObject request = parser.next();
+
+    assertEquals("send", request.get("type").getAsString());
+    assertEquals(3, request.get("senderId").getAsInt());
+    assertFalse(request.has(SPOOLED_FIELD));
+    assertArrayEquals(attachments, Files.readAllBytes(parser.getSpool()));
+  }
+
+  @Test
+  void decodesThePaddingGsonEscapes() throws Exception {
+    StreamingRequestParser parser = parser("{\"attachments\": \"AQI\\u003d\"}");
+
+    parser.next();
+
+    assertArrayEquals(new byte[]{1, 2}, Files.readAllBytes(parser.getSpool()));
+  }
+
+  @Test
+  void readsRequestsOneAfterTheOther() throws Exception {
+    StreamingRequestParser parser = parser("{\"attachments\": \"AQID\", \"nested\": {\"a\": [1, \"}\"]}} {\"type\": \"list\"}");
+
+    JsonObject first = parser.next();
+    Path spool = parser.getSpool();
+
+    assertEquals("}", first.getAsJsonObject("nested").getAsJsonArray("a").get(1).getAsString());
+    assertTrue(Files.exists(spool));
+
+    // The spool of a request goes with it
+    assertEquals("list", parser.next().get("type").getAsString());
+    assertNull(parser.getSpool());
+    assertFalse(Files.exists(spool));
+
+    assertNull(parser.next());
+  }
+
+  @Test
+  void keepsEmptyAttachmentsAsAString() throws Exception {
+    StreamingRequestParser parser = parser("{\"attachments\": \"\"}");
+
+    assertEquals("", parser.next().get(SPOOLED_FIELD).getAsString());
+    assertNull(parser.getSpool());
+  }
+
+  @Test
+  void refusesInvalidRequests() {
+    assertThrows(InvalidFormatException.class, () -> parser("[1]").next());
+    assertThrows(InvalidFormatException.class, () -> parser("{\"a\" 1}").next());
+    assertThrows(InvalidFormatException.class, () -> parser("{\"attachments\": \"not base64!\"}").next());
+    assertThrows(InvalidFormatException.class, () -> parser("{\"attachments\": \"AQ==AQ==\"}").next());
+  }
+
+  private static StreamingRequestParser parser(String requests) {
+    return new StreamingRequestParser(new StringReader(requests), SPOOLED_FIELD);
+  }
+}
@@ -0,0 +1,90 @@
+package shared.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdmissionControllerTest {
+  @Test
+  void turnsAwayWorkPastTheWorkersAndQueue() throws InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(1);
+    AdmissionController admission = new AdmissionController(executor, 1, 1);
+    CountDownLatch blocked = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(2);
+
+    try {
+      assertTrue(admission.tryExecute(() -> await(blocked, done)));
+      assertTrue(admission.tryExecute(done::countDown));
+      assertFalse(admission.tryExecute(done::countDown));
+
+      blocked.countDown();
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+
+      assertEquals(2, admission.getAdmitted());
+      assertEquals(1, admission.getRejected());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void freesTheSlotOnceTheWorkIsDone() throws InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(1);
+    AdmissionController admission = new AdmissionController(executor, 1, 0);
+
+    try {
+      for (int i = 0; i < 3; i++) {
+        CountDownLatch done = new CountDownLatch(1);
+
+        // The single slot is given back right after the previous task returns
+        while (!admission.tryExecute(done::countDown))
+          Thread.onSpinWait();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  void recordsTheQueueWaitOfAdmittedWork() throws InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(1);
+    AdmissionController admission = new AdmissionController(executor, 1, 1);
+    CountDownLatch blocked = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(2);
+
+    try {
+      admission.tryExecute(() -> await(blocked, done));
+      admission.tryExecute(done::countDown);
+
+      Thread.sleep(50);
+      blocked.countDown();
+      assertTrue(done.await(5, TimeUnit.SECONDS));
+
+      // The second task waited for the first one
+      assertTrue(admission.getMaxQueueWaitMillis() >= 40);
+      assertTrue(admission.getAverageQueueWaitMillis() > 0);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /*
+    UTILS
+  */
+  private static void await(CountDownLatch latch, CountDownLatch done) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    done.countDown();
+  }
+}
@@ -0,0 +1,130 @@
+package shared.utils;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryProtocolTest {
+  @Test
+  void encodesEveryFieldType() throws IOException {
+    JsonElement tree = new JsonParser().parse("{"
+        + "\"null\":null,"
+        + "\"false\":false,"
+        + "\"true\":true,"
+        + "\"long\":-1234567890123,"
+        + "\"double\":1.5,"
+        + "\"string\":\"café\","
+        + "\"bytes\":\"" + Base64.getEncoder().encodeToString(new byte[32]) + "\","
+        + "\"array\":[1,\"two\",[],{}],"
+        + "\"object\":{\"nested\":{\"deeper\":[null]}}"
+        + "}");
+
+    assertEquals(tree, BinaryProtocol.decode(BinaryProtocol.encodeElement(tree)));
+  }
+
+  @Test
+  void sendsBase64AsBytes() throws IOException {
+    byte[] raw = new byte[48];
+    Arrays.fill(raw, (byte) 7);
+
+    String encoded = Base64.getEncoder().encodeToString(raw);
+    byte[] element = BinaryProtocol.encodeElement(new JsonPrimitive(encoded));
+
+    // Type and length before the raw bytes
+    assertEquals(1 + 4 + raw.length, element.length);
+    assertEquals(new JsonPrimitive(encoded), BinaryProtocol.decode(element));
+  }
+
+  @Test
+  void keepsTextThatIsNotCanonicalBase64() throws IOException {
+    // Decodes, but not back to the same text
+    String text = "abcdefghijklmnB=";
+    byte[] element = BinaryProtocol.encodeElement(new JsonPrimitive(text));
+
+    assertEquals(new JsonPrimitive(text), BinaryProtocol.decode(element));
+  }
+
+  @Test
+  void writesAndReadsFrames() throws IOException {
+    JsonElement first = new JsonParser().parse("{\"a\":1}");
+    JsonElement second = new JsonParser().parse("{\"b\":[2,3]}");
+
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    BinaryProtocol.writeFrame(stream, first);
+    stream.write(BinaryProtocol.encodeFrame(second));
+
+    DataInputStream input = new DataInputStream(new ByteArrayInputStream(stream.toByteArray()));
+
+    assertEquals(first, BinaryProtocol.readFrame(input, 1));
+    assertEquals(second, BinaryProtocol.readFrame(input, 1));
+    assertNull(BinaryProtocol.readFrame(input, 1));
+  }
+
+  @Test
+  void framesEncodedInPartsMatchWholeFrames() throws IOException {
+    JsonElement tree = new JsonParser().parse("{\"a\":\"b\"}");
+    byte[] whole = BinaryProtocol.encodeFrame(tree);
+    byte[] body = BinaryProtocol.encodeElement(tree);
+
+    byte[] parts = BinaryProtocol.encodeFrame(
+        Arrays.copyOfRange(body, 0, 3),
+        Arrays.copyOfRange(body, 3, body.length)
+    );
+
+    assertArrayEquals(whole, parts);
+  }
+
+  @Test
+  void rejectsFramesPastTheMaxSize() {
+    // Length of 2 MB
+    byte[] header = {0x00, 0x20, 0x00, 0x00};
+    DataInputStream input = new DataInputStream(new ByteArrayInputStream(header));
+
+    assertThrows(IOException.class, () -> BinaryProtocol.readFrame(input, 1));
+  }
+
+  @Test
+  void rejectsTruncatedAndUnknownFields() throws IOException {
+    byte[] body = BinaryProtocol.encodeElement(new JsonParser().parse("{\"a\":\"text\",\"b\":[1,2]}"));
+
+    for (int length = 0; length < body.length; length++) {
+      byte[] truncated = Arrays.copyOf(body, length);
+      assertThrows(IOException.class, () -> BinaryProtocol.decode(truncated));
+    }
+
+    assertThrows(IOException.class, () -> BinaryProtocol.decode(new byte[]{42}));
+  }
+
+  @Test
+  void rejectsFieldSizesPastTheFrame() {
+    // A string claiming more bytes than the frame has
+    byte[] body = {5, 0x7F, 0x00, 0x00, 0x00, 'a'};
+
+    assertThrows(IOException.class, () -> BinaryProtocol.decode(body));
+  }
+
+  @Test
+  void readsThePreambleOnlyFromBinaryClients() throws IOException {
+    ByteArrayOutputStream binary = new ByteArrayOutputStream();
+    BinaryProtocol.writePreamble(binary);
+
+    assertTrue(BinaryProtocol.readPreamble(new PushbackInputStream(new ByteArrayInputStream(binary.toByteArray()))));
+
+    // JSON clients keep their first byte
+    PushbackInputStream json = new PushbackInputStream(new ByteArrayInputStream(new byte[]{'{', '}'}));
+
+    assertFalse(BinaryProtocol.readPreamble(json));
+    assertEquals('{', json.read());
+
+    byte[] invalid = {0x00, 'B', 'I', 'X'};
+
+    assertThrows(IOException.class, () -> BinaryProtocol.readPreamble(new PushbackInputStream(new ByteArrayInputStream(invalid))));
+  }
+}
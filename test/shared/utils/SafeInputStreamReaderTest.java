@@ -0,0 +1,50 @@
+package shared.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SafeInputStreamReaderTest {
+  private static final int MEGA_BYTE = 1024 * 1024;
+
+  @Test
+  void limitsWhatIsReadUntilReset() throws IOException {
+    SafeInputStreamReader reader = new SafeInputStreamReader(new ByteArrayInputStream(new byte[3 * MEGA_BYTE]), 1);
+    char[] buffer = new char[MEGA_BYTE / 2];
+
+    readFully(reader, buffer);
+    readFully(reader, buffer);
+    assertThrows(IOException.class, () -> readFully(reader, buffer));
+  }
+
+  @Test
+  void appliesTheLimitToEachResponseOfAConnection() throws IOException {
+    SafeInputStreamReader reader = new SafeInputStreamReader(new ByteArrayInputStream(new byte[3 * MEGA_BYTE]), 1);
+    char[] buffer = new char[MEGA_BYTE / 2];
+
+    // Three responses of half the limit each, more than the limit in total
+    for (int i = 0; i < 3; i++) {
+      reader.resetBytesRead();
+      readFully(reader, buffer);
+    }
+  }
+
+  /*
+    UTILS
+  */
+  private static void readFully(SafeInputStreamReader reader, char[] buffer) throws IOException {
+    int offset = 0;
+
+    while (offset < buffer.length) {
+      int read = reader.read(buffer, offset, buffer.length - offset);
+
+      if (read == -1)
+        throw new IOException("Stream ended.");
+
+      offset += read;
+    }
+  }
+}
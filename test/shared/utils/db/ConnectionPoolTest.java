@@ -0,0 +1,81 @@
+package shared.utils.db;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConnectionPoolTest {
+  @TempDir
+  Path dir;
+
+  @Test
+  void closesResultSetsLeftOpenOnRelease() throws SQLException {
+    ConnectionPool pool = pool();
+
+    PooledConnection reader = pool.acquireReader();
+    PreparedStatement ps = reader.prepare("SELECT value FROM entries;");
+    ResultSet rs = reader.query(ps);
+
+    assertTrue(rs.next());
+    pool.release(reader);
+
+    assertTrue(rs.isClosed());
+
+    // The statement stays cached and runs again
+    reader = pool.acquireReader();
+    assertSame(ps, reader.prepare("SELECT value FROM entries;"));
+    assertTrue(reader.query(ps).next());
+    pool.release(reader);
+  }
+
+  @Test
+  void releasesTheWriterOnlyOnTheOuterRelease() throws SQLException {
+    ConnectionPool pool = pool();
+
+    PooledConnection writer = pool.acquireWriter();
+    ResultSet rs = writer.query(writer.prepare("SELECT value FROM entries;"));
+
+    pool.acquireWriter();
+    pool.release(writer);
+    assertFalse(rs.isClosed());
+
+    pool.release(writer);
+    assertTrue(rs.isClosed());
+  }
+
+  @Test
+  void readersSeeCommittedWrites() throws SQLException {
+    ConnectionPool pool = pool();
+
+    PooledConnection writer = pool.acquireWriter();
+    writer.execute("INSERT INTO entries (value) VALUES (2);");
+    pool.release(writer);
+
+    PooledConnection reader = pool.acquireReader();
+    ResultSet rs = reader.query(reader.prepare("SELECT COUNT(*) AS count FROM entries;"));
+
+    assertTrue(rs.next());
+    assertEquals(2, rs.getInt("count"));
+    pool.release(reader);
+  }
+
+  /*
+    UTILS
+  */
+  private ConnectionPool pool() throws SQLException {
+    ConnectionPool pool = new ConnectionPool(dir.resolve("test.db").toString(), 1, "normal", -2000, 0, 1000);
+
+    PooledConnection writer = pool.acquireWriter();
+    writer.execute("CREATE TABLE entries (value INTEGER NOT NULL);");
+    writer.execute("INSERT INTO entries (value) VALUES (1);");
+    pool.release(writer);
+
+    return pool;
+  }
+}
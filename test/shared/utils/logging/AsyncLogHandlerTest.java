@@ -0,0 +1,50 @@
+package shared.utils.logging;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AsyncLogHandlerTest {
+  @TempDir
+  Path dir;
+
+  @Test
+  void flushWaitsForThePublishedRecords() throws Exception {
+    Path log = dir.resolve("log.txt");
+    AsyncLogHandler handler = new AsyncLogHandler(log.toString(), 1024, AsyncLogHandler.OverflowPolicy.BLOCK);
+
+    try {
+      for (int i = 0; i < 1000; i++)
+        handler.publish(new LogRecord(Level.INFO, "record " + i));
+
+      handler.flush();
+
+      List<String> lines = Files.readAllLines(log);
+      assertEquals(1000, lines.size());
+      assertTrue(lines.get(999).endsWith("record 999"));
+    } finally {
+      handler.close();
+    }
+  }
+
+  @Test
+  void writesEverythingOnClose() throws Exception {
+    Path log = dir.resolve("log.txt");
+    AsyncLogHandler handler = new AsyncLogHandler(log.toString(), 16, AsyncLogHandler.OverflowPolicy.BLOCK);
+
+    for (int i = 0; i < 100; i++)
+      handler.publish(new LogRecord(Level.WARNING, "record " + i));
+
+    handler.close();
+
+    assertEquals(100, Files.readAllLines(log).size());
+    assertEquals(0, handler.getDropped());
+  }
+}
@@ -0,0 +1,94 @@
+package shared.utils.logging;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RingBufferTest {
+  @Test
+  void roundsTheCapacityUpToAPowerOfTwo() {
+    assertEquals(8, new RingBuffer<Integer>(5).capacity());
+    assertEquals(8, new RingBuffer<Integer>(8).capacity());
+    assertEquals(16, new RingBuffer<Integer>(9).capacity());
+  }
+
+  @Test
+  void keepsOrderAndRefusesWhenFull() {
+    RingBuffer<Integer> buffer = new RingBuffer<>(4);
+
+    for (int i = 0; i < 4; i++)
+      assertTrue(buffer.offer(i));
+
+    assertFalse(buffer.offer(4));
+    assertEquals(4, buffer.size());
+
+    for (int i = 0; i < 4; i++)
+      assertEquals(i, buffer.poll());
+
+    assertNull(buffer.poll());
+    assertEquals(0, buffer.size());
+  }
+
+  @Test
+  void reusesSlotsAfterEachLap() {
+    RingBuffer<Integer> buffer = new RingBuffer<>(4);
+
+    for (int i = 0; i < 100; i++) {
+      assertTrue(buffer.offer(i));
+      assertTrue(buffer.offer(-i));
+
+      assertEquals(i, buffer.poll());
+      assertEquals(-i, buffer.poll());
+    }
+
+    assertNull(buffer.poll());
+  }
+
+  @Test
+  void losesNothingFromConcurrentProducers() throws InterruptedException {
+    int producers = 4;
+    int items = 20000;
+
+    RingBuffer<long[]> buffer = new RingBuffer<>(64);
+    Thread[] threads = new Thread[producers];
+
+    for (int i = 0; i < producers; i++) {
+      int producer = i;
+
+      threads[i] = new Thread(() -> {
+        for (int item = 0; item < items; item++) {
+          // Spins while the consumer catches up
+          while (!buffer.offer(new long[]{producer, item}))
+            Thread.yield();
+        }
+      });
+      threads[i].start();
+    }
+
+    ArrayList<long[]> consumed = new ArrayList<>();
+
+    while (consumed.size() < producers * items) {
+      long[] item = buffer.poll();
+
+      if (item == null)
+        Thread.yield();
+      else
+        consumed.add(item);
+    }
+
+    for (Thread thread : threads)
+      thread.join();
+
+    assertNull(buffer.poll());
+
+    // Every producer is seen in its own order
+    long[] next = new long[producers];
+
+    for (long[] item : consumed) {
+      assertEquals(next[(int) item[0]], item[1]);
+      next[(int) item[0]]++;
+    }
+  }
+}
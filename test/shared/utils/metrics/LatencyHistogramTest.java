@@ -0,0 +1,81 @@
+package shared.utils.metrics;
+
+import com.google.gson.JsonObject;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+  private static final long NANOS_PER_MICRO = 1000L;
+  private static final long NANOS_PER_MILLI = 1000000L;
+
+  @Test
+  void isEmptyAtFirst() {
+    LatencyHistogram histogram = new LatencyHistogram();
+
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getPercentile(50));
+    assertEquals(0, histogram.toJson().get("mean_ms").getAsDouble());
+  }
+
+  @Test
+  void keepsSmallValuesExact() {
+    LatencyHistogram histogram = new LatencyHistogram();
+
+    for (long micros = 1; micros <= 60; micros++)
+      histogram.record(micros * NANOS_PER_MICRO);
+
+    assertEquals(60, histogram.getCount());
+    assertEquals(0.030, histogram.getPercentile(50), 1e-9);
+    assertEquals(0.060, histogram.getPercentile(100), 1e-9);
+  }
+
+  @Test
+  void keepsLargeValuesWithinTheBucketError() {
+    long[] values = {123, 4567, 89012, 3456789, 98765432};
+
+    for (long micros : values) {
+      LatencyHistogram histogram = new LatencyHistogram();
+
+      // The max caps the bucket, a second smaller value keeps it out of the way
+      histogram.record(micros * NANOS_PER_MICRO);
+      histogram.record(2 * micros * NANOS_PER_MICRO);
+
+      double percentile = histogram.getPercentile(50) * 1000;
+
+      assertTrue(percentile >= micros, micros + " was read as " + percentile);
+      assertTrue(percentile <= micros * 1.032, micros + " was read as " + percentile);
+    }
+  }
+
+  @Test
+  void ordersPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+
+    for (int i = 0; i < 990; i++)
+      histogram.record(NANOS_PER_MILLI);
+    for (int i = 0; i < 10; i++)
+      histogram.record(100 * NANOS_PER_MILLI);
+
+    assertEquals(1, histogram.getPercentile(50), 0.03);
+    assertEquals(1, histogram.getPercentile(99), 0.03);
+    assertEquals(100, histogram.getPercentile(99.9), 3);
+
+    JsonObject json = histogram.toJson();
+
+    assertEquals(1000, json.get("count").getAsLong());
+    assertEquals(100, json.get("max_ms").getAsDouble(), 1e-9);
+    assertEquals(1.99, json.get("mean_ms").getAsDouble(), 1e-9);
+  }
+
+  @Test
+  void clampsValuesOutOfRange() {
+    LatencyHistogram histogram = new LatencyHistogram();
+
+    histogram.record(-5);
+    assertEquals(0, histogram.getPercentile(100));
+
+    histogram.record(Long.MAX_VALUE);
+    assertEquals(((1L << 40) - 1) / 1000.0, histogram.getPercentile(100), 1e-9);
+  }
+}